@@ -0,0 +1,50 @@
+package org.mine.iptable.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+final class BenchmarkSupport {
+    private BenchmarkSupport() {
+    }
+
+    static Path tempDirectory(String name) {
+        try {
+            return Files.createTempDirectory("bigarray-jmh-" + name);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static void deleteRecursively(Path directory) {
+        if (directory == null || !Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * indexes in [0, bound) to walk through, precomputed so the benchmark does not measure the generator
+     */
+    static long[] indexes(boolean random, long bound, int count, long seed) {
+        long[] indexes = new long[count];
+        Random rnd = new Random(seed);
+        long next = (seed * 7919) % bound;
+        for (int i = 0; i < count; i++) {
+            if (random) {
+                indexes[i] = (rnd.nextLong() & Long.MAX_VALUE) % bound;
+            } else {
+                indexes[i] = next;
+                next = next + 1 == bound ? 0 : next + 1;
+            }
+        }
+        return indexes;
+    }
+}
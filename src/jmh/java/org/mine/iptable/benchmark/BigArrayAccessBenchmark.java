@@ -0,0 +1,109 @@
+package org.mine.iptable.benchmark;
+
+import org.mine.iptable.bigtable.BigArray;
+import org.mine.iptable.bigtable.EvictionPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * single element access across page geometries and sub page cache limits. run with -t for several threads, each
+ * walks its own index sequence over the shared array
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BigArrayAccessBenchmark {
+    private static final int INDEXES = 1 << 20;
+
+    @State(Scope.Benchmark)
+    public static class Array {
+        @Param({"1048576", "16777216"})
+        int pageSizeInBytes;
+        @Param({"4096", "131072"})
+        int subPageSizeInBytes;
+        // sub pages kept per page, -1 for all
+        @Param({"16", "-1"})
+        int maxSubPageInMem;
+        @Param({"CLOCK"})
+        EvictionPolicy.Type evictionPolicy;
+        @Param({"256"})
+        int sizeInMB;
+        BigArray bigArray;
+        long bytes;
+        private Path directory;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            directory = BenchmarkSupport.tempDirectory("access");
+            bytes = (long) sizeInMB << 20;
+            bigArray = new BigArray.Builder(directory.toString()).pageSizeInBytes(pageSizeInBytes)
+                    .maxPageCount((int) (bytes / pageSizeInBytes)).subPageSizeInBytes(subPageSizeInBytes)
+                    .maxSubPageInMem(maxSubPageInMem).evictionPolicy(evictionPolicy).jmx(false).build();
+            for (long i = 0; i < bytes / 4; i++) {
+                bigArray.putInt(i, (int) i);
+            }
+            bigArray.force();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            bigArray.close();
+            BenchmarkSupport.deleteRecursively(directory);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        @Param({"SEQUENTIAL", "RANDOM"})
+        String pattern;
+        long[] byteIndexes;
+        long[] intIndexes;
+        int position;
+
+        @Setup(Level.Trial)
+        public void setup(Array array, ThreadParams threadParams) {
+            boolean random = "RANDOM".equals(pattern);
+            byteIndexes = BenchmarkSupport.indexes(random, array.bytes, INDEXES, threadParams.getThreadIndex() + 1);
+            intIndexes = BenchmarkSupport.indexes(random, array.bytes / 4, INDEXES, threadParams.getThreadIndex() + 1);
+        }
+
+        int next() {
+            int p = position;
+            position = (p + 1) & (INDEXES - 1);
+            return p;
+        }
+    }
+
+    @Benchmark
+    public byte getByte(Array array, Cursor cursor) {
+        return array.bigArray.getByte(cursor.byteIndexes[cursor.next()]);
+    }
+
+    @Benchmark
+    public int getInt(Array array, Cursor cursor) {
+        return array.bigArray.getInt(cursor.intIndexes[cursor.next()]);
+    }
+
+    @Benchmark
+    public void putInt(Array array, Cursor cursor) {
+        int p = cursor.next();
+        array.bigArray.putInt(cursor.intIndexes[p], p);
+    }
+}
@@ -0,0 +1,116 @@
+package org.mine.iptable.benchmark;
+
+import org.mine.iptable.bigtable.BigArray;
+import org.mine.iptable.ip.CompressedIpBitmap;
+import org.mine.iptable.ip.IpBitmap;
+import org.mine.iptable.ip.IpSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * contains lookups split over a pool of the given size, reported per lookup. half of the probes are in the set
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IpLookupBenchmark {
+    private static final int PROBES = 1 << 20;
+
+    @State(Scope.Benchmark)
+    public static class Lookup {
+        @Param({"BITMAP", "COMPRESSED"})
+        String set;
+        @Param({"1", "4", "8"})
+        int threads;
+        @Param({"1000000"})
+        int addresses;
+        // sub pages of 128KB kept per 1MB page of the bitmap
+        @Param({"2", "8"})
+        int maxSubPageInMem;
+        IpSet ipSet;
+        private BigArray bigArray;
+        private Path directory;
+        private ExecutorService pool;
+        private final List<Callable<Integer>> tasks = new ArrayList<>();
+
+        @Setup(Level.Trial)
+        public void setup() {
+            if ("BITMAP".equals(set)) {
+                directory = BenchmarkSupport.tempDirectory("ip");
+                bigArray = new BigArray.Builder(directory.toString()).pageSizeInBytes(1 << 20).maxPageCount(512)
+                        .subPageSizeInBytes(128 << 10).maxSubPageInMem(maxSubPageInMem).jmx(false).build();
+                ipSet = new IpBitmap(bigArray);
+            } else {
+                ipSet = new CompressedIpBitmap();
+            }
+            Random rnd = new Random(42);
+            int[] ips = new int[addresses];
+            for (int i = 0; i < addresses; i++) {
+                ips[i] = rnd.nextInt();
+            }
+            ipSet.addAll(ips, 0, ips.length);
+            int[] probes = new int[PROBES];
+            for (int i = 0; i < PROBES; i++) {
+                probes[i] = (i & 1) == 0 ? ips[rnd.nextInt(addresses)] : rnd.nextInt();
+            }
+            pool = Executors.newFixedThreadPool(threads);
+            int chunk = PROBES / threads;
+            for (int t = 0; t < threads; t++) {
+                int from = t * chunk;
+                int to = t == threads - 1 ? PROBES : from + chunk;
+                tasks.add(() -> {
+                    int hits = 0;
+                    for (int i = from; i < to; i++) {
+                        if (ipSet.contains(probes[i])) {
+                            hits++;
+                        }
+                    }
+                    return hits;
+                });
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            pool.shutdownNow();
+            if (bigArray != null) {
+                bigArray.close();
+                BenchmarkSupport.deleteRecursively(directory);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PROBES)
+    public int contains(Lookup lookup) throws Exception {
+        int hits = 0;
+        for (Future<Integer> future: lookup.pool.invokeAll(lookup.tasks)) {
+            hits += future.get();
+        }
+        return hits;
+    }
+}
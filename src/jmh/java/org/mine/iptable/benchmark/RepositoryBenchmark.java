@@ -0,0 +1,116 @@
+package org.mine.iptable.benchmark;
+
+import org.mine.iptable.bigtable.BigArray;
+import org.mine.iptable.repository.SegmentFileRepository;
+import org.mine.iptable.util.BigArrayUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * full saves and loads of an array, against a SegmentFileRepository on local disk standing in for the database.
+ * this measures the copy path through BigArray, not the network or the database
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RepositoryBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Arrays {
+        @Param({"64"})
+        int pages;
+        @Param({"1048576", "16777216"})
+        int pageSizeInBytes;
+        @Param({"1", "4"})
+        int parallelism;
+        BigArray source;
+        BigArray target;
+        SegmentFileRepository stored;
+        private Path directory;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            directory = BenchmarkSupport.tempDirectory("repo");
+            source = array("source");
+            target = array("target");
+            Random rnd = new Random(7);
+            long ints = (long) pages * pageSizeInBytes / 4;
+            for (long i = 0; i < ints; i++) {
+                source.putInt(i, rnd.nextInt());
+            }
+            stored = new SegmentFileRepository(directory.resolve("stored").toString());
+            BigArrayUtils.saveToRepo(source, stored);
+        }
+
+        private BigArray array(String name) {
+            return new BigArray.Builder(directory.resolve(name).toString()).pageSizeInBytes(pageSizeInBytes).maxPageCount(pages)
+                    .subPageSizeInBytes(Math.min(pageSizeInBytes, 1 << 20)).maxSubPageInMem(16).jmx(false).build();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            stored.close();
+            source.close();
+            target.close();
+            BenchmarkSupport.deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * empty repository per save, so saves do not pile up garbage in one segment file
+     */
+    @State(Scope.Benchmark)
+    public static class EmptyRepository {
+        SegmentFileRepository repository;
+        private Path directory;
+
+        @Setup(Level.Invocation)
+        public void setup() {
+            directory = BenchmarkSupport.tempDirectory("save");
+            repository = new SegmentFileRepository(directory.toString());
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws Exception {
+            repository.close();
+            BenchmarkSupport.deleteRecursively(directory);
+        }
+    }
+
+    @Benchmark
+    public long saveToRepo(Arrays arrays, EmptyRepository empty) {
+        return BigArrayUtils.saveToRepo(arrays.source, empty.repository, BigArrayUtils.FULL_SYNC, arrays.parallelism);
+    }
+
+    @Benchmark
+    public void loadFromRepo(Arrays arrays) {
+        BigArrayUtils.loadFromRepo(arrays.target, arrays.stored, arrays.parallelism);
+    }
+
+    @Benchmark
+    public long snapshot(Arrays arrays, EmptyRepository empty) {
+        return BigArrayUtils.snapshot(arrays.source, empty.repository);
+    }
+
+    @Benchmark
+    public void restore(Arrays arrays) {
+        BigArrayUtils.restore(arrays.target, arrays.stored);
+    }
+}
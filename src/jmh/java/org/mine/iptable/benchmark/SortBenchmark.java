@@ -0,0 +1,84 @@
+package org.mine.iptable.benchmark;
+
+import org.mine.iptable.bigtable.BigArray;
+import org.mine.iptable.util.BigArrayUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * one sortInt per invocation, the input is refilled before each since the runs are sorted in place
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SortBenchmark {
+    @Param({"16777216", "67108864"})
+    long count;
+    @Param({"16777216"})
+    int pageSizeInBytes;
+    @Param({"1", "4"})
+    int parallelism;
+    private Path directory;
+    private BigArray input;
+    private BigArray result;
+    private ForkJoinPool pool;
+    private int round;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        directory = BenchmarkSupport.tempDirectory("sort");
+        int maxPageCount = (int) ((count * 4 + pageSizeInBytes - 1) / pageSizeInBytes);
+        input = new BigArray.Builder(directory.resolve("input").toString()).pageSizeInBytes(pageSizeInBytes).maxPageCount(maxPageCount)
+                .subPageSizeInBytes(1 << 20).maxSubPageInMem(16).jmx(false).build();
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        Random rnd = new Random(round++);
+        for (long i = 0; i < count; i++) {
+            input.putInt(i, rnd.nextInt());
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void dropResult() throws Exception {
+        if (result != null) {
+            result.deletePages();
+            result.close();
+            result = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pool.shutdown();
+        input.close();
+        BenchmarkSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public BigArray sortInt() {
+        result = BigArrayUtils.sortInt(input, count, directory.resolve("result").toString(), "sorted-", pool);
+        return result;
+    }
+}
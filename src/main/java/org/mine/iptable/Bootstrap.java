@@ -1,6 +1,8 @@
 package org.mine.iptable;
 
 import org.mine.iptable.bigtable.BigArray;
+import org.mine.iptable.ip.IpBitmap;
+import org.mine.iptable.ip.IpFileLoader;
 import org.mine.iptable.util.IpUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,8 +17,8 @@ import java.util.List;
  * example outputs:
  * [main] INFO org.mine.iptable.Bootstrap - generating ip
  * [main] INFO org.mine.iptable.Bootstrap - generating ip finished, from 0.0.0.0 to 0.15.66.63
- * [main] INFO org.mine.iptable.Bootstrap - loading ip...(may be a bit slow)
- * [main] INFO org.mine.iptable.Bootstrap - loading ip finished
+ * [main] INFO org.mine.iptable.Bootstrap - loading ip...
+ * [main] INFO org.mine.iptable.ip.IpFileLoader - load .\data\ips.txt finished, lines 1000000, invalid 0, bytes 11472986, elapsed 202 ms, 4932491 lines/s, 54.0 MB/s
  * ip 0.0.0.1 is in blacklist
  * ip 0.0.0.99 is in blacklist
  * ip 0.0.12.12 is in blacklist
@@ -41,6 +43,7 @@ public class Bootstrap {
          */
         BigArray bigArray = new BigArray.Builder(dir).pageSizeInBytes(1024 * 1024).maxPageCount(600).
                 subPageSizeInBytes(128 * 1024).maxSubPageInMem(8).build();
+        IpBitmap ipBitmap = new IpBitmap(bigArray);
         /**
          * generate ip
          * 0.0.0.0 ~ 0.15.66.63
@@ -49,7 +52,7 @@ public class Bootstrap {
         /**
          * load ip into bigarray
          */
-        loadIps(ipsPath, bigArray);
+        loadIps(ipsPath, ipBitmap);
         /**
          * generate ipList
          */
@@ -57,13 +60,13 @@ public class Bootstrap {
         /**
          * determine whether these ip are in blacklist
          */
-        determineBlackIp(ipList, bigArray);
+        determineBlackIp(ipList, ipBitmap);
         /**
          * print memory usage
          */
         stats();
         System.out.println("free mem");
-        bigArray.close();
+        ipBitmap.close();
         bigArray.deletePages();
         stats();
     }
@@ -79,21 +82,19 @@ public class Bootstrap {
         return blackList;
     }
 
-    public static void determineBlackIp(List<String> blackList, BigArray bigArray) {
+    public static void determineBlackIp(List<String> blackList, IpBitmap ipBitmap) {
+        int[] ips = new int[blackList.size()];
+        int i = 0;
         for (String ip: blackList) {
-            int ipBytes = IpUtils.parse(ip);
-            try {
-                int bytesIndex = IpUtils.byteIndicator(ipBytes);
-                int bitIndicator = IpUtils.bitIndicator(ipBytes);
-                byte mask = bigArray.getByte(bytesIndex);
-                boolean inblacklist = (mask & bitIndicator) != 0;
-                if (inblacklist) {
-                    System.out.println("ip " + ip + " is in blacklist");
-                } else {
-                    System.out.println("ip " + ip + " is not in blacklist");
-                }
-            } catch (IndexOutOfBoundsException e) {
-                System.out.println("ip " + ip + " is not in blacklist");
+            ips[i++] = IpUtils.parse(ip);
+        }
+        boolean[] inblacklist = new boolean[ips.length];
+        ipBitmap.containsAll(ips, inblacklist);
+        for (i = 0; i < ips.length; i++) {
+            if (inblacklist[i]) {
+                System.out.println("ip " + IpUtils.ip(ips[i]) + " is in blacklist");
+            } else {
+                System.out.println("ip " + IpUtils.ip(ips[i]) + " is not in blacklist");
             }
         }
     }
@@ -125,23 +126,13 @@ public class Bootstrap {
         return dir + "ips.txt";
     }
 
-    public static void loadIps(String filepath, BigArray bigArray) throws Exception {
-        if (bigArray.pageCount() > 0) {
+    public static void loadIps(String filepath, IpBitmap ipBitmap) throws Exception {
+        if (ipBitmap.bigArray().pageCount() > 0) {
             logger.info("page files already exsit, skip loading ip");
             return;
         }
-        logger.info("loading ip...(may be a bit slow)");
-        RandomAccessFile randomAccessFile = new RandomAccessFile(filepath, "rw");
-        String line;
-        while ((line = randomAccessFile.readLine()) != null) {
-            int ipBytes = IpUtils.parse(line);
-            int bytesIndex = IpUtils.byteIndicator(ipBytes);
-            int bitIndicator = IpUtils.bitIndicator(ipBytes);
-            byte mask = bigArray.getOrPutByte(bytesIndex);
-            mask |= bitIndicator;
-            bigArray.putByte(bytesIndex, mask);
-        }
-        logger.info("loading ip finished");
+        logger.info("loading ip...");
+        IpFileLoader.load(filepath, ipBitmap);
     }
 
     public static void stats() {
@@ -0,0 +1,19 @@
+package org.mine.iptable.bigtable;
+
+/**
+ * live counters of one array, updated by its factory, pages and sub pages. read them through {@link #snapshot()}
+ */
+public final class ArrayMetrics {
+    final CacheStats pages = new CacheStats();
+    final CacheStats subPages = new CacheStats();
+    // fileChannel.map of sub pages and of the whole-page mappings of bulk transfers
+    final LatencyHistogram map = new LatencyHistogram();
+    // Cleaner.clean of the same mappings
+    final LatencyHistogram unmap = new LatencyHistogram();
+    // msync of a mapping or fsync of a page file
+    final LatencyHistogram force = new LatencyHistogram();
+
+    public MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(pages, subPages, map.snapshot(), unmap.snapshot(), force.snapshot());
+    }
+}
@@ -0,0 +1,95 @@
+package org.mine.iptable.bigtable;
+
+import java.util.concurrent.TimeUnit;
+
+class ArrayMetricsBean implements BigArrayMXBean {
+    private final ArrayMetrics metrics;
+
+    ArrayMetricsBean(ArrayMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public long getPageHits() {
+        return metrics.pages.hits();
+    }
+
+    @Override
+    public long getPageMisses() {
+        return metrics.pages.misses();
+    }
+
+    @Override
+    public long getPageEvictions() {
+        return metrics.pages.evictions();
+    }
+
+    @Override
+    public long getSubPageHits() {
+        return metrics.subPages.hits();
+    }
+
+    @Override
+    public long getSubPageMisses() {
+        return metrics.subPages.misses();
+    }
+
+    @Override
+    public long getSubPageEvictions() {
+        return metrics.subPages.evictions();
+    }
+
+    @Override
+    public double getSubPageHitRatio() {
+        return metrics.subPages.hitRatio();
+    }
+
+    @Override
+    public long getMapCount() {
+        return metrics.map.snapshot().count();
+    }
+
+    @Override
+    public long getMapMeanMicros() {
+        return micros(metrics.map.snapshot().meanNanos());
+    }
+
+    @Override
+    public long getMapP99Micros() {
+        return micros(metrics.map.snapshot().percentileNanos(0.99));
+    }
+
+    @Override
+    public long getUnmapCount() {
+        return metrics.unmap.snapshot().count();
+    }
+
+    @Override
+    public long getUnmapMeanMicros() {
+        return micros(metrics.unmap.snapshot().meanNanos());
+    }
+
+    @Override
+    public long getUnmapP99Micros() {
+        return micros(metrics.unmap.snapshot().percentileNanos(0.99));
+    }
+
+    @Override
+    public long getForceCount() {
+        return metrics.force.snapshot().count();
+    }
+
+    @Override
+    public long getForceMeanMicros() {
+        return micros(metrics.force.snapshot().meanNanos());
+    }
+
+    @Override
+    public long getForceP99Micros() {
+        return micros(metrics.force.snapshot().percentileNanos(0.99));
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,94 @@
+package org.mine.iptable.bigtable;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * growable bit set, reads are lock free, updates are rare and serialized
+ */
+final class AtomicBitSet {
+    private final Object lock = new Object();
+    private volatile AtomicLongArray words;
+
+    AtomicBitSet() {
+        this(64);
+    }
+
+    AtomicBitSet(int initialBits) {
+        words = new AtomicLongArray(Math.max(1, (initialBits + 63) >>> 6));
+    }
+
+    boolean get(int index) {
+        AtomicLongArray w = words;
+        int wordIndex = index >>> 6;
+        return wordIndex < w.length() && (w.get(wordIndex) & (1L << index)) != 0;
+    }
+
+    /**
+     * @return true if the bit was clear before
+     */
+    boolean set(int index) {
+        int wordIndex = index >>> 6;
+        long mask = 1L << index;
+        synchronized (lock) {
+            AtomicLongArray w = ensureCapacity(wordIndex);
+            long v = w.get(wordIndex);
+            w.set(wordIndex, v | mask);
+            return (v & mask) == 0;
+        }
+    }
+
+    /**
+     * @return true if the bit was set before
+     */
+    boolean clear(int index) {
+        int wordIndex = index >>> 6;
+        long mask = 1L << index;
+        synchronized (lock) {
+            AtomicLongArray w = words;
+            if (wordIndex >= w.length()) {
+                return false;
+            }
+            long v = w.get(wordIndex);
+            w.set(wordIndex, v & ~mask);
+            return (v & mask) != 0;
+        }
+    }
+
+    /**
+     * @return index of the first set bit at or after fromIndex, -1 if none
+     */
+    int nextSetBit(int fromIndex) {
+        AtomicLongArray w = words;
+        int wordIndex = fromIndex >>> 6;
+        if (wordIndex >= w.length()) {
+            return -1;
+        }
+        long word = w.get(wordIndex) & (-1L << fromIndex);
+        while (true) {
+            if (word != 0) {
+                return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIndex >= w.length()) {
+                return -1;
+            }
+            word = w.get(wordIndex);
+        }
+    }
+
+    private AtomicLongArray ensureCapacity(int wordIndex) {
+        AtomicLongArray w = words;
+        if (wordIndex < w.length()) {
+            return w;
+        }
+        int length = w.length();
+        while (length <= wordIndex) {
+            length <<= 1;
+        }
+        AtomicLongArray grown = new AtomicLongArray(length);
+        for (int i = 0; i < w.length(); i++) {
+            grown.set(i, w.get(i));
+        }
+        words = grown;
+        return grown;
+    }
+}
@@ -1,18 +1,44 @@
 package org.mine.iptable.bigtable;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class BigArray implements AutoCloseable {
+    private static Logger logger = LoggerFactory.getLogger(BigArray.class);
     private final int pageSizeInBytes;
+    private final int pageShift;
     private final int maxPageCount;
     private final AtomicLong currentIndex;
     private final MappedPageFactory mappedPageFactory;
+    // null if not registered
+    private final ObjectName mbeanName;
 
-    private BigArray(int pageSizeInBytes, int maxPageCount, MappedPageFactory pageFactory) {
+    private BigArray(int pageSizeInBytes, int maxPageCount, MappedPageFactory pageFactory, boolean jmx) {
         this.pageSizeInBytes = pageSizeInBytes;
+        this.pageShift = Integer.numberOfTrailingZeros(pageSizeInBytes);
         this.maxPageCount = maxPageCount;
         mappedPageFactory = pageFactory;
-        currentIndex = new AtomicLong(0);
+        currentIndex = new AtomicLong(pageFactory.savedCurrentIndex());
+        mbeanName = jmx ? registerMBean(pageFactory) : null;
+    }
+
+    private static ObjectName registerMBean(MappedPageFactory pageFactory) {
+        try {
+            ObjectName name = new ObjectName("org.mine.iptable:type=BigArray,name=" + ObjectName.quote(pageFactory.name()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new ArrayMetricsBean(pageFactory.metrics()), name);
+            return name;
+        } catch (JMException e) {
+            // e.g. the same files opened twice, metrics() still works
+            logger.warn("register mbean failed for " + pageFactory.name() + ": " + e);
+            return null;
+        }
     }
 
     public int pageSizeInBytes() {
@@ -31,9 +57,32 @@ public class BigArray implements AutoCloseable {
         return mappedPageFactory.pageCount();
     }
 
+    /**
+     * @return true if the metrics are registered as an MXBean
+     */
+    public boolean jmx() {
+        return mbeanName != null;
+    }
+
     @Override
     public void close() throws Exception {
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                logger.warn("unregister mbean failed", e);
+            }
+        }
         mappedPageFactory.close();
+        mappedPageFactory.writeManifest(currentIndex.get());
+    }
+
+    /**
+     * cache hits and misses of both page tiers, and latencies of mapping, unmapping and syncing, since the array
+     * was opened
+     */
+    public MetricsSnapshot metrics() {
+        return mappedPageFactory.metrics().snapshot();
     }
 
     public void deletePages() {
@@ -48,6 +97,15 @@ public class BigArray implements AutoCloseable {
         private int maxPageInMem;
         private int subPageSizeInBytes;
         private int maxSubPageInMem;
+        private Durability durability;
+        private boolean wholePageMapping;
+        private boolean preload;
+        private int readAheadDepth;
+        private Executor readAheadExecutor;
+        private EvictionPolicy.Type evictionPolicy;
+        private MemoryManager memoryManager;
+        private boolean jmx;
+        private boolean readOnly;
 
         public Builder(String dir) {
             this(dir, "");
@@ -61,6 +119,14 @@ public class BigArray implements AutoCloseable {
             this.maxPageInMem = -1;
             this.subPageSizeInBytes = 1024 * 1024; // 1MB
             this.maxSubPageInMem = 10;
+            this.durability = Durability.SYNC_ON_EVICT;
+            this.wholePageMapping = false;
+            this.preload = false;
+            this.readAheadDepth = 0;
+            this.evictionPolicy = EvictionPolicy.Type.CLOCK;
+            this.memoryManager = MemoryManager.global();
+            this.jmx = true;
+            this.readOnly = false;
         }
 
         public Builder maxPageCount(int maxPageCount) {
@@ -88,28 +154,123 @@ public class BigArray implements AutoCloseable {
             return this;
         }
 
+        /**
+         * when written pages are flushed to disk, flushing on eviction by default
+         */
+        public Builder durability(Durability durability) {
+            this.durability = durability;
+            return this;
+        }
+
+        /**
+         * map every page file once, in full, and keep it mapped while the page is open. subPageSizeInBytes and
+         * maxSubPageInMem are ignored, which parts stay in memory is left to the os page cache
+         */
+        public Builder wholePageMapping(boolean wholePageMapping) {
+            this.wholePageMapping = wholePageMapping;
+            return this;
+        }
+
+        /**
+         * read the existing content of a page into memory when it is opened, see MappedByteBuffer.load()
+         */
+        public Builder preload(boolean preload) {
+            this.preload = preload;
+            return this;
+        }
+
+        /**
+         * map up to depth sub pages ahead of a sequential or strided reader in the background, 0 to turn it off.
+         * at most half of maxSubPageInMem is prefetched
+         */
+        public Builder readAhead(int depth) {
+            return readAhead(depth, null);
+        }
+
+        /**
+         * @param executor runs the prefetches, a daemon thread owned by the array if null
+         */
+        public Builder readAhead(int depth, Executor executor) {
+            this.readAheadDepth = depth;
+            this.readAheadExecutor = executor;
+            return this;
+        }
+
+        /**
+         * which pages and sub pages leave memory first, CLOCK by default. TWO_QUEUE keeps scans from pushing out
+         * pages hit by lookups
+         */
+        public Builder evictionPolicy(EvictionPolicy.Type evictionPolicy) {
+            this.evictionPolicy = evictionPolicy;
+            return this;
+        }
+
+        /**
+         * byte budget for the mapped sub pages, shared with the other arrays using the same manager. the
+         * process-wide MemoryManager.global() by default
+         */
+        public Builder memoryManager(MemoryManager memoryManager) {
+            this.memoryManager = memoryManager;
+            return this;
+        }
+
+        /**
+         * register the metrics as an MXBean, see BigArrayMXBean. on by default
+         */
+        public Builder jmx(boolean jmx) {
+            this.jmx = jmx;
+            return this;
+        }
+
+        /**
+         * open the existing page files read only and map them READ_ONLY, so several processes can share them through
+         * the os page cache. writes and page creation throw UnsupportedOperationException, nothing is ever forced
+         */
+        public Builder readOnly() {
+            this.readOnly = true;
+            return this;
+        }
+
         public BigArray build() {
-            MappedPageFactory mappedPageFactory = new MappedPageFactory(dir, dataFilePrefix, pageSizeInBytes, maxPageInMem, subPageSizeInBytes, maxSubPageInMem);
-            return new BigArray(mappedPageFactory.pageSizeInBytes(), maxPageCount, mappedPageFactory);
+            int subPageSizeInBytes = wholePageMapping ? pageSizeInBytes : this.subPageSizeInBytes;
+            int maxSubPageInMem = wholePageMapping ? -1 : this.maxSubPageInMem;
+            MappedPageFactory mappedPageFactory = new MappedPageFactory(dir, dataFilePrefix, pageSizeInBytes, maxPageInMem, subPageSizeInBytes, maxSubPageInMem,
+                    durability, preload, ReadAhead.of(readAheadDepth, readAheadExecutor), evictionPolicy, memoryManager, readOnly);
+            return new BigArray(mappedPageFactory.pageSizeInBytes(), maxPageCount, mappedPageFactory, jmx);
         }
     }
 
     public int getInt(long index) {
         index *= 4;
         checkIndex(index);
-        return mappedPageFactory.getPage(getPageIndex(index)).getInt(getIndexInPage(index));
+        PageCache.Entry<IMappedPage> page = mappedPageFactory.acquirePage(getPageIndex(index));
+        try {
+            return page.value().getInt(getIndexInPage(index));
+        } finally {
+            page.release();
+        }
     }
 
     public int getOrPutInt(long index) {
         index *= 4;
         checkIndex(index);
-        return mappedPageFactory.getOrCreatePage(getPageIndex(index)).getInt(getIndexInPage(index));
+        PageCache.Entry<IMappedPage> page = mappedPageFactory.acquireOrCreatePage(getPageIndex(index));
+        try {
+            return page.value().getInt(getIndexInPage(index));
+        } finally {
+            page.release();
+        }
     }
 
     public void putInt(long index, int value) {
         index *= 4;
         checkIndex(index);
-        mappedPageFactory.getOrCreatePage(getPageIndex(index)).putInt(getIndexInPage(index), value);
+        PageCache.Entry<IMappedPage> page = mappedPageFactory.acquireOrCreatePage(getPageIndex(index));
+        try {
+            page.value().putInt(getIndexInPage(index), value);
+        } finally {
+            page.release();
+        }
     }
 
     public void putInt(int value) {
@@ -119,17 +280,48 @@ public class BigArray implements AutoCloseable {
 
     public byte getByte(long index) {
         checkIndex(index);
-        return mappedPageFactory.getPage(getPageIndex(index)).getByte(getIndexInPage(index));
+        PageCache.Entry<IMappedPage> page = mappedPageFactory.acquirePage(getPageIndex(index));
+        try {
+            return page.value().getByte(getIndexInPage(index));
+        } finally {
+            page.release();
+        }
+    }
+
+    /**
+     * read without creating anything, defaultValue is returned if the page or sub page holding index was never written
+     */
+    public byte getByteOrDefault(long index, byte defaultValue) {
+        checkIndex(index);
+        PageCache.Entry<IMappedPage> page = mappedPageFactory.acquirePageIfExists(getPageIndex(index));
+        if (page == null) {
+            return defaultValue;
+        }
+        try {
+            return ((CompoundMappedPage) page.value()).getByteOrDefault(getIndexInPage(index), defaultValue);
+        } finally {
+            page.release();
+        }
     }
 
     public byte getOrPutByte(long index) {
         checkIndex(index);
-        return mappedPageFactory.getOrCreatePage(getPageIndex(index)).getByte(getIndexInPage(index));
+        PageCache.Entry<IMappedPage> page = mappedPageFactory.acquireOrCreatePage(getPageIndex(index));
+        try {
+            return page.value().getByte(getIndexInPage(index));
+        } finally {
+            page.release();
+        }
     }
 
     public void putByte(long index, byte value) {
         checkIndex(index);
-        mappedPageFactory.getOrCreatePage(getPageIndex(index)).putByte(getIndexInPage(index), value);
+        PageCache.Entry<IMappedPage> page = mappedPageFactory.acquireOrCreatePage(getPageIndex(index));
+        try {
+            page.value().putByte(getIndexInPage(index), value);
+        } finally {
+            page.release();
+        }
     }
 
     public void putByte(byte value) {
@@ -137,23 +329,356 @@ public class BigArray implements AutoCloseable {
         putByte(index, value);
     }
 
+    public long getLong(long index) {
+        index *= 8;
+        checkIndex(index);
+        PageCache.Entry<IMappedPage> page = mappedPageFactory.acquirePage(getPageIndex(index));
+        try {
+            return page.value().getLong(getIndexInPage(index));
+        } finally {
+            page.release();
+        }
+    }
+
+    public void putLong(long index, long value) {
+        index *= 8;
+        checkIndex(index);
+        PageCache.Entry<IMappedPage> page = mappedPageFactory.acquireOrCreatePage(getPageIndex(index));
+        try {
+            page.value().putLong(getIndexInPage(index), value);
+        } finally {
+            page.release();
+        }
+    }
+
+    public boolean compareAndSetInt(long index, int expect, int update) {
+        index *= 4;
+        checkIndex(index);
+        PageCache.Entry<IMappedPage> page = mappedPageFactory.acquireOrCreatePage(getPageIndex(index));
+        try {
+            return page.value().compareAndSetInt(getIndexInPage(index), expect, update);
+        } finally {
+            page.release();
+        }
+    }
+
+    public int getAndAddInt(long index, int delta) {
+        index *= 4;
+        checkIndex(index);
+        PageCache.Entry<IMappedPage> page = mappedPageFactory.acquireOrCreatePage(getPageIndex(index));
+        try {
+            return page.value().getAndAddInt(getIndexInPage(index), delta);
+        } finally {
+            page.release();
+        }
+    }
+
+    /**
+     * atomically set bit (bitIndex &amp; 7) of byte (bitIndex &gt;&gt;&gt; 3)
+     * @return true if the bit was clear before
+     */
+    public boolean setBitAtomic(long bitIndex) {
+        return setBitsAtomic(bitIndex >>> 3, (byte) (1 << (bitIndex & 7)));
+    }
+
+    /**
+     * @return true if the bit was set before
+     */
+    public boolean clearBitAtomic(long bitIndex) {
+        return clearBitsAtomic(bitIndex >>> 3, (byte) (1 << (bitIndex & 7)));
+    }
+
+    /**
+     * atomically or bits into the byte at index
+     * @return true if any of the bits was clear before
+     */
+    public boolean setBitsAtomic(long index, byte bits) {
+        checkIndex(index);
+        PageCache.Entry<IMappedPage> page = mappedPageFactory.acquireOrCreatePage(getPageIndex(index));
+        try {
+            return page.value().setBitsAtomic(getIndexInPage(index), bits);
+        } finally {
+            page.release();
+        }
+    }
+
+    /**
+     * atomically clear bits of the byte at index, absent pages are not created
+     * @return true if any of the bits was set before
+     */
+    public boolean clearBitsAtomic(long index, byte bits) {
+        checkIndex(index);
+        PageCache.Entry<IMappedPage> page = mappedPageFactory.acquirePageIfExists(getPageIndex(index));
+        if (page == null) {
+            return false;
+        }
+        try {
+            return page.value().clearBitsAtomic(getIndexInPage(index), bits);
+        } finally {
+            page.release();
+        }
+    }
+
+    public void getBytes(long index, byte[] dst, int offset, int length) {
+        checkBounds(dst.length, offset, length);
+        forEachPage(index, length, 1, false, (page, indexInPage, off, n) -> page.getBytes(indexInPage, dst, offset + off, n));
+    }
+
+    public void putBytes(long index, byte[] src, int offset, int length) {
+        checkBounds(src.length, offset, length);
+        forEachPage(index, length, 1, true, (page, indexInPage, off, n) -> page.putBytes(indexInPage, src, offset + off, n));
+    }
+
+    public void getInts(long index, int[] dst, int offset, int length) {
+        checkBounds(dst.length, offset, length);
+        forEachPage(index * 4, length, 4, false, (page, indexInPage, off, n) -> page.getInts(indexInPage, dst, offset + off, n));
+    }
+
+    public void putInts(long index, int[] src, int offset, int length) {
+        checkBounds(src.length, offset, length);
+        forEachPage(index * 4, length, 4, true, (page, indexInPage, off, n) -> page.putInts(indexInPage, src, offset + off, n));
+    }
+
+    public void getLongs(long index, long[] dst, int offset, int length) {
+        checkBounds(dst.length, offset, length);
+        forEachPage(index * 8, length, 8, false, (page, indexInPage, off, n) -> page.getLongs(indexInPage, dst, offset + off, n));
+    }
+
+    public void putLongs(long index, long[] src, int offset, int length) {
+        checkBounds(src.length, offset, length);
+        forEachPage(index * 8, length, 8, true, (page, indexInPage, off, n) -> page.putLongs(indexInPage, src, offset + off, n));
+    }
+
+    /**
+     * set [index, index + length) to value, pages and sub pages in the range are created as needed
+     */
+    public void fill(long index, long length, byte value) {
+        if (length <= 0) {
+            return;
+        }
+        checkIndex(index);
+        checkIndex(index + length - 1);
+        while (length > 0) {
+            int indexInPage = getIndexInPage(index);
+            int n = (int) Math.min(length, pageSizeInBytes - indexInPage);
+            PageCache.Entry<IMappedPage> page = mappedPageFactory.acquireOrCreatePage(getPageIndex(index));
+            try {
+                page.value().fill(indexInPage, n, value);
+            } finally {
+                page.release();
+            }
+            index += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * zero [index, index + length) without materialising pages or sub pages that were never written
+     */
+    public void clear(long index, long length) {
+        if (length <= 0) {
+            return;
+        }
+        checkIndex(index);
+        checkIndex(index + length - 1);
+        while (length > 0) {
+            int indexInPage = getIndexInPage(index);
+            int n = (int) Math.min(length, pageSizeInBytes - indexInPage);
+            PageCache.Entry<IMappedPage> page = mappedPageFactory.acquirePageIfExists(getPageIndex(index));
+            if (page != null) {
+                try {
+                    ((CompoundMappedPage) page.value()).clear(indexInPage, n);
+                } finally {
+                    page.release();
+                }
+            }
+            index += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * like getLongs, but pages and sub pages that were never written read as zero and are not created
+     */
+    public void getLongsOrZero(long index, long[] dst, int offset, int length) {
+        checkBounds(dst.length, offset, length);
+        if (length == 0) {
+            return;
+        }
+        index *= 8;
+        checkIndex(index);
+        checkIndex(index + (long) length * 8 - 1);
+        int done = 0;
+        while (done < length) {
+            int indexInPage = getIndexInPage(index);
+            int n = Math.min(length - done, (pageSizeInBytes - indexInPage) / 8);
+            PageCache.Entry<IMappedPage> page = mappedPageFactory.acquirePageIfExists(getPageIndex(index));
+            if (page == null) {
+                Arrays.fill(dst, offset + done, offset + done + n, 0L);
+            } else {
+                try {
+                    ((CompoundMappedPage) page.value()).getLongsOrZero(indexInPage, dst, offset + done, n);
+                } finally {
+                    page.release();
+                }
+            }
+            index += (long) n * 8;
+            done += n;
+        }
+    }
+
+    /**
+     * split a range starting at byte index into per page chunks, each page is resolved once
+     */
+    private void forEachPage(long index, int length, int elementSize, boolean create, PageRange range) {
+        if (length == 0) {
+            return;
+        }
+        checkIndex(index);
+        checkIndex(index + (long) length * elementSize - 1);
+        int done = 0;
+        while (done < length) {
+            int pageIndex = getPageIndex(index);
+            int indexInPage = getIndexInPage(index);
+            int n = Math.min(length - done, (pageSizeInBytes - indexInPage) / elementSize);
+            if (n == 0) {
+                throw new IllegalArgumentException("element at " + index + " crosses page boundary, pageSizeInBytes " + pageSizeInBytes);
+            }
+            PageCache.Entry<IMappedPage> page = create ? mappedPageFactory.acquireOrCreatePage(pageIndex) : mappedPageFactory.acquirePage(pageIndex);
+            try {
+                range.apply(page.value(), indexInPage, done, n);
+            } finally {
+                page.release();
+            }
+            index += (long) n * elementSize;
+            done += n;
+        }
+    }
+
+    private interface PageRange {
+        void apply(IMappedPage page, int indexInPage, int offset, int length);
+    }
+
+    private static void checkBounds(int arrayLength, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > arrayLength || offset + length < 0) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + ", array length " + arrayLength);
+        }
+    }
+
+    // page size is always a power of two, see MappedPageFactory
     public int getPageIndex(long index) {
-        return (int)(index / pageSizeInBytes);
+        return (int)(index >>> pageShift);
     }
 
     public int getIndexInPage(long index) {
-        return (int)(index % pageSizeInBytes);
+        return (int)(index & (pageSizeInBytes - 1));
+    }
+
+    /**
+     * a cursor keeps the current sub page pinned and only goes back to the page caches when it leaves it,
+     * sequential and clustered access is served straight from the mapped buffer. not thread safe, use one per thread
+     */
+    public BigArrayCursor cursor() {
+        return new BigArrayCursor(this, mappedPageFactory);
+    }
+
+    /**
+     * flush every write made so far to disk, whatever the durability mode
+     */
+    public void force() {
+        mappedPageFactory.force();
+        mappedPageFactory.writeManifest(currentIndex.get());
+    }
+
+    /**
+     * modification clock, every page remembers the value of its last modification. the value is a token to pass
+     * back as sinceVersion, it stays valid across a close and reopen but not across a crash
+     */
+    public long version() {
+        return mappedPageFactory.version();
+    }
+
+    /**
+     * @return pages modified since the array was opened
+     */
+    public int[] dirtyPages() {
+        return dirtyPages(mappedPageFactory.openedVersion());
+    }
+
+    /**
+     * @return pages modified after sinceVersion, every existing page if sinceVersion is negative or was not handed
+     * out since the last clean close
+     */
+    public int[] dirtyPages(long sinceVersion) {
+        return mappedPageFactory.modifiedPages(sinceVersion);
+    }
+
+    /**
+     * start a sync: returns the pages modified after sinceVersion and the version to pass next time. writes racing
+     * the sync may make a page show up again in the next one, but never make it missing
+     */
+    public DirtyPages collectDirtyPages(long sinceVersion) {
+        return mappedPageFactory.collectModifiedPages(sinceVersion);
+    }
+
+    /**
+     * read the file of an existing page directly, e.g. to transfer it without copying through the heap
+     */
+    public void readPageFile(int pageIndex, PageFileAccess access) {
+        mappedPageFactory.readPageFile(pageIndex, access);
+    }
+
+    /**
+     * replace the file of a page directly. the new file is moved in whole, a reader sees the old or the new page,
+     * writes by other threads to the page meanwhile are lost
+     */
+    public void writePageFile(int pageIndex, PageFileAccess access) {
+        if (pageIndex >= maxPageCount) {
+            throw new IllegalArgumentException("index overflow, maxPageCount " + maxPageCount + ", required page index " + pageIndex);
+        }
+        mappedPageFactory.writePageFile(pageIndex, access);
+    }
+
+    public boolean pageExists(int pageIndex) {
+        return mappedPageFactory.pageExists(pageIndex);
+    }
+
+    /**
+     * @return pinned page, caller must {@link PageCache.Entry#release()} it
+     */
+    public PageCache.Entry<IMappedPage> acquireMappedPage(int pageIndex) {
+        return mappedPageFactory.acquirePage(pageIndex);
+    }
+
+    /**
+     * @return pinned page, caller must {@link PageCache.Entry#release()} it
+     */
+    public PageCache.Entry<IMappedPage> acquireMappedPageOrCreate(int pageIndex) {
+        if (pageIndex >= maxPageCount) {
+            throw new IllegalArgumentException("index overflow, maxPageCount " + maxPageCount + ", required page index " + pageIndex);
+        }
+        return mappedPageFactory.acquireOrCreatePage(pageIndex);
     }
 
+    /**
+     * @deprecated unpinned, the page may be unmapped while in use once maxPageInMem is bounded, use
+     * {@link #acquireMappedPage(int)}
+     */
+    @Deprecated
     public IMappedPage getMappedPage(int pageIndex) {
         return mappedPageFactory.getPage(pageIndex);
     }
 
+    /**
+     * @deprecated unpinned, the page may be unmapped while in use once maxPageInMem is bounded, use
+     * {@link #acquireMappedPageOrCreate(int)}
+     */
+    @Deprecated
     public IMappedPage getMappedPageOrCreate(int pageIndex) {
         return mappedPageFactory.getOrCreatePage(pageIndex);
     }
 
-    private void checkIndex(long index) {
+    void checkIndex(long index) {
         if (getPageIndex(index) + 1 > maxPageCount) {
             throw new IllegalArgumentException("index overflow, maxPageCount " + maxPageCount + ", required page index " + getPageIndex(index));
         }
@@ -0,0 +1,161 @@
+package org.mine.iptable.bigtable;
+
+import java.nio.ByteBuffer;
+
+public class BigArrayCursor implements AutoCloseable {
+    private final BigArray bigArray;
+    private final MappedPageFactory mappedPageFactory;
+    private final int pageShift;
+    private final int subPageShift;
+    private final int subPageMask;
+    private PageCache.Entry<IMappedPage> page;
+    private PageCache.Entry<IMappedPage> subPage;
+    private ByteBuffer buffer;
+    private MappedPage mappedPage;
+    // byte range [base, limit) of the pinned sub page, empty until the first access
+    private long base = 0;
+    private long limit = 0;
+
+    BigArrayCursor(BigArray bigArray, MappedPageFactory mappedPageFactory) {
+        this.bigArray = bigArray;
+        this.mappedPageFactory = mappedPageFactory;
+        this.pageShift = Integer.numberOfTrailingZeros(mappedPageFactory.pageSizeInBytes());
+        this.subPageShift = Integer.numberOfTrailingZeros(mappedPageFactory.subPageSizeInBytes());
+        this.subPageMask = (1 << (pageShift - subPageShift)) - 1;
+    }
+
+    public byte getByte(long index) {
+        if (index < base || index >= limit) {
+            seek(index, false);
+        }
+        return buffer.get((int) (index - base));
+    }
+
+    /**
+     * like {@link BigArray#getByteOrDefault(long, byte)}, nothing is created for absent pages
+     */
+    public byte getByteOrDefault(long index, byte defaultValue) {
+        if ((index < base || index >= limit) && !seekIfExists(index)) {
+            return defaultValue;
+        }
+        return buffer.get((int) (index - base));
+    }
+
+    public void putByte(long index, byte value) {
+        if (index < base || index >= limit) {
+            seek(index, true);
+        }
+        buffer.put((int) (index - base), value);
+        mappedPage.markModified();
+    }
+
+    /**
+     * atomically or bits into the byte at index, see {@link BigArray#setBitsAtomic(long, byte)}
+     */
+    public boolean setBitsAtomic(long index, byte bits) {
+        if (index < base || index >= limit) {
+            seek(index, true);
+        }
+        return mappedPage.setBitsAtomic((int) (index - base), bits);
+    }
+
+    public int getInt(long index) {
+        index <<= 2;
+        if (index < base || index + 4 > limit) {
+            seek(index, false);
+        }
+        return buffer.getInt((int) (index - base));
+    }
+
+    public void putInt(long index, int value) {
+        index <<= 2;
+        if (index < base || index + 4 > limit) {
+            seek(index, true);
+        }
+        buffer.putInt((int) (index - base), value);
+        mappedPage.markModified();
+    }
+
+    public long getLong(long index) {
+        index <<= 3;
+        if (index < base || index + 8 > limit) {
+            seek(index, false);
+        }
+        return buffer.getLong((int) (index - base));
+    }
+
+    public void putLong(long index, long value) {
+        index <<= 3;
+        if (index < base || index + 8 > limit) {
+            seek(index, true);
+        }
+        buffer.putLong((int) (index - base), value);
+        mappedPage.markModified();
+    }
+
+    private void seek(long index, boolean create) {
+        bigArray.checkIndex(index);
+        release();
+        int pageIndex = (int) (index >>> pageShift);
+        page = create ? mappedPageFactory.acquireOrCreatePage(pageIndex) : mappedPageFactory.acquirePage(pageIndex);
+        try {
+            subPage = ((CompoundMappedPage) page.value()).acquireSubPage(subPageIndex(index));
+        } catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+        window(index);
+    }
+
+    private boolean seekIfExists(long index) {
+        bigArray.checkIndex(index);
+        release();
+        page = mappedPageFactory.acquirePageIfExists((int) (index >>> pageShift));
+        if (page == null) {
+            return false;
+        }
+        try {
+            subPage = ((CompoundMappedPage) page.value()).acquireSubPageIfExists(subPageIndex(index));
+        } catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+        if (subPage == null) {
+            release();
+            return false;
+        }
+        window(index);
+        return true;
+    }
+
+    private int subPageIndex(long index) {
+        return (int) (index >>> subPageShift) & subPageMask;
+    }
+
+    private void window(long index) {
+        mappedPage = (MappedPage) subPage.value();
+        buffer = mappedPage.buffer();
+        base = (index >>> subPageShift) << subPageShift;
+        // short for the last sub page of a read only file
+        limit = base + buffer.capacity();
+    }
+
+    private void release() {
+        base = limit = 0;
+        buffer = null;
+        mappedPage = null;
+        if (subPage != null) {
+            subPage.release();
+            subPage = null;
+        }
+        if (page != null) {
+            page.release();
+            page = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+}
@@ -0,0 +1,39 @@
+package org.mine.iptable.bigtable;
+
+/**
+ * metrics of one array over JMX, registered as org.mine.iptable:type=BigArray,name=&lt;page file path prefix&gt;.
+ * latencies are in microseconds
+ */
+public interface BigArrayMXBean {
+    long getPageHits();
+
+    long getPageMisses();
+
+    long getPageEvictions();
+
+    long getSubPageHits();
+
+    long getSubPageMisses();
+
+    long getSubPageEvictions();
+
+    double getSubPageHitRatio();
+
+    long getMapCount();
+
+    long getMapMeanMicros();
+
+    long getMapP99Micros();
+
+    long getUnmapCount();
+
+    long getUnmapMeanMicros();
+
+    long getUnmapP99Micros();
+
+    long getForceCount();
+
+    long getForceMeanMicros();
+
+    long getForceP99Micros();
+}
@@ -0,0 +1,499 @@
+package org.mine.iptable.bigtable;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * bit set over a BigArray, bit i is bit (i &amp; 7) of byte (i &gt;&gt;&gt; 3) as in IpBitmap. scans and bulk operations
+ * read 64 bit words a chunk at a time and skip pages and sub pages that were never written. single bit updates are
+ * atomic, bulk operations are not atomic against concurrent updates.
+ * rank and select use the number of set bits of every block of 4096 bits, kept per page in a fenwick tree. a page is
+ * counted on first use, single bit updates adjust its tree by one and bulk operations drop the trees of the pages
+ * they wrote, which are counted again when next used. changes made to the BigArray directly are not noticed
+ */
+public class BigBitSet implements AutoCloseable {
+    private static final int BLOCK_WORDS = 64;
+    // a chunk lies in one sub page, so reading it maps at most one
+    private static final int MAX_CHUNK_WORDS = 8192;
+    private final BigArray bigArray;
+    private final long sizeInBits;
+    private final int chunkWords;
+    private final int blockWords;
+    private final long wordsPerPage;
+    // by page index, grown on demand and replaced as a whole so readers need no lock
+    private volatile PageCounts[] pageCounts = new PageCounts[0];
+
+    public BigBitSet(BigArray bigArray) {
+        this.bigArray = bigArray;
+        long bytes = (long) bigArray.maxPageCount() * bigArray.pageSizeInBytes();
+        this.sizeInBits = Math.min(bytes, Long.MAX_VALUE >>> 3) << 3;
+        this.chunkWords = Math.max(1, Math.min(MAX_CHUNK_WORDS, bigArray.subPageSizeInBytes() / 8));
+        this.blockWords = Math.min(BLOCK_WORDS, chunkWords);
+        this.wordsPerPage = bigArray.pageSizeInBytes() / 8;
+    }
+
+    public BigArray bigArray() {
+        return bigArray;
+    }
+
+    /**
+     * @return number of bits the set can hold
+     */
+    public long size() {
+        return sizeInBits;
+    }
+
+    public boolean get(long bitIndex) {
+        checkBit(bitIndex);
+        return (bigArray.getByteOrDefault(bitIndex >>> 3, (byte) 0) & (1 << (bitIndex & 7))) != 0;
+    }
+
+    /**
+     * @return true if the bit was clear before
+     */
+    public boolean set(long bitIndex) {
+        checkBit(bitIndex);
+        PageCounts counts = pageCounts(bitIndex);
+        counts.started.increment();
+        try {
+            if (bigArray.setBitAtomic(bitIndex)) {
+                counts.add(blockInPage(bitIndex), 1);
+                return true;
+            }
+            return false;
+        } finally {
+            counts.finished.increment();
+        }
+    }
+
+    /**
+     * @return true if the bit was set before
+     */
+    public boolean clear(long bitIndex) {
+        checkBit(bitIndex);
+        PageCounts counts = pageCounts(bitIndex);
+        counts.started.increment();
+        try {
+            if (bigArray.clearBitAtomic(bitIndex)) {
+                counts.add(blockInPage(bitIndex), -1);
+                return true;
+            }
+            return false;
+        } finally {
+            counts.finished.increment();
+        }
+    }
+
+    /**
+     * @return the new value of the bit
+     */
+    public boolean flip(long bitIndex) {
+        checkBit(bitIndex);
+        PageCounts counts = pageCounts(bitIndex);
+        counts.started.increment();
+        try {
+            // each attempt is one atomic transition, it only fails if another thread changed the bit in between
+            for (;;) {
+                if (get(bitIndex)) {
+                    if (bigArray.clearBitAtomic(bitIndex)) {
+                        counts.add(blockInPage(bitIndex), -1);
+                        return false;
+                    }
+                } else if (bigArray.setBitAtomic(bitIndex)) {
+                    counts.add(blockInPage(bitIndex), 1);
+                    return true;
+                }
+            }
+        } finally {
+            counts.finished.increment();
+        }
+    }
+
+    /**
+     * @return index of the first set bit at or after fromIndex, -1 if there is none
+     */
+    public long nextSetBit(long fromIndex) {
+        if (fromIndex < 0) {
+            throw new IndexOutOfBoundsException("fromIndex < 0: " + fromIndex);
+        }
+        long fromWord = fromIndex >>> 6;
+        long endWord = extentInWords();
+        long[] words = new long[chunkWords];
+        for (long start = fromWord - fromWord % chunkWords; start < endWord; start += chunkWords) {
+            if (!readChunk(start, words, chunkWords)) {
+                continue;
+            }
+            for (int i = start < fromWord ? (int) (fromWord - start) : 0; i < chunkWords; i++) {
+                long word = Long.reverseBytes(words[i]);
+                if (start + i == fromWord) {
+                    word &= -1L << fromIndex;
+                }
+                if (word != 0) {
+                    return ((start + i) << 6) + Long.numberOfTrailingZeros(word);
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return index of the first clear bit at or after fromIndex, -1 if every bit up to {@link #size()} is set
+     */
+    public long nextClearBit(long fromIndex) {
+        if (fromIndex < 0) {
+            throw new IndexOutOfBoundsException("fromIndex < 0: " + fromIndex);
+        }
+        long fromWord = fromIndex >>> 6;
+        long endWord = extentInWords();
+        long[] words = new long[chunkWords];
+        for (long start = fromWord - fromWord % chunkWords; start < endWord; start += chunkWords) {
+            if (!readChunk(start, words, chunkWords)) {
+                return Math.max(fromIndex, start << 6);
+            }
+            for (int i = start < fromWord ? (int) (fromWord - start) : 0; i < chunkWords; i++) {
+                long word = ~Long.reverseBytes(words[i]);
+                if (start + i == fromWord) {
+                    word &= -1L << fromIndex;
+                }
+                if (word != 0) {
+                    return ((start + i) << 6) + Long.numberOfTrailingZeros(word);
+                }
+            }
+        }
+        long next = Math.max(fromIndex, endWord << 6);
+        return next < sizeInBits ? next : -1;
+    }
+
+    /**
+     * @return number of set bits
+     */
+    public long cardinality() {
+        long endWord = extentInWords();
+        long[] words = new long[chunkWords];
+        long count = 0;
+        for (long start = 0; start < endWord; start += chunkWords) {
+            if (readChunk(start, words, chunkWords)) {
+                for (long word: words) {
+                    count += Long.bitCount(word);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return number of set bits before bitIndex
+     */
+    public long rank(long bitIndex) {
+        if (bitIndex < 0 || bitIndex > sizeInBits) {
+            throw new IndexOutOfBoundsException("bitIndex " + bitIndex + ", size " + sizeInBits);
+        }
+        long word = bitIndex >>> 6;
+        long page = word / wordsPerPage;
+        int pages = bigArray.pageCount();
+        long rank = 0;
+        for (int p = 0; p < Math.min(page, pages); p++) {
+            rank += pageIndex(p).total();
+        }
+        if (page >= pages) {
+            return rank;
+        }
+        int block = (int) ((word - page * wordsPerPage) / blockWords);
+        rank += pageIndex((int) page).prefix(block);
+        long start = page * wordsPerPage + (long) block * blockWords;
+        long[] words = new long[blockWords];
+        if (!readChunk(start, words, blockWords)) {
+            return rank;
+        }
+        int inBlock = (int) (word - start);
+        for (int i = 0; i < inBlock; i++) {
+            rank += Long.bitCount(words[i]);
+        }
+        return rank + Long.bitCount(Long.reverseBytes(words[inBlock]) & ((1L << bitIndex) - 1));
+    }
+
+    /**
+     * @param k 0 for the first set bit
+     * @return index of the k-th set bit, -1 if there are not that many
+     */
+    public long select(long k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k < 0: " + k);
+        }
+        int pages = bigArray.pageCount();
+        for (int page = 0; page < pages; page++) {
+            PageIndex index = pageIndex(page);
+            long total = index.total();
+            if (k >= total) {
+                k -= total;
+                continue;
+            }
+            int block = index.floorBlock(k);
+            long remaining = k - index.prefix(block);
+            long start = page * wordsPerPage + (long) block * blockWords;
+            long[] words = new long[blockWords];
+            readChunk(start, words, blockWords);
+            for (int i = 0; i < blockWords; i++) {
+                long word = Long.reverseBytes(words[i]);
+                int count = Long.bitCount(word);
+                if (remaining < count) {
+                    for (; remaining > 0; remaining--) {
+                        word &= word - 1;
+                    }
+                    return ((start + i) << 6) + Long.numberOfTrailingZeros(word);
+                }
+                remaining -= count;
+            }
+            throw new IllegalStateException("set changed while selecting bit " + k);
+        }
+        return -1;
+    }
+
+    /**
+     * keep only the bits also set in other
+     */
+    public void and(BigBitSet other) {
+        combine(other, (a, b) -> a & b, true, false);
+    }
+
+    public void or(BigBitSet other) {
+        combine(other, (a, b) -> a | b, false, true);
+    }
+
+    /**
+     * clear the bits set in other
+     */
+    public void andNot(BigBitSet other) {
+        combine(other, (a, b) -> a & ~b, true, true);
+    }
+
+    public void xor(BigBitSet other) {
+        combine(other, (a, b) -> a ^ b, false, true);
+    }
+
+    /**
+     * apply op chunk by chunk, only chunks that change are written
+     * @param zeroKeepsThis a chunk this set never wrote stays clear
+     * @param zeroKeepsOther a chunk other never wrote leaves this one as it is
+     */
+    private void combine(BigBitSet other, LongBinaryOperator op, boolean zeroKeepsThis, boolean zeroKeepsOther) {
+        long otherEnd = other.extentInWords();
+        if (!zeroKeepsThis && otherEnd << 6 > sizeInBits) {
+            throw new IllegalArgumentException("other set has pages beyond size " + sizeInBits);
+        }
+        int n = Math.min(chunkWords, other.chunkWords);
+        long endWord = zeroKeepsThis ? extentInWords() : otherEnd;
+        long[] words = new long[n];
+        long[] otherWords = new long[n];
+        for (long start = 0; start < endWord; start += n) {
+            boolean present = readChunk(start, words, n);
+            if (!present && zeroKeepsThis) {
+                continue;
+            }
+            if (!(start < otherEnd && other.readChunk(start, otherWords, n))) {
+                if (zeroKeepsOther) {
+                    continue;
+                }
+                // nothing of other here, and clears the chunk without creating anything
+                PageCounts counts = pageCounts(start << 6);
+                counts.started.increment();
+                try {
+                    bigArray.clear(start * 8, n * 8L);
+                    counts.index = null;
+                } finally {
+                    counts.finished.increment();
+                }
+                continue;
+            }
+            boolean changed = false;
+            for (int i = 0; i < n; i++) {
+                long word = op.applyAsLong(words[i], otherWords[i]);
+                if (word != words[i]) {
+                    words[i] = word;
+                    changed = true;
+                }
+            }
+            if (changed) {
+                PageCounts counts = pageCounts(start << 6);
+                counts.started.increment();
+                try {
+                    bigArray.putLongs(start, words, 0, n);
+                    counts.index = null;
+                } finally {
+                    counts.finished.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * read words [start, start + n) of one sub page
+     * @return false, with words zeroed, if the page holding them was never written
+     */
+    private boolean readChunk(long start, long[] words, int n) {
+        if (!bigArray.pageExists(bigArray.getPageIndex(start * 8))) {
+            Arrays.fill(words, 0, n, 0L);
+            return false;
+        }
+        bigArray.getLongsOrZero(start, words, 0, n);
+        return true;
+    }
+
+    // words up to the end of the last page, nothing is set beyond
+    private long extentInWords() {
+        return (long) bigArray.pageCount() * (bigArray.pageSizeInBytes() / 8);
+    }
+
+    private int blockInPage(long bitIndex) {
+        return (int) (((bitIndex >>> 6) % wordsPerPage) / blockWords);
+    }
+
+    private PageCounts pageCounts(long bitIndex) {
+        int page = (int) ((bitIndex >>> 6) / wordsPerPage);
+        PageCounts[] all = pageCounts;
+        if (page < all.length && all[page] != null) {
+            return all[page];
+        }
+        synchronized (this) {
+            all = pageCounts;
+            if (page >= all.length || all[page] == null) {
+                all = Arrays.copyOf(all, Math.max(all.length, page + 1));
+                all[page] = new PageCounts();
+                pageCounts = all;
+            }
+            return all[page];
+        }
+    }
+
+    /**
+     * the tree of the page, counted if it was dropped. a count that overlapped an update of the page is used for
+     * this call only, it may have missed the update or count it twice
+     */
+    private PageIndex pageIndex(int page) {
+        if (!bigArray.pageExists(page)) {
+            return PageIndex.EMPTY;
+        }
+        PageCounts counts = pageCounts((long) page * wordsPerPage << 6);
+        PageIndex index = counts.index;
+        if (index != null) {
+            return index;
+        }
+        // finished first: an update seen finished was seen started too
+        long finished = counts.finished.sum();
+        long started = counts.started.sum();
+        index = countPage(page);
+        if (started == finished && counts.started.sum() == started) {
+            counts.index = index;
+            // an update or bulk write starting right before the publication could have missed it
+            if (counts.started.sum() != started) {
+                counts.dropIndex(index);
+            }
+        }
+        return index;
+    }
+
+    private PageIndex countPage(int page) {
+        int blocks = (int) (wordsPerPage / blockWords);
+        long[] tree = new long[blocks + 1];
+        long[] words = new long[chunkWords];
+        long pageStart = page * wordsPerPage;
+        for (long start = pageStart; start < pageStart + wordsPerPage; start += chunkWords) {
+            if (!readChunk(start, words, chunkWords)) {
+                continue;
+            }
+            for (int i = 0; i < chunkWords; i++) {
+                tree[(int) ((start - pageStart + i) / blockWords) + 1] += Long.bitCount(words[i]);
+            }
+        }
+        // each node takes the sum of the nodes below it
+        for (int i = 1; i <= blocks; i++) {
+            int parent = i + (i & -i);
+            if (parent <= blocks) {
+                tree[parent] += tree[i];
+            }
+        }
+        return new PageIndex(tree);
+    }
+
+    private void checkBit(long bitIndex) {
+        if (bitIndex < 0 || bitIndex >= sizeInBits) {
+            throw new IndexOutOfBoundsException("bitIndex " + bitIndex + ", size " + sizeInBits);
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        bigArray.close();
+    }
+
+    private static final class PageCounts {
+        // updates of the page count themselves started before they write and finished after
+        private final LongAdder started = new LongAdder();
+        private final LongAdder finished = new LongAdder();
+        private volatile PageIndex index;
+
+        private void add(int block, int delta) {
+            PageIndex current = index;
+            if (current != null) {
+                current.add(block, delta);
+            }
+        }
+
+        private synchronized void dropIndex(PageIndex expected) {
+            if (index == expected) {
+                index = null;
+            }
+        }
+    }
+
+    /**
+     * fenwick tree over the set bits of the blocks of one page
+     */
+    private static final class PageIndex {
+        private static final PageIndex EMPTY = new PageIndex(new long[1]);
+        private final AtomicLongArray tree;
+        private final int blocks;
+
+        private PageIndex(long[] tree) {
+            this.tree = new AtomicLongArray(tree);
+            this.blocks = tree.length - 1;
+        }
+
+        private void add(int block, int delta) {
+            for (int i = block + 1; i <= blocks; i += i & -i) {
+                tree.getAndAdd(i, delta);
+            }
+        }
+
+        // set bits before block
+        private long prefix(int block) {
+            long sum = 0;
+            for (int i = Math.min(block, blocks); i > 0; i -= i & -i) {
+                sum += tree.get(i);
+            }
+            return sum;
+        }
+
+        private long total() {
+            return prefix(blocks);
+        }
+
+        // last block with at most k set bits before it
+        private int floorBlock(long k) {
+            int block = 0;
+            for (int step = Integer.highestOneBit(Math.max(1, blocks)); step > 0; step >>>= 1) {
+                int next = block + step;
+                if (next <= blocks) {
+                    long count = tree.get(next);
+                    if (count <= k) {
+                        block = next;
+                        k -= count;
+                    }
+                }
+            }
+            return Math.min(block, blocks - 1);
+        }
+    }
+}
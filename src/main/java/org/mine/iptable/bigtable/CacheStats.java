@@ -0,0 +1,41 @@
+package org.mine.iptable.bigtable;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * counters of a page cache tier, shared by all caches of that tier in one array
+ */
+public final class CacheStats {
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * lookups that had to create the entry
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * entries taken out by the eviction policy or a MemoryManager, not explicit removals
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public double hitRatio() {
+        long hits = hits();
+        long total = hits + misses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d misses=%d evictions=%d hitRatio=%.4f", hits(), misses(), evictions(), hitRatio());
+    }
+}
@@ -0,0 +1,60 @@
+package org.mine.iptable.bigtable;
+
+import java.util.function.Predicate;
+
+/**
+ * second chance: the hand clears the reference bit of a used entry and passes, an entry not used since is evicted
+ */
+class ClockPolicy implements EvictionPolicy {
+    private final NodeQueue clock = new NodeQueue();
+
+    @Override
+    public void onAccess(Node node) {
+        if (!node.referenced) {
+            node.referenced = true;
+        }
+    }
+
+    @Override
+    public void onInsert(Node node) {
+        node.referenced = true;
+        clock.addLast(node);
+    }
+
+    @Override
+    public void onRemove(Node node, boolean evicted) {
+        clock.remove(node);
+    }
+
+    @Override
+    public Node victim(Predicate<Node> evictable) {
+        return sweep(clock, evictable);
+    }
+
+    /**
+     * every node is visited at most twice: once to clear its reference bit, once to evict it
+     */
+    static Node sweep(NodeQueue clock, Predicate<Node> evictable) {
+        int budget = 2 * clock.size() + 1;
+        while (budget-- > 0) {
+            Node node = clock.first();
+            if (node == null) {
+                return null;
+            }
+            if (node.referenced) {
+                node.referenced = false;
+                clock.moveToLast(node);
+            } else if (evictable.test(node)) {
+                return node;
+            } else {
+                clock.moveToLast(node);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void clear() {
+        clock.clear();
+    }
+}
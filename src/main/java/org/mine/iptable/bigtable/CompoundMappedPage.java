@@ -3,28 +3,87 @@ package org.mine.iptable.bigtable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CompoundMappedPage implements IMappedPage {
     private static Logger logger = LoggerFactory.getLogger(CompoundMappedPage.class);
-    private final LRUCache<Integer, IMappedPage> pageCache;
+    private final PageCache<IMappedPage> pageCache;
     private final RandomAccessFile randomAccessFile;
     private final FileChannel fileChannel;
     private final int pageSizeInBytes;
     private final int subPageSizeInBytes;
     private final int maxSubPage;
+    private final int subPageShift;
     private volatile boolean closed = false;
-    private volatile int pageCount = 0;
+    private final AtomicInteger pageCount = new AtomicInteger();
+    // mapping a sub page grows the file, so this only ever increases
+    private volatile long fileLength;
+    // told when any sub page turns from synced to unsynced
+    private final Runnable modifiedListener;
+    // if set, dirty sub pages are not forced when evicted and the file is synced by force() instead. told when
+    // this page is closed with such writes still unsynced
+    private final Runnable unflushedCloseListener;
+    private volatile boolean unflushed = false;
+    private final ReadAhead readAhead;
+    private final int readAheadDepth;
+    // access pattern seen by loadPage, updated racily: concurrent readers only blur the detection
+    private volatile int lastSubPage = -1;
+    private volatile int lastStride = 0;
+    private volatile int prefetchedTo = -1;
+    private final MemoryManager memoryManager;
+    private final ArrayMetrics metrics;
+    // file opened read only: sub pages are mapped READ_ONLY and never past the end of the file
+    private final boolean readOnly;
 
     public CompoundMappedPage(RandomAccessFile randomAccessFile, int pageSizeInBytes, int subPageSizeInBytes, int maxSubPage, int maxSubPageInMem) {
+        this(randomAccessFile, pageSizeInBytes, subPageSizeInBytes, maxSubPage, maxSubPageInMem, null);
+    }
+
+    public CompoundMappedPage(RandomAccessFile randomAccessFile, int pageSizeInBytes, int subPageSizeInBytes, int maxSubPage, int maxSubPageInMem,
+                              Runnable modifiedListener) {
+        this(randomAccessFile, pageSizeInBytes, subPageSizeInBytes, maxSubPage, maxSubPageInMem, modifiedListener, null);
+    }
+
+    public CompoundMappedPage(RandomAccessFile randomAccessFile, int pageSizeInBytes, int subPageSizeInBytes, int maxSubPage, int maxSubPageInMem,
+                              Runnable modifiedListener, Runnable unflushedCloseListener) {
+        this(randomAccessFile, pageSizeInBytes, subPageSizeInBytes, maxSubPage, maxSubPageInMem, modifiedListener, unflushedCloseListener, ReadAhead.NONE,
+                EvictionPolicy.Type.CLOCK, MemoryManager.global(), new ArrayMetrics(), false);
+    }
+
+    /**
+     * @param memoryManager every mapped sub page reserves its bytes there, and the sub pages can be evicted by it
+     * @param metrics sub page cache counters and mapping latencies are recorded there, usually shared by the array
+     * @param readOnly randomAccessFile was opened with "r", writes are rejected
+     */
+    public CompoundMappedPage(RandomAccessFile randomAccessFile, int pageSizeInBytes, int subPageSizeInBytes, int maxSubPage, int maxSubPageInMem,
+                              Runnable modifiedListener, Runnable unflushedCloseListener, ReadAhead readAhead, EvictionPolicy.Type evictionPolicy,
+                              MemoryManager memoryManager, ArrayMetrics metrics, boolean readOnly) {
         this.randomAccessFile = randomAccessFile;
+        this.readAhead = readAhead;
+        this.readAheadDepth = Math.min(readAhead.depth(maxSubPageInMem), maxSubPage - 1);
+        this.modifiedListener = modifiedListener;
+        this.unflushedCloseListener = unflushedCloseListener;
         this.fileChannel = randomAccessFile.getChannel();
         this.pageSizeInBytes = pageSizeInBytes;
         this.subPageSizeInBytes = subPageSizeInBytes;
+        this.subPageShift = Integer.numberOfTrailingZeros(subPageSizeInBytes);
         this.maxSubPage = maxSubPage;
-        pageCache = new LRUCache<>(maxSubPageInMem);
+        this.metrics = metrics;
+        this.readOnly = readOnly;
+        pageCache = new PageCache<>(maxSubPageInMem, maxSubPage, evictionPolicy, metrics.subPages);
+        this.memoryManager = memoryManager;
+        memoryManager.register(pageCache, subPageSizeInBytes);
+        try {
+            fileLength = randomAccessFile.length();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
@@ -33,9 +92,13 @@ public class CompoundMappedPage implements IMappedPage {
             return;
         }
         closed = true;
+        memoryManager.unregister(pageCache);
         pageCache.expireAll();
         fileChannel.close();
         randomAccessFile.close();
+        if (unflushed) {
+            unflushedCloseListener.run();
+        }
     }
 
     @Override
@@ -49,6 +112,19 @@ public class CompoundMappedPage implements IMappedPage {
         }
     }
 
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("page opened read only");
+        }
+    }
+
+    /**
+     * mapping past the end grows the file, which a read only file can not. what lies beyond reads as zero
+     */
+    private int wholeMappingLength() {
+        return readOnly ? (int) Math.min(pageSizeInBytes, fileLength) : pageSizeInBytes;
+    }
+
     private void checkPageCount(int subPageIndex) {
         if (subPageIndex + 1 > maxSubPage) {
             throw new IndexOutOfBoundsException("maxSubPage " + maxSubPage + ", already used " + pageCount);
@@ -58,55 +134,274 @@ public class CompoundMappedPage implements IMappedPage {
     @Override
     public int getInt(int index) {
         checkClosed();
-        return loadPage(getSubPageIndex(index)).getInt(getIndexInSubPage(index));
+        PageCache.Entry<IMappedPage> subPage = loadPage(getSubPageIndex(index));
+        try {
+            return subPage.value().getInt(getIndexInSubPage(index));
+        } finally {
+            subPage.release();
+        }
     }
 
     @Override
     public void putInt(int index, int v) {
         checkClosed();
-        loadPage(getSubPageIndex(index)).putInt(getIndexInSubPage(index), v);
+        PageCache.Entry<IMappedPage> subPage = loadPage(getSubPageIndex(index));
+        try {
+            subPage.value().putInt(getIndexInSubPage(index), v);
+        } finally {
+            subPage.release();
+        }
     }
 
     @Override
     public void putInt(int v) {
         checkClosed();
-        if (pageCount == 0) {
-            loadPage(0).putInt(v);
-        } else {
-            loadPage(pageCount - 1).putInt(v);
+        PageCache.Entry<IMappedPage> subPage = loadPage(Math.max(0, pageCount.get() - 1));
+        try {
+            subPage.value().putInt(v);
+        } finally {
+            subPage.release();
         }
     }
 
     @Override
     public byte getByte(int index) {
         checkClosed();
-        return loadPage(getSubPageIndex(index)).getByte(getIndexInSubPage(index));
+        PageCache.Entry<IMappedPage> subPage = loadPage(getSubPageIndex(index));
+        try {
+            return subPage.value().getByte(getIndexInSubPage(index));
+        } finally {
+            subPage.release();
+        }
+    }
+
+    /**
+     * read without mapping a sub page that was never written
+     */
+    byte getByteOrDefault(int index, byte defaultValue) {
+        PageCache.Entry<IMappedPage> subPage = acquireSubPageIfExists(getSubPageIndex(index));
+        if (subPage == null) {
+            return defaultValue;
+        }
+        try {
+            return subPage.value().getByte(getIndexInSubPage(index));
+        } finally {
+            subPage.release();
+        }
     }
 
     @Override
     public void putByte(int index, byte v) {
         checkClosed();
-        loadPage(getSubPageIndex(index)).putByte(getIndexInSubPage(index), v);
+        PageCache.Entry<IMappedPage> subPage = loadPage(getSubPageIndex(index));
+        try {
+            subPage.value().putByte(getIndexInSubPage(index), v);
+        } finally {
+            subPage.release();
+        }
     }
 
     @Override
     public void putByte(byte v) {
         checkClosed();
-        if (pageCount == 0) {
-            loadPage(0).putByte(v);
-        } else {
-            loadPage(pageCount - 1).putByte(v);
+        PageCache.Entry<IMappedPage> subPage = loadPage(Math.max(0, pageCount.get() - 1));
+        try {
+            subPage.value().putByte(v);
+        } finally {
+            subPage.release();
+        }
+    }
+
+    @Override
+    public long getLong(int index) {
+        checkClosed();
+        PageCache.Entry<IMappedPage> subPage = loadPage(getSubPageIndex(index));
+        try {
+            return subPage.value().getLong(getIndexInSubPage(index));
+        } finally {
+            subPage.release();
+        }
+    }
+
+    @Override
+    public void putLong(int index, long v) {
+        checkClosed();
+        PageCache.Entry<IMappedPage> subPage = loadPage(getSubPageIndex(index));
+        try {
+            subPage.value().putLong(getIndexInSubPage(index), v);
+        } finally {
+            subPage.release();
+        }
+    }
+
+    @Override
+    public void getBytes(int index, byte[] dst, int offset, int length) {
+        forEachSubPage(index, length, 1, (page, indexInSubPage, off, n) -> page.getBytes(indexInSubPage, dst, offset + off, n));
+    }
+
+    @Override
+    public void putBytes(int index, byte[] src, int offset, int length) {
+        forEachSubPage(index, length, 1, (page, indexInSubPage, off, n) -> page.putBytes(indexInSubPage, src, offset + off, n));
+    }
+
+    @Override
+    public void getInts(int index, int[] dst, int offset, int length) {
+        forEachSubPage(index, length, 4, (page, indexInSubPage, off, n) -> page.getInts(indexInSubPage, dst, offset + off, n));
+    }
+
+    @Override
+    public void putInts(int index, int[] src, int offset, int length) {
+        forEachSubPage(index, length, 4, (page, indexInSubPage, off, n) -> page.putInts(indexInSubPage, src, offset + off, n));
+    }
+
+    @Override
+    public void getLongs(int index, long[] dst, int offset, int length) {
+        forEachSubPage(index, length, 8, (page, indexInSubPage, off, n) -> page.getLongs(indexInSubPage, dst, offset + off, n));
+    }
+
+    @Override
+    public void putLongs(int index, long[] src, int offset, int length) {
+        forEachSubPage(index, length, 8, (page, indexInSubPage, off, n) -> page.putLongs(indexInSubPage, src, offset + off, n));
+    }
+
+    @Override
+    public void fill(int index, int length, byte value) {
+        forEachSubPage(index, length, 1, (page, indexInSubPage, off, n) -> page.fill(indexInSubPage, n, value));
+    }
+
+    @Override
+    public boolean setBitsAtomic(int index, byte bits) {
+        checkClosed();
+        PageCache.Entry<IMappedPage> subPage = loadPage(getSubPageIndex(index));
+        try {
+            return subPage.value().setBitsAtomic(getIndexInSubPage(index), bits);
+        } finally {
+            subPage.release();
         }
     }
 
+    /**
+     * sub pages that were never written are all clear already and are not mapped
+     */
+    @Override
+    public boolean clearBitsAtomic(int index, byte bits) {
+        PageCache.Entry<IMappedPage> subPage = acquireSubPageIfExists(getSubPageIndex(index));
+        if (subPage == null) {
+            return false;
+        }
+        try {
+            return subPage.value().clearBitsAtomic(getIndexInSubPage(index), bits);
+        } finally {
+            subPage.release();
+        }
+    }
+
+    @Override
+    public boolean compareAndSetInt(int index, int expect, int update) {
+        checkClosed();
+        PageCache.Entry<IMappedPage> subPage = loadPage(getSubPageIndex(index));
+        try {
+            return subPage.value().compareAndSetInt(getIndexInSubPage(index), expect, update);
+        } finally {
+            subPage.release();
+        }
+    }
+
+    @Override
+    public int getAndAddInt(int index, int delta) {
+        checkClosed();
+        PageCache.Entry<IMappedPage> subPage = loadPage(getSubPageIndex(index));
+        try {
+            return subPage.value().getAndAddInt(getIndexInSubPage(index), delta);
+        } finally {
+            subPage.release();
+        }
+    }
+
+    /**
+     * zero [index, index + length), sub pages that were never written already read as zero and are skipped
+     */
+    void clear(int index, int length) {
+        checkClosed();
+        while (length > 0) {
+            int indexInSubPage = getIndexInSubPage(index);
+            int n = Math.min(length, subPageSizeInBytes - indexInSubPage);
+            PageCache.Entry<IMappedPage> subPage = acquireSubPageIfExists(getSubPageIndex(index));
+            if (subPage != null) {
+                try {
+                    subPage.value().fill(indexInSubPage, n, (byte) 0);
+                } finally {
+                    subPage.release();
+                }
+            }
+            index += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * like getLongs, but sub pages that were never written read as zero and are not mapped
+     */
+    void getLongsOrZero(int index, long[] dst, int offset, int length) {
+        checkClosed();
+        int done = 0;
+        while (done < length) {
+            int indexInSubPage = getIndexInSubPage(index);
+            int n = Math.min(length - done, (subPageSizeInBytes - indexInSubPage) / 8);
+            if (n == 0) {
+                throw new IllegalArgumentException("element at " + index + " crosses sub page boundary, subPageSizeInBytes " + subPageSizeInBytes);
+            }
+            PageCache.Entry<IMappedPage> subPage = acquireSubPageIfExists(getSubPageIndex(index));
+            if (subPage == null) {
+                Arrays.fill(dst, offset + done, offset + done + n, 0L);
+            } else {
+                try {
+                    subPage.value().getLongs(indexInSubPage, dst, offset + done, n);
+                } finally {
+                    subPage.release();
+                }
+            }
+            index += n * 8;
+            done += n;
+        }
+    }
+
+    /**
+     * split [index, index + length * elementSize) at sub page boundaries, each sub page is resolved once
+     */
+    private void forEachSubPage(int index, int length, int elementSize, SubPageRange range) {
+        checkClosed();
+        int done = 0;
+        while (done < length) {
+            int indexInSubPage = getIndexInSubPage(index);
+            int n = Math.min(length - done, (subPageSizeInBytes - indexInSubPage) / elementSize);
+            if (n == 0) {
+                throw new IllegalArgumentException("element at " + index + " crosses sub page boundary, subPageSizeInBytes " + subPageSizeInBytes);
+            }
+            PageCache.Entry<IMappedPage> subPage = loadPage(getSubPageIndex(index));
+            try {
+                range.apply(subPage.value(), indexInSubPage, done, n);
+            } finally {
+                subPage.release();
+            }
+            index += n * elementSize;
+            done += n;
+        }
+    }
+
+    private interface SubPageRange {
+        void apply(IMappedPage subPage, int indexInSubPage, int offset, int length);
+    }
+
     @Override
     public byte[] loadBytes(int offset, int length) {
         byte[] buf = null;
         try {
             buf = new byte[length];
-            MappedByteBuffer mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, pageSizeInBytes);
-            mappedByteBuffer.get(buf, offset, length);
-            MappedPage.Cleaner.clean(mappedByteBuffer);
+            MappedByteBuffer mappedByteBuffer = map(FileChannel.MapMode.READ_ONLY, 0, wholeMappingLength());
+            growFileLength(mappedByteBuffer.capacity());
+            mappedByteBuffer.get(buf, offset, Math.min(length, mappedByteBuffer.capacity()));
+            unmap(mappedByteBuffer);
             mappedByteBuffer = null;
         } catch (Exception e) {
             logger.error("load bytes", e);
@@ -116,12 +411,15 @@ public class CompoundMappedPage implements IMappedPage {
 
     @Override
     public void putBytes(byte[] buf, int offset, int length) {
+        checkWritable();
         try {
             pageCache.expireAll();
-            MappedByteBuffer mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, pageSizeInBytes);
+            MappedByteBuffer mappedByteBuffer = map(FileChannel.MapMode.READ_WRITE, 0, pageSizeInBytes);
+            growFileLength(pageSizeInBytes);
             mappedByteBuffer.put(buf, offset, length);
-            mappedByteBuffer.force();
-            MappedPage.Cleaner.clean(mappedByteBuffer);
+            flushOrDefer(mappedByteBuffer);
+            notifyModified();
+            unmap(mappedByteBuffer);
             mappedByteBuffer = null;
         } catch (Exception e) {
             logger.error("load bytes", e);
@@ -133,11 +431,12 @@ public class CompoundMappedPage implements IMappedPage {
         int[] buf = null;
         try {
             buf = new int[length];
-            MappedByteBuffer mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, pageSizeInBytes);
-            for (int i = offset; i < length; i++) {
+            MappedByteBuffer mappedByteBuffer = map(FileChannel.MapMode.READ_ONLY, 0, wholeMappingLength());
+            growFileLength(mappedByteBuffer.capacity());
+            for (int i = offset; i < Math.min(length, mappedByteBuffer.capacity() / 4); i++) {
                 buf[i] = mappedByteBuffer.getInt(i * 4);
             }
-            MappedPage.Cleaner.clean(mappedByteBuffer);
+            unmap(mappedByteBuffer);
             mappedByteBuffer = null;
         } catch (Exception e) {
             logger.error("load bytes", e);
@@ -147,51 +446,218 @@ public class CompoundMappedPage implements IMappedPage {
 
     @Override
     public void put4Bytes(int[] buf, int offset, int length) {
+        checkWritable();
         try {
             pageCache.expireAll();
-            MappedByteBuffer mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, pageSizeInBytes);
+            MappedByteBuffer mappedByteBuffer = map(FileChannel.MapMode.READ_WRITE, 0, pageSizeInBytes);
+            growFileLength(pageSizeInBytes);
             for (int i = offset, bufIndex = 0; i < length; i++, bufIndex++) {
                 mappedByteBuffer.putInt(i * 4, buf[bufIndex]);
             }
-            mappedByteBuffer.force();
-            MappedPage.Cleaner.clean(mappedByteBuffer);
+            flushOrDefer(mappedByteBuffer);
+            notifyModified();
+            unmap(mappedByteBuffer);
             mappedByteBuffer = null;
         } catch (Exception e) {
             logger.error("load bytes", e);
         }
     }
 
+    private MappedByteBuffer map(FileChannel.MapMode mode, long position, int size) throws IOException {
+        long start = System.nanoTime();
+        MappedByteBuffer mappedByteBuffer = fileChannel.map(mode, position, size);
+        metrics.map.recordSince(start);
+        return mappedByteBuffer;
+    }
+
+    private void unmap(MappedByteBuffer mappedByteBuffer) {
+        long start = System.nanoTime();
+        MappedPage.Cleaner.clean(mappedByteBuffer);
+        metrics.unmap.recordSince(start);
+    }
+
+    private void flushOrDefer(MappedByteBuffer mappedByteBuffer) {
+        if (unflushedCloseListener == null) {
+            long start = System.nanoTime();
+            mappedByteBuffer.force();
+            metrics.force.recordSince(start);
+        } else {
+            unflushed = true;
+        }
+    }
+
+    /**
+     * only sub pages written since their last force are flushed, plus the file if dirty sub pages were evicted
+     */
     @Override
     public void force() {
-        for (IMappedPage mappedPage: pageCache.values()) {
-            mappedPage.force();
+        pageCache.forEach(IMappedPage::force);
+        if (unflushed) {
+            // cleared first, an eviction racing the sync sets it again
+            unflushed = false;
+            long start = System.nanoTime();
+            try {
+                fileChannel.force(false);
+                metrics.force.recordSince(start);
+            } catch (IOException e) {
+                unflushed = true;
+                throw new RuntimeException(e);
+            }
         }
     }
 
+    /**
+     * re-arm sync tracking of the mapped sub pages, evicted ones start out synced when mapped again
+     */
+    void markSynced() {
+        pageCache.forEach(subPage -> ((MappedPage) subPage).markSynced());
+    }
+
+    /**
+     * map every sub page within the file and read it into memory, so first accesses do not fault
+     */
+    void load() {
+        checkClosed();
+        int subPages = (int) Math.min(maxSubPage, (fileLength + subPageSizeInBytes - 1) >>> subPageShift);
+        for (int subPageIndex = 0; subPageIndex < subPages; subPageIndex++) {
+            PageCache.Entry<IMappedPage> subPage = loadPage(subPageIndex);
+            try {
+                ((MappedPage) subPage.value()).load();
+            } finally {
+                subPage.release();
+            }
+        }
+    }
+
+    private void notifyModified() {
+        if (modifiedListener != null) {
+            modifiedListener.run();
+        }
+    }
+
+    // sub page size is always a power of two, see MappedPageFactory
     private int getSubPageIndex(int index) {
-        return index / subPageSizeInBytes;
+        return index >>> subPageShift;
     }
 
     private int getIndexInSubPage(int index) {
-        return index % subPageSizeInBytes;
+        return index & (subPageSizeInBytes - 1);
+    }
+
+    /**
+     * pinned sub page, used by cursors which read the mapped buffer directly
+     */
+    PageCache.Entry<IMappedPage> acquireSubPage(int subPageIndex) {
+        checkClosed();
+        return loadPage(subPageIndex);
+    }
+
+    /**
+     * @return pinned sub page, or null without mapping anything if the sub page lies beyond the end of the file
+     */
+    PageCache.Entry<IMappedPage> acquireSubPageIfExists(int subPageIndex) {
+        checkClosed();
+        PageCache.Entry<IMappedPage> subPage = pageCache.acquireIfPresent(subPageIndex);
+        if (subPage != null || (long) subPageIndex * subPageSizeInBytes >= fileLength) {
+            return subPage;
+        }
+        return loadPage(subPageIndex);
     }
 
-    private IMappedPage loadPage(int subPageIndex) {
-        return pageCache.computeIfAbsent(subPageIndex, this::createPage);
+    private PageCache.Entry<IMappedPage> loadPage(int subPageIndex) {
+        if (readAheadDepth > 0 && subPageIndex != lastSubPage) {
+            detectPattern(subPageIndex);
+        }
+        return pageCache.acquire(subPageIndex, this::createPage);
+    }
+
+    /**
+     * two equal steps between sub pages in a row make a pattern, the sub pages it leads to are prefetched
+     */
+    private void detectPattern(int subPageIndex) {
+        int last = lastSubPage;
+        lastSubPage = subPageIndex;
+        int stride = subPageIndex - last;
+        if (last < 0 || stride != lastStride || Math.abs(stride) > ReadAhead.MAX_STRIDE) {
+            lastStride = stride;
+            prefetchedTo = -1;
+            return;
+        }
+        // never prefetch past the file, mapping there would grow it
+        int limit = (int) Math.min(maxSubPage, (fileLength + subPageSizeInBytes - 1) >>> subPageShift);
+        int from = prefetchedTo < 0 ? 1 : Math.max(1, (prefetchedTo - subPageIndex) / stride + 1);
+        for (int k = from; k <= readAheadDepth; k++) {
+            int target = subPageIndex + stride * k;
+            if (target < 0 || target >= limit) {
+                break;
+            }
+            prefetchedTo = target;
+            if (!pageCache.contains(target)) {
+                readAhead.submit(() -> prefetch(target));
+            }
+        }
+    }
+
+    private void prefetch(int subPageIndex) {
+        if (closed) {
+            return;
+        }
+        try {
+            PageCache.Entry<IMappedPage> subPage = pageCache.prefetch(subPageIndex, this::createPage);
+            if (subPage != null) {
+                try {
+                    ((MappedPage) subPage.value()).load();
+                } finally {
+                    subPage.release();
+                }
+            }
+        } catch (RuntimeException e) {
+            // closed meanwhile
+            logger.debug("prefetch sub page " + subPageIndex + " failed", e);
+        }
+    }
+
+    private synchronized void growFileLength(long length) {
+        if (length > fileLength) {
+            fileLength = length;
+        }
     }
 
     private IMappedPage createPage(int subPageIndex) {
         checkClosed();
         checkPageCount(subPageIndex);
+        long position = (long) subPageIndex * subPageSizeInBytes;
+        int size = subPageSizeInBytes;
+        memoryManager.reserve(size);
         try {
-            if (subPageIndex >= pageCount) {
-                pageCount = subPageIndex + 1;
+            pageCount.accumulateAndGet(subPageIndex + 1, Math::max);
+            ByteBuffer buffer;
+            if (readOnly && position + size > fileLength) {
+                // a read only file can not grow, the sub page is read into a copy whose missing tail stays zero,
+                // so reads return what they would on the same file opened read write
+                buffer = readPastEnd(position, size);
+            } else {
+                buffer = map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, position, size);
+                growFileLength(position + size);
             }
-            MappedByteBuffer mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, subPageIndex * subPageSizeInBytes, subPageSizeInBytes);
-            return new MappedPage(mappedByteBuffer, subPageSizeInBytes);
+            return new MappedPage(buffer, size, modifiedListener,
+                    unflushedCloseListener == null ? null : () -> unflushed = true, memoryManager, metrics);
         } catch (Exception e) {
             logger.error("create page failed", e);
         }
+        memoryManager.release(size);
         return null;
     }
+
+    private ByteBuffer readPastEnd(long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.limit((int) Math.max(0, Math.min(size, fileLength - position)));
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.clear();
+        return buffer.asReadOnlyBuffer();
+    }
 }
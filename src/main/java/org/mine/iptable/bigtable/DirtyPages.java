@@ -0,0 +1,22 @@
+package org.mine.iptable.bigtable;
+
+/**
+ * pages modified since some version, and the version to ask from next time
+ */
+public class DirtyPages {
+    private final long version;
+    private final int[] pages;
+
+    DirtyPages(long version, int[] pages) {
+        this.version = version;
+        this.pages = pages;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public int[] pages() {
+        return pages;
+    }
+}
@@ -0,0 +1,56 @@
+package org.mine.iptable.bigtable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * when writes through the mapped pages are flushed to disk. unflushed writes survive a crash of the process,
+ * only a crash of the machine loses them
+ */
+public final class Durability {
+    public enum Mode {
+        // never flushed by BigArray, the os writes pages back at its own pace
+        NONE,
+        // a dirty sub page is flushed by the thread evicting it and on close
+        SYNC_ON_EVICT,
+        // flushed by a background thread every interval and on close
+        ASYNC_PERIODIC,
+        // flushed on close or an explicit force only
+        SYNC_ON_CLOSE
+    }
+
+    public static final Durability NONE = new Durability(Mode.NONE, 0);
+    public static final Durability SYNC_ON_EVICT = new Durability(Mode.SYNC_ON_EVICT, 0);
+    public static final Durability SYNC_ON_CLOSE = new Durability(Mode.SYNC_ON_CLOSE, 0);
+
+    private final Mode mode;
+    private final long intervalMillis;
+
+    private Durability(Mode mode, long intervalMillis) {
+        this.mode = mode;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public static Durability asyncPeriodic(long interval, TimeUnit unit) {
+        long intervalMillis = unit.toMillis(interval);
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("flush interval must be at least 1ms: " + interval + " " + unit);
+        }
+        return new Durability(Mode.ASYNC_PERIODIC, intervalMillis);
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    /**
+     * @return flush interval of ASYNC_PERIODIC, 0 for the other modes
+     */
+    public long intervalMillis() {
+        return intervalMillis;
+    }
+
+    @Override
+    public String toString() {
+        return mode == Mode.ASYNC_PERIODIC ? mode + "(" + intervalMillis + "ms)" : mode.toString();
+    }
+}
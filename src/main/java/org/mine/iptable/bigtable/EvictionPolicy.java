@@ -0,0 +1,77 @@
+package org.mine.iptable.bigtable;
+
+import java.util.function.Predicate;
+
+/**
+ * chooses the entries a bounded PageCache gives up. accesses are recorded from any thread without locking,
+ * everything else is called by the cache under its eviction lock, one thread at a time
+ */
+public interface EvictionPolicy {
+    enum Type {
+        // least recently used first, recency counted in cache misses
+        LRU {
+            @Override
+            public EvictionPolicy create(int maxSize) {
+                return new LruPolicy();
+            }
+        },
+        // second chance, the cheapest to record
+        CLOCK {
+            @Override
+            public EvictionPolicy create(int maxSize) {
+                return new ClockPolicy();
+            }
+        },
+        // 2Q: new entries wait in a small fifo and only become hot if asked for again after leaving it,
+        // so a scan passes through without pushing out the pages that are hit all the time
+        TWO_QUEUE {
+            @Override
+            public EvictionPolicy create(int maxSize) {
+                return new TwoQueuePolicy(maxSize);
+            }
+        };
+
+        public abstract EvictionPolicy create(int maxSize);
+    }
+
+    /**
+     * hot path, must be cheap and safe to call concurrently with everything else
+     */
+    void onAccess(Node node);
+
+    void onInsert(Node node);
+
+    /**
+     * @param evicted true if the node was chosen by {@link #victim}, false if it was removed explicitly
+     */
+    void onRemove(Node node, boolean evicted);
+
+    /**
+     * @return next node to evict among those passing evictable, null if there is none
+     */
+    Node victim(Predicate<Node> evictable);
+
+    void clear();
+
+    /**
+     * what a policy knows about a cached entry. fields other than the access ones are guarded by the eviction lock
+     */
+    abstract class Node {
+        final int key;
+        volatile boolean referenced = true;
+        volatile long accessTime;
+        long queuedTime;
+        Node prev;
+        Node next;
+        NodeQueue queue;
+        boolean tracked;
+
+        Node(int key) {
+            this.key = key;
+        }
+
+        public int key() {
+            return key;
+        }
+    }
+}
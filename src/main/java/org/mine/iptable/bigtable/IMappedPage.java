@@ -7,6 +7,19 @@ public interface IMappedPage extends ICloseable {
     byte getByte(int index);
     void putByte(int index, byte v);
     void putByte(byte v);
+    long getLong(int index);
+    void putLong(int index, long v);
+    void getBytes(int index, byte[] dst, int offset, int length);
+    void putBytes(int index, byte[] src, int offset, int length);
+    void getInts(int index, int[] dst, int offset, int length);
+    void putInts(int index, int[] src, int offset, int length);
+    void getLongs(int index, long[] dst, int offset, int length);
+    void putLongs(int index, long[] src, int offset, int length);
+    void fill(int index, int length, byte value);
+    boolean setBitsAtomic(int index, byte bits);
+    boolean clearBitsAtomic(int index, byte bits);
+    boolean compareAndSetInt(int index, int expect, int update);
+    int getAndAddInt(int index, int delta);
     byte[] loadBytes(int offset, int length);
     void putBytes(byte[] buf, int offset, int length);
     int[] load4Bytes(int offset, int length);
@@ -0,0 +1,65 @@
+package org.mine.iptable.bigtable;
+
+import java.util.function.Predicate;
+
+/**
+ * evicts the entry accessed longest ago, as far as a coarse clock tells: the clock only advances on an insert, an
+ * access stamps the entry with it and writes nothing if the entry carries that stamp already, so readers of a hot
+ * page do not fight over its node. entries queue in the order they were stamped when queued, the scan takes the
+ * head and sends an entry stamped again since it was queued to the back, so it resumes where the last victim left
+ * and every entry moves at most once per access
+ */
+class LruPolicy implements EvictionPolicy {
+    private final NodeQueue nodes = new NodeQueue();
+    // written under the eviction lock only
+    private volatile long tick;
+
+    @Override
+    public void onAccess(Node node) {
+        long now = tick;
+        if (node.accessTime != now) {
+            node.accessTime = now;
+        }
+    }
+
+    @Override
+    public void onInsert(Node node) {
+        long now = tick + 1;
+        tick = now;
+        node.accessTime = now;
+        node.queuedTime = now;
+        nodes.addLast(node);
+    }
+
+    @Override
+    public void onRemove(Node node, boolean evicted) {
+        nodes.remove(node);
+    }
+
+    @Override
+    public Node victim(Predicate<Node> evictable) {
+        // the clock stands still meanwhile, so each node moves at most once for an access and once for being pinned
+        int budget = 2 * nodes.size() + 1;
+        while (budget-- > 0) {
+            Node node = nodes.first();
+            if (node == null) {
+                return null;
+            }
+            long accessTime = node.accessTime;
+            if (accessTime != node.queuedTime) {
+                node.queuedTime = accessTime;
+                nodes.moveToLast(node);
+            } else if (evictable.test(node)) {
+                return node;
+            } else {
+                nodes.moveToLast(node);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void clear() {
+        nodes.clear();
+    }
+}
@@ -0,0 +1,106 @@
+package org.mine.iptable.bigtable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * geometry and fill state of an array, stored next to its page files so opening needs no page file. written on
+ * open, force and close, after a crash currentIndex may lag behind the pages.
+ * it also keeps the modification clock and the version of every page, so sync versions stay valid across a restart.
+ * clean is only set by close, a manifest left without it means the last writer may have handed out versions it
+ * never recorded
+ */
+final class Manifest {
+    static final String FILE_SUFFIX = "bigarray.manifest";
+    static final int MAGIC = 0x4241524D;
+    static final int FORMAT_VERSION = 1;
+    private static final int SIZE = 48;
+    private static final int CLEAN = 1;
+    final int pageSizeInBytes;
+    final int subPageSizeInBytes;
+    final int pageCount;
+    final long currentIndex;
+    final boolean clean;
+    final int epoch;
+    final long version;
+    // version of the last modification per page, up to pageCount
+    final long[] pageVersions;
+
+    Manifest(int pageSizeInBytes, int subPageSizeInBytes, int pageCount, long currentIndex, boolean clean, int epoch, long version,
+             long[] pageVersions) {
+        this.pageSizeInBytes = pageSizeInBytes;
+        this.subPageSizeInBytes = subPageSizeInBytes;
+        this.pageCount = pageCount;
+        this.currentIndex = currentIndex;
+        this.clean = clean;
+        this.epoch = epoch;
+        this.version = version;
+        this.pageVersions = pageVersions;
+    }
+
+    /**
+     * @return null if there is no manifest, as in directories written before it existed
+     */
+    static Manifest read(Path path) {
+        ByteBuffer buf;
+        try {
+            buf = ByteBuffer.wrap(Files.readAllBytes(path));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (buf.remaining() < SIZE || buf.getInt() != MAGIC) {
+            throw new IllegalStateException("not a bigarray manifest: " + path);
+        }
+        int formatVersion = buf.getInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IllegalStateException("unsupported manifest format version " + formatVersion + ": " + path);
+        }
+        int pageSizeInBytes = buf.getInt();
+        int subPageSizeInBytes = buf.getInt();
+        int pageCount = buf.getInt();
+        int flags = buf.getInt();
+        long currentIndex = buf.getLong();
+        if (buf.limit() != SIZE + pageCount * 8L) {
+            throw new IllegalStateException("truncated bigarray manifest: " + path);
+        }
+        long version = buf.getLong();
+        int epoch = buf.getInt();
+        buf.getInt();
+        long[] pageVersions = new long[pageCount];
+        buf.asLongBuffer().get(pageVersions);
+        return new Manifest(pageSizeInBytes, subPageSizeInBytes, pageCount, currentIndex, (flags & CLEAN) != 0, epoch, version, pageVersions);
+    }
+
+    /**
+     * replace the manifest at path atomically, a crash leaves the old one or the new one
+     */
+    void write(Path path) {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        ByteBuffer buf = ByteBuffer.allocate(SIZE + pageCount * 8);
+        buf.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(pageSizeInBytes).putInt(subPageSizeInBytes).putInt(pageCount).putInt(clean ? CLEAN : 0)
+                .putLong(currentIndex).putLong(version).putInt(epoch).putInt(0);
+        for (int i = 0; i < pageCount; i++) {
+            buf.putLong(i < pageVersions.length ? pageVersions[i] : 0);
+        }
+        buf.flip();
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+                channel.force(true);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
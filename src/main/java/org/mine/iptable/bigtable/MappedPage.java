@@ -3,20 +3,67 @@ package org.mine.iptable.bigtable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MappedPage implements IMappedPage {
     private static Logger logger = LoggerFactory.getLogger(MappedPage.class);
-    private MappedByteBuffer byteBuffer;
+    // a mapping of the page file, or a read only heap copy of a sub page past the end of a read only file
+    private ByteBuffer byteBuffer;
     private final int pageSizeInBytes;
     private volatile boolean closed;
+    // base address of the mapping for atomic updates, 0 if they fall back to locking. 0 for a read only mapping
+    // too, so every write goes through the buffer and fails there
+    private final long address;
+    // DIRTY: written since the last force, UNSYNCED: written since the last repository sync
+    static final int DIRTY = 1;
+    static final int UNSYNCED = 2;
+    private final AtomicInteger state = new AtomicInteger();
+    // told when the page turns from synced to unsynced
+    private final Runnable modifiedListener;
+    // if set, a dirty page is closed without force and told instead, the owner flushes the file later
+    private final Runnable unforcedCloseListener;
+    // gets the mapped bytes back on close, null if they were not reserved
+    private final MemoryManager memoryManager;
+    // force and unmap latencies go there, null if not measured
+    private final ArrayMetrics metrics;
 
     public MappedPage(MappedByteBuffer mappedByteBuffer, int pageSizeInBytes) {
-        byteBuffer = mappedByteBuffer;
+        this(mappedByteBuffer, pageSizeInBytes, null);
+    }
+
+    public MappedPage(MappedByteBuffer mappedByteBuffer, int pageSizeInBytes, Runnable modifiedListener) {
+        this(mappedByteBuffer, pageSizeInBytes, modifiedListener, null);
+    }
+
+    public MappedPage(MappedByteBuffer mappedByteBuffer, int pageSizeInBytes, Runnable modifiedListener, Runnable unforcedCloseListener) {
+        this(mappedByteBuffer, pageSizeInBytes, modifiedListener, unforcedCloseListener, null);
+    }
+
+    public MappedPage(MappedByteBuffer mappedByteBuffer, int pageSizeInBytes, Runnable modifiedListener, Runnable unforcedCloseListener,
+                      MemoryManager memoryManager) {
+        this(mappedByteBuffer, pageSizeInBytes, modifiedListener, unforcedCloseListener, memoryManager, null);
+    }
+
+    public MappedPage(ByteBuffer byteBuffer, int pageSizeInBytes, Runnable modifiedListener, Runnable unforcedCloseListener,
+                      MemoryManager memoryManager, ArrayMetrics metrics) {
+        this.memoryManager = memoryManager;
+        this.metrics = metrics;
+        this.byteBuffer = byteBuffer;
         this.pageSizeInBytes = pageSizeInBytes;
+        this.modifiedListener = modifiedListener;
+        this.unforcedCloseListener = unforcedCloseListener;
         closed = false;
+        address = byteBuffer.isReadOnly() ? 0 : UnsafeAccess.address(byteBuffer);
     }
 
     @Override
@@ -29,12 +76,14 @@ public class MappedPage implements IMappedPage {
     public void putInt(int index, int v) {
         checkClosed();
         byteBuffer.putInt(index, v);
+        markModified();
     }
 
     @Override
     public void putInt(int v) {
         checkClosed();
         byteBuffer.putInt(v);
+        markModified();
     }
 
     @Override
@@ -47,12 +96,243 @@ public class MappedPage implements IMappedPage {
     public void putByte(int index, byte v) {
         checkClosed();
         byteBuffer.put(index, v);
+        markModified();
     }
 
     @Override
     public void putByte(byte v) {
         checkClosed();
         byteBuffer.put(v);
+        markModified();
+    }
+
+    @Override
+    public long getLong(int index) {
+        checkClosed();
+        return byteBuffer.getLong(index);
+    }
+
+    @Override
+    public void putLong(int index, long v) {
+        checkClosed();
+        byteBuffer.putLong(index, v);
+        markModified();
+    }
+
+    @Override
+    public void getBytes(int index, byte[] dst, int offset, int length) {
+        checkClosed();
+        slice(index).get(dst, offset, length);
+    }
+
+    @Override
+    public void putBytes(int index, byte[] src, int offset, int length) {
+        checkClosed();
+        slice(index).put(src, offset, length);
+        markModified();
+    }
+
+    @Override
+    public void getInts(int index, int[] dst, int offset, int length) {
+        checkClosed();
+        slice(index).asIntBuffer().get(dst, offset, length);
+    }
+
+    @Override
+    public void putInts(int index, int[] src, int offset, int length) {
+        checkClosed();
+        slice(index).asIntBuffer().put(src, offset, length);
+        markModified();
+    }
+
+    @Override
+    public void getLongs(int index, long[] dst, int offset, int length) {
+        checkClosed();
+        slice(index).asLongBuffer().get(dst, offset, length);
+    }
+
+    @Override
+    public void putLongs(int index, long[] src, int offset, int length) {
+        checkClosed();
+        slice(index).asLongBuffer().put(src, offset, length);
+        markModified();
+    }
+
+    @Override
+    public void fill(int index, int length, byte value) {
+        checkClosed();
+        ByteBuffer buffer = slice(index);
+        byte[] chunk = new byte[Math.min(length, 8192)];
+        Arrays.fill(chunk, value);
+        while (length > 0) {
+            int n = Math.min(length, chunk.length);
+            buffer.put(chunk, 0, n);
+            length -= n;
+        }
+        markModified();
+    }
+
+    /**
+     * atomically or bits into the byte at index
+     * @return true if any of the bits was clear before
+     */
+    @Override
+    public boolean setBitsAtomic(int index, byte bits) {
+        checkClosed();
+        checkAtomicIndex(index, 1);
+        if (address == 0) {
+            synchronized (this) {
+                byte v = byteBuffer.get(index);
+                byteBuffer.put(index, (byte) (v | bits));
+                markModified();
+                return (v & bits) != bits;
+            }
+        }
+        // cas the aligned int holding the byte
+        long wordAddress = address + (index & ~3);
+        int mask = (bits & 0xFF) << UnsafeAccess.byteShift(index);
+        for (;;) {
+            int v = UnsafeAccess.getIntVolatile(wordAddress);
+            if ((v & mask) == mask) {
+                return false;
+            }
+            if (UnsafeAccess.compareAndSwapInt(wordAddress, v, v | mask)) {
+                markModified();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * atomically clear bits of the byte at index
+     * @return true if any of the bits was set before
+     */
+    @Override
+    public boolean clearBitsAtomic(int index, byte bits) {
+        checkClosed();
+        checkAtomicIndex(index, 1);
+        if (address == 0) {
+            synchronized (this) {
+                byte v = byteBuffer.get(index);
+                byteBuffer.put(index, (byte) (v & ~bits));
+                markModified();
+                return (v & bits) != 0;
+            }
+        }
+        long wordAddress = address + (index & ~3);
+        int mask = (bits & 0xFF) << UnsafeAccess.byteShift(index);
+        for (;;) {
+            int v = UnsafeAccess.getIntVolatile(wordAddress);
+            if ((v & mask) == 0) {
+                return false;
+            }
+            if (UnsafeAccess.compareAndSwapInt(wordAddress, v, v & ~mask)) {
+                markModified();
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public boolean compareAndSetInt(int index, int expect, int update) {
+        checkClosed();
+        checkAtomicIndex(index, 4);
+        if (address == 0) {
+            synchronized (this) {
+                if (byteBuffer.getInt(index) != expect) {
+                    return false;
+                }
+                byteBuffer.putInt(index, update);
+                markModified();
+                return true;
+            }
+        }
+        if (UnsafeAccess.compareAndSwapInt(address + index, UnsafeAccess.toNative(expect), UnsafeAccess.toNative(update))) {
+            markModified();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int getAndAddInt(int index, int delta) {
+        checkClosed();
+        checkAtomicIndex(index, 4);
+        if (address == 0) {
+            synchronized (this) {
+                int v = byteBuffer.getInt(index);
+                byteBuffer.putInt(index, v + delta);
+                markModified();
+                return v;
+            }
+        }
+        for (;;) {
+            int v = UnsafeAccess.getIntVolatile(address + index);
+            int current = UnsafeAccess.toNative(v);
+            if (UnsafeAccess.compareAndSwapInt(address + index, v, UnsafeAccess.toNative(current + delta))) {
+                markModified();
+                return current;
+            }
+        }
+    }
+
+    // unsafe access is unchecked, never let it leave the mapping
+    private void checkAtomicIndex(int index, int alignment) {
+        if (index < 0 || (index | 3) >= byteBuffer.capacity()) {
+            throw new IndexOutOfBoundsException("index " + index + ", capacity " + byteBuffer.capacity());
+        }
+        if ((index & (alignment - 1)) != 0) {
+            throw new IllegalArgumentException("index " + index + " is not aligned to " + alignment);
+        }
+    }
+
+    /**
+     * record a write, must be called after the bytes are stored so a sync that re-arms the page sees them
+     */
+    void markModified() {
+        // the common case, a page written again, leaves the shared state word alone. the fence orders the bytes
+        // before the read as the getAndSet would, so a concurrent sync either shows up here or sees the bytes
+        if (UnsafeAccess.fullFence() && state.get() == (DIRTY | UNSYNCED)) {
+            return;
+        }
+        if ((state.getAndSet(DIRTY | UNSYNCED) & UNSYNCED) == 0 && modifiedListener != null) {
+            modifiedListener.run();
+        }
+    }
+
+    /**
+     * re-arm sync tracking, the next write reports the page as modified again
+     */
+    void markSynced() {
+        state.getAndUpdate(s -> s & ~UNSYNCED);
+    }
+
+    boolean isDirty() {
+        return (state.get() & DIRTY) != 0;
+    }
+
+    ByteBuffer buffer() {
+        checkClosed();
+        return byteBuffer;
+    }
+
+    /**
+     * read the mapped bytes into memory, a copy already is
+     */
+    void load() {
+        checkClosed();
+        if (byteBuffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) byteBuffer).load();
+        }
+    }
+
+    /**
+     * independent view starting at index, so bulk copies never touch the shared position
+     */
+    private ByteBuffer slice(int index) {
+        ByteBuffer buffer = byteBuffer.duplicate();
+        buffer.position(index);
+        return buffer;
     }
 
     @Override
@@ -67,7 +347,10 @@ public class MappedPage implements IMappedPage {
     @Override
     public void putBytes(byte[] buf, int offset, int length) {
         byteBuffer.put(buf, offset, length);
-        byteBuffer.force();
+        markModified();
+        if (unforcedCloseListener == null) {
+            force();
+        }
     }
 
     @Override
@@ -84,11 +367,27 @@ public class MappedPage implements IMappedPage {
         for (int i = offset, bufIndex = 0; i < length; i++, bufIndex++) {
             byteBuffer.putInt(i * 4, buf[bufIndex]);
         }
+        markModified();
     }
 
+    /**
+     * flush to disk only if written since the last force
+     */
     @Override
     public void force() {
-        byteBuffer.force();
+        if ((state.getAndUpdate(s -> s & ~DIRTY) & DIRTY) != 0) {
+            forceBuffer();
+        }
+    }
+
+    private void forceBuffer() {
+        long start = System.nanoTime();
+        if (byteBuffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) byteBuffer).force();
+        }
+        if (metrics != null) {
+            metrics.force.recordSince(start);
+        }
     }
 
     private void checkClosed() {
@@ -102,10 +401,24 @@ public class MappedPage implements IMappedPage {
         if (closed) {
             return;
         }
-        byteBuffer.force();
+        if (isDirty()) {
+            if (unforcedCloseListener == null) {
+                forceBuffer();
+            } else {
+                unforcedCloseListener.run();
+            }
+        }
+        int mappedBytes = byteBuffer.capacity();
+        long start = System.nanoTime();
         Cleaner.clean(byteBuffer);
+        if (metrics != null) {
+            metrics.unmap.recordSince(start);
+        }
         byteBuffer = null;
         closed = true;
+        if (memoryManager != null) {
+            memoryManager.release(mappedBytes);
+        }
     }
 
     @Override
@@ -113,6 +426,106 @@ public class MappedPage implements IMappedPage {
         return closed;
     }
 
+    /**
+     * sun.misc.Unsafe is only reached reflectively, through method handles, so compiling against it is not needed.
+     * static final handles are constants to the jit, calls through them cost the same as direct ones
+     */
+    static class UnsafeAccess {
+        private static final boolean AVAILABLE;
+        private static final long ADDRESS_OFFSET;
+        private static final MethodHandle GET_LONG;
+        private static final MethodHandle GET_INT_VOLATILE;
+        private static final MethodHandle COMPARE_AND_SWAP_INT;
+        private static final MethodHandle FULL_FENCE;
+        private static final boolean NATIVE_BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
+        static {
+            boolean available = false;
+            long addressOffsetX = -1;
+            MethodHandle getLongX = null;
+            MethodHandle getIntVolatileX = null;
+            MethodHandle compareAndSwapIntX = null;
+            MethodHandle fullFenceX = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                Object unsafe = theUnsafe.get(null);
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                addressOffsetX = (long) unsafeClass.getMethod("objectFieldOffset", Field.class)
+                        .invoke(unsafe, Buffer.class.getDeclaredField("address"));
+                getLongX = lookup.findVirtual(unsafeClass, "getLong", MethodType.methodType(long.class, Object.class, long.class))
+                        .bindTo(unsafe);
+                getIntVolatileX = lookup.findVirtual(unsafeClass, "getIntVolatile", MethodType.methodType(int.class, Object.class, long.class))
+                        .bindTo(unsafe);
+                compareAndSwapIntX = lookup.findVirtual(unsafeClass, "compareAndSwapInt",
+                        MethodType.methodType(boolean.class, Object.class, long.class, int.class, int.class)).bindTo(unsafe);
+                fullFenceX = lookup.findVirtual(unsafeClass, "fullFence", MethodType.methodType(void.class)).bindTo(unsafe);
+                available = true;
+            } catch (Exception e) {
+                logger.error("Class load unsafe error, atomic updates fall back to locking", e);
+            }
+            AVAILABLE = available;
+            ADDRESS_OFFSET = addressOffsetX;
+            GET_LONG = getLongX;
+            GET_INT_VOLATILE = getIntVolatileX;
+            COMPARE_AND_SWAP_INT = compareAndSwapIntX;
+            FULL_FENCE = fullFenceX;
+        }
+
+        static int getIntVolatile(long address) {
+            try {
+                return (int) GET_INT_VOLATILE.invokeExact((Object) null, address);
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return false without fencing if unsafe is not available
+         */
+        static boolean fullFence() {
+            if (!AVAILABLE) {
+                return false;
+            }
+            try {
+                FULL_FENCE.invokeExact();
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+            return true;
+        }
+
+        static boolean compareAndSwapInt(long address, int expect, int update) {
+            try {
+                return (boolean) COMPARE_AND_SWAP_INT.invokeExact((Object) null, address, expect, update);
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static long address(ByteBuffer byteBuffer) {
+            if (!AVAILABLE || !byteBuffer.isDirect()) {
+                return 0;
+            }
+            try {
+                return (long) GET_LONG.invokeExact((Object) byteBuffer, ADDRESS_OFFSET);
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // buffers are big endian, unsafe reads native order
+        static int toNative(int v) {
+            return NATIVE_BIG_ENDIAN ? v : Integer.reverseBytes(v);
+        }
+
+        // bit offset of the byte at index within its aligned native int
+        static int byteShift(int index) {
+            return NATIVE_BIG_ENDIAN ? (3 - (index & 3)) << 3 : (index & 3) << 3;
+        }
+    }
+
     static class Cleaner {
         public static final boolean CLEAN_SUPPORTED;
         private static final Method directBufferCleaner;
@@ -5,7 +5,21 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.mine.iptable.util.CommonUtils.resizeFor;
 
@@ -17,8 +31,35 @@ public class MappedPageFactory implements AutoCloseable {
     private final int maxSubPageInMem;
     private final String PAGE_NAME_PREFIX;
     private final String PAGE_NAME_SUFFIX = ".dat";
-    private final LRUCache<Integer, IMappedPage> pageCache;
-    private volatile int pageCount = 0;
+    private final PageCache<IMappedPage> pageCache;
+    private final AtomicInteger pageCount = new AtomicInteger();
+    // pages are created sparsely, pageCount is only the highest page index + 1
+    private final AtomicBitSet existingPages = new AtomicBitSet();
+    // version stamp of the last modification per page, restored from the manifest. versions handed out are tokens
+    // carrying the epoch next to the clock, a token of another epoch is answered like FULL_SYNC
+    private static final int EPOCH_SHIFT = 40;
+    private static final int MAX_EPOCH = (1 << 23) - 1;
+    private final Object versionLock = new Object();
+    private int epoch;
+    private long version = 0;
+    private long[] pageVersions = new long[16];
+    // token when the array was opened
+    private long openedVersion;
+    private volatile boolean closed;
+    private final Durability durability;
+    // pages closed with writes not yet synced to their file, see Durability
+    private final AtomicBitSet unflushedPages = new AtomicBitSet();
+    private final ScheduledExecutorService flusher;
+    private final boolean preload;
+    private final ReadAhead readAhead;
+    private final EvictionPolicy.Type evictionPolicy;
+    private final MemoryManager memoryManager;
+    private final ArrayMetrics metrics = new ArrayMetrics();
+    // page files opened with "r" and mapped READ_ONLY, nothing is created, written or deleted
+    private final boolean readOnly;
+    private final Path manifestPath;
+    // as found when opening, null for a new array or one written before manifests
+    private final Manifest manifest;
 
     public MappedPageFactory(String directory) {
         this(directory, "", 64 * 1024 * 1024, -1, 4 * 1024, 10);
@@ -29,11 +70,25 @@ public class MappedPageFactory implements AutoCloseable {
     }
 
     public MappedPageFactory(String directory, String dataFilePrefix, int pageSizeInBytes, int maxPageInMem, int subPageSizeInBytes, int maxSubPageInMem) {
+        this(directory, dataFilePrefix, pageSizeInBytes, maxPageInMem, subPageSizeInBytes, maxSubPageInMem, Durability.SYNC_ON_EVICT, false, ReadAhead.NONE,
+                EvictionPolicy.Type.CLOCK, MemoryManager.global(), false);
+    }
+
+    /**
+     * @param preload read the mapped part of a page file into memory when the page is opened
+     * @param readAhead prefetch of sub pages ahead of sequential readers, closed with the factory
+     * @param evictionPolicy used by the page cache and the sub page caches of the pages
+     * @param memoryManager byte budget for the mapped sub pages, shared with other factories
+     * @param readOnly open the existing page files read only, durability does not apply then
+     */
+    public MappedPageFactory(String directory, String dataFilePrefix, int pageSizeInBytes, int maxPageInMem, int subPageSizeInBytes, int maxSubPageInMem,
+                             Durability durability, boolean preload, ReadAhead readAhead, EvictionPolicy.Type evictionPolicy,
+                             MemoryManager memoryManager, boolean readOnly) {
         if (subPageSizeInBytes > pageSizeInBytes) {
             throw new IllegalArgumentException("subPageSizeInBytes > pageSizeInBytes");
         }
         File dir = new File(directory);
-        if (!dir.exists()) {
+        if (!dir.exists() && !readOnly) {
             dir.mkdirs();
         }
         if (!dir.isDirectory()) {
@@ -49,32 +104,103 @@ public class MappedPageFactory implements AutoCloseable {
         this.pageSizeInBytes = pageSizeInBytes;
         this.subPageSizeInBytes = subPageSizeInBytes;
         this.maxSubPageInMem = maxSubPageInMem;
-        this.pageCache = new LRUCache<>(maxPageInMem);
+        this.readOnly = readOnly;
+        this.manifestPath = Paths.get(directory + dataFilePrefix + Manifest.FILE_SUFFIX);
+        this.manifest = Manifest.read(manifestPath);
+        checkManifest();
+        // pages of a read only array are only closed with it unless bounded, so they need no pins
+        this.pageCache = readOnly && maxPageInMem < 0 ? PageCache.permanent(16, metrics.pages)
+                : new PageCache<>(maxPageInMem, 16, evictionPolicy, metrics.pages);
+        this.evictionPolicy = evictionPolicy;
+        this.memoryManager = memoryManager;
+        this.durability = durability;
+        this.preload = preload;
+        this.readAhead = readAhead;
         init();
+        restoreVersions();
+        if (durability.mode() == Durability.Mode.ASYNC_PERIODIC && !readOnly) {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "bigarray-flusher-" + indexDirectory);
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly, durability.intervalMillis(), durability.intervalMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
     }
 
+    /**
+     * unpinned, with a bounded maxPageInMem the page may be evicted and unmapped while the caller still uses it
+     * @deprecated use {@link #acquirePage(int)}
+     */
+    @Deprecated
     public IMappedPage getPage(int index) {
         checkAvailableIndex(index);
-        return loadPage(index);
+        return pageCache.computeIfAbsent(index, this::createPage);
     }
 
+    /**
+     * unpinned, with a bounded maxPageInMem the page may be evicted and unmapped while the caller still uses it
+     * @deprecated use {@link #acquireOrCreatePage(int)}
+     */
+    @Deprecated
     public IMappedPage getOrCreatePage(int index) {
-        if (index > pageCount || index < 0) {
-            throw new IllegalArgumentException("illegal index " + index + ", while pageSize=" + pageCount);
+        checkCreatableIndex(index);
+        if (readOnly && !pageExists(index)) {
+            throw new UnsupportedOperationException("page " + index + " does not exist and can not be created read only");
         }
-        return loadPage(index);
+        return pageCache.computeIfAbsent(index, this::createPage);
     }
 
-    public IMappedPage getPage() {
-        if (pageCount == 0) {
-            return loadPage(0);
-        } else {
-            return loadPage(pageCount - 1);
+    /**
+     * pinned variant of {@link #getPage(int)}, the page can not be evicted before the entry is released
+     */
+    public PageCache.Entry<IMappedPage> acquirePage(int index) {
+        checkAvailableIndex(index);
+        if (readOnly && !pageExists(index)) {
+            throw new IndexOutOfBoundsException("page " + index + " does not exist in read only " + name());
+        }
+        return pageCache.acquire(index, this::createPage);
+    }
+
+    /**
+     * pinned variant of {@link #getOrCreatePage(int)}
+     */
+    public PageCache.Entry<IMappedPage> acquireOrCreatePage(int index) {
+        checkCreatableIndex(index);
+        if (readOnly && !pageExists(index)) {
+            throw new UnsupportedOperationException("page " + index + " does not exist and can not be created read only");
+        }
+        return pageCache.acquire(index, this::createPage);
+    }
+
+    /**
+     * @return pinned page, or null without creating anything if the page file does not exist
+     */
+    public PageCache.Entry<IMappedPage> acquirePageIfExists(int index) {
+        if (!pageExists(index)) {
+            return null;
         }
+        return pageCache.acquire(index, this::createPage);
+    }
+
+    public boolean pageExists(int index) {
+        return index >= 0 && existingPages.get(index);
+    }
+
+    /**
+     * last page, unpinned like {@link #getPage(int)}
+     * @deprecated use {@link #acquireOrCreatePage(int)} with {@link #pageCount()} - 1
+     */
+    @Deprecated
+    public IMappedPage getPage() {
+        int count = pageCount.get();
+        return pageCache.computeIfAbsent(count == 0 ? 0 : count - 1, this::createPage);
     }
 
     public int pageCount() {
-        return pageCount;
+        return pageCount.get();
     }
 
     public int pageSizeInBytes() {
@@ -85,8 +211,25 @@ public class MappedPageFactory implements AutoCloseable {
         return subPageSizeInBytes;
     }
 
-    private IMappedPage loadPage(int index) {
-        return pageCache.computeIfAbsent(index, this::createPage);
+    /**
+     * path prefix of the page files, tells arrays apart
+     */
+    public String name() {
+        return indexDirectory + PAGE_NAME_PREFIX;
+    }
+
+    public ArrayMetrics metrics() {
+        return metrics;
+    }
+
+    public boolean readOnly() {
+        return readOnly;
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException(name() + " opened read only");
+        }
     }
 
     private IMappedPage createPage(int index) {
@@ -96,24 +239,243 @@ public class MappedPageFactory implements AutoCloseable {
             throw new IllegalStateException("index page already exist and is not a file: " + indexPagePath);
         }
         try  {
-            RandomAccessFile randomAccessFile = new RandomAccessFile(indexPagePath, "rw");
-            if (index >= pageCount) {
-                pageCount = index + 1;
+            RandomAccessFile randomAccessFile = new RandomAccessFile(indexPagePath, readOnly ? "r" : "rw");
+            existingPages.set(index);
+            pageCount.accumulateAndGet(index + 1, Math::max);
+            CompoundMappedPage page = new CompoundMappedPage(randomAccessFile, pageSizeInBytes, subPageSizeInBytes,
+                    pageSizeInBytes / subPageSizeInBytes, maxSubPageInMem, () -> pageModified(index), unflushedCloseListener(index), readAhead, evictionPolicy,
+                    memoryManager, metrics, readOnly);
+            if (preload) {
+                page.load();
             }
-            return new CompoundMappedPage(randomAccessFile, pageSizeInBytes, subPageSizeInBytes,
-                    pageSizeInBytes / subPageSizeInBytes, maxSubPageInMem);
+            return page;
         } catch (Exception e) {
             logger.error("create page failed", e);
         }
         return null;
     }
 
+    private Runnable unflushedCloseListener(int index) {
+        switch (durability.mode()) {
+            case SYNC_ON_EVICT:
+                return null;
+            case NONE:
+                return () -> {};
+            default:
+                return () -> unflushedPages.set(index);
+        }
+    }
+
+    /**
+     * called on the first write to a sub page after it was mapped or synced, not on every write
+     */
+    private void pageModified(int index) {
+        synchronized (versionLock) {
+            if (index >= pageVersions.length) {
+                pageVersions = Arrays.copyOf(pageVersions, Math.max(index + 1, pageVersions.length * 2));
+            }
+            pageVersions[index] = ++version;
+        }
+    }
+
+    /**
+     * @return token of the latest modification, only meaningful to pass back as sinceVersion
+     */
+    public long version() {
+        synchronized (versionLock) {
+            return token(version);
+        }
+    }
+
+    /**
+     * token of the array as it was opened, pages modified after it were modified by this process
+     */
+    public long openedVersion() {
+        synchronized (versionLock) {
+            return openedVersion;
+        }
+    }
+
+    /**
+     * @return existing pages modified after sinceVersion, every existing page if sinceVersion is negative, from
+     * another epoch or newer than the clock, like a token handed out before a crash
+     */
+    public int[] modifiedPages(long sinceVersion) {
+        synchronized (versionLock) {
+            if (sinceVersion >= 0 && ((int) (sinceVersion >>> EPOCH_SHIFT) != epoch || clock(sinceVersion) > version)) {
+                sinceVersion = -1;
+            } else if (sinceVersion >= 0) {
+                sinceVersion = clock(sinceVersion);
+            }
+            int count = pageCount.get();
+            int[] pages = new int[16];
+            int n = 0;
+            for (int index = existingPages.nextSetBit(0); index >= 0 && index < count; index = existingPages.nextSetBit(index + 1)) {
+                long pageVersion = index < pageVersions.length ? pageVersions[index] : 0;
+                if (pageVersion > sinceVersion) {
+                    if (n == pages.length) {
+                        pages = Arrays.copyOf(pages, n * 2);
+                    }
+                    pages[n++] = index;
+                }
+            }
+            return Arrays.copyOf(pages, n);
+        }
+    }
+
+    /**
+     * like {@link #modifiedPages(long)}, and tracking of the returned pages starts over: writes made after this call
+     * stamp them with a version above the returned one. the caller is expected to read the pages afterwards
+     */
+    public DirtyPages collectModifiedPages(long sinceVersion) {
+        synchronized (versionLock) {
+            int[] pages = modifiedPages(sinceVersion);
+            for (int index: pages) {
+                PageCache.Entry<IMappedPage> page = pageCache.acquireIfPresent(index);
+                if (page != null) {
+                    try {
+                        ((CompoundMappedPage) page.value()).markSynced();
+                    } finally {
+                        page.release();
+                    }
+                }
+            }
+            return new DirtyPages(token(version), pages);
+        }
+    }
+
+    /**
+     * hand the page file to access for reading, writes through the mapping are visible to it via the os page cache
+     */
+    public void readPageFile(int index, PageFileAccess access) {
+        if (!pageExists(index)) {
+            throw new IllegalArgumentException("page " + index + " does not exist");
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(getIndexPagePath(index)), StandardOpenOption.READ)) {
+            access.apply(channel);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * replace the content of the page file, the page counts as modified afterwards. the content is written to a file
+     * next to the page and moved over it, a mapping still held keeps the old file, writes through it are lost
+     */
+    public void writePageFile(int index, PageFileAccess access) {
+        checkWritable();
+        checkCreatableIndex(index);
+        Path path = Paths.get(getIndexPagePath(index));
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                access.apply(channel);
+                if (channel.size() > pageSizeInBytes) {
+                    throw new IllegalStateException("page file " + index + " larger than pageSizeInBytes " + pageSizeInBytes);
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            deleteQuietly(tmp);
+            throw new RuntimeException(e);
+        } catch (RuntimeException | Error e) {
+            deleteQuietly(tmp);
+            throw e;
+        }
+        // mapped before the move it still shows the old file, the next acquire maps the new one
+        pageCache.remove(index);
+        existingPages.set(index);
+        pageCount.accumulateAndGet(index + 1, Math::max);
+        pageModified(index);
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn("delete " + path + " error", e);
+        }
+    }
+
+    private long token(long clock) {
+        return ((long) epoch << EPOCH_SHIFT) | clock;
+    }
+
+    private static long clock(long token) {
+        return token & ((1L << EPOCH_SHIFT) - 1);
+    }
+
+    /**
+     * continue the clock of the manifest. a manifest that was not closed cleanly, or none at all, starts a new epoch:
+     * the last writer may have handed out versions above the recorded clock
+     */
+    private void restoreVersions() {
+        synchronized (versionLock) {
+            if (manifest == null) {
+                epoch = 1 + ThreadLocalRandom.current().nextInt(MAX_EPOCH);
+            } else {
+                epoch = manifest.clean ? manifest.epoch : manifest.epoch % MAX_EPOCH + 1;
+                version = manifest.version;
+                pageVersions = Arrays.copyOf(manifest.pageVersions, Math.max(16, manifest.pageVersions.length));
+            }
+            openedVersion = token(version);
+        }
+        // from here on a crash leaves an unclean manifest behind
+        writeManifest(savedCurrentIndex());
+    }
+
+    public Durability durability() {
+        return durability;
+    }
+
+    /**
+     * flush the sub pages written since their last force, and the files of pages closed with unflushed writes
+     */
+    public void force() {
+        if (readOnly) {
+            return;
+        }
+        pageCache.forEach(IMappedPage::force);
+        syncUnflushedPages();
+    }
+
+    private void syncUnflushedPages() {
+        for (int index = unflushedPages.nextSetBit(0); index >= 0; index = unflushedPages.nextSetBit(index + 1)) {
+            unflushedPages.clear(index);
+            try (FileChannel channel = FileChannel.open(Paths.get(getIndexPagePath(index)), StandardOpenOption.WRITE)) {
+                long start = System.nanoTime();
+                channel.force(false);
+                metrics.force.recordSince(start);
+            } catch (NoSuchFileException e) {
+                // deleted meanwhile
+            } catch (IOException e) {
+                unflushedPages.set(index);
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            force();
+        } catch (Exception e) {
+            // retried on the next round
+            logger.error("background flush error", e);
+        }
+    }
+
     private void checkAvailableIndex(int index) {
-        if (index >= pageCount || index < 0) {
+        if (index >= pageCount.get() || index < 0) {
             throw new IndexOutOfBoundsException("illegal index " + index + ", while pageSize=" + pageCount);
         }
     }
 
+    private void checkCreatableIndex(int index) {
+        if (index < 0) {
+            throw new IllegalArgumentException("illegal index " + index);
+        }
+    }
+
     private String getIndexPagePath(int index) {
         return indexDirectory + getIndexPageName(index);
     }
@@ -125,18 +487,31 @@ public class MappedPageFactory implements AutoCloseable {
 
     @Override
     public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        readAhead.close();
         pageCache.expireAll();
+        if (durability.mode() != Durability.Mode.NONE && !readOnly) {
+            syncUnflushedPages();
+        }
+        closed = true;
     }
 
     public boolean deletePage(int index) {
+        checkWritable();
         checkAvailableIndex(index);
         File pageFile = new File(getIndexPagePath(index));
         if (pageFile.exists() && pageFile.isFile()) {
-            IMappedPage mappedPage = pageCache.remove(index);
+            // closed here, or by the last thread still using it
+            pageCache.remove(index);
+            existingPages.clear(index);
             try {
-                 if (mappedPage != null && !mappedPage.isClosed()) {
-                     mappedPage.close();
-                 }
                 return pageFile.delete();
             } catch (Exception e) {
                 logger.error("delete page error", e);
@@ -146,11 +521,67 @@ public class MappedPageFactory implements AutoCloseable {
     }
 
     public void deleteAllPages() {
-        for (int pageIndex = 0; pageIndex < pageCount; pageIndex++) {
+        checkWritable();
+        for (int pageIndex = 0; pageIndex < pageCount.get(); pageIndex++) {
             deletePage(pageIndex);
         }
+        deleteManifest();
+    }
+
+    private void checkManifest() {
+        if (manifest == null) {
+            return;
+        }
+        if (manifest.pageSizeInBytes != pageSizeInBytes) {
+            throw new IllegalArgumentException("pageSizeInBytes " + pageSizeInBytes + " does not match " + manifest.pageSizeInBytes
+                    + " the pages in " + indexDirectory + " were written with");
+        }
+        if (manifest.subPageSizeInBytes != subPageSizeInBytes) {
+            // only the mapping granularity, the page files stay readable
+            logger.warn("subPageSizeInBytes " + subPageSizeInBytes + " differs from " + manifest.subPageSizeInBytes
+                    + " the pages in " + indexDirectory + " were written with");
+        }
     }
 
+    /**
+     * element index appended at when the manifest was last written, 0 without a manifest
+     */
+    public long savedCurrentIndex() {
+        return manifest == null ? 0 : manifest.currentIndex;
+    }
+
+    /**
+     * record geometry, page count, currentIndex and page versions for the next open, marked clean once the factory is
+     * closed. an array without pages has no manifest
+     */
+    public void writeManifest(long currentIndex) {
+        if (readOnly) {
+            return;
+        }
+        if (existingPages.nextSetBit(0) < 0) {
+            deleteManifest();
+            return;
+        }
+        int count = pageCount.get();
+        Manifest written;
+        synchronized (versionLock) {
+            written = new Manifest(pageSizeInBytes, subPageSizeInBytes, count, currentIndex, closed, epoch, version,
+                    Arrays.copyOf(pageVersions, count));
+        }
+        written.write(manifestPath);
+    }
+
+    private void deleteManifest() {
+        try {
+            Files.deleteIfExists(manifestPath);
+        } catch (IOException e) {
+            logger.error("delete manifest error", e);
+        }
+    }
+
+    /**
+     * note the existing page files, they are opened on first access
+     */
     private void init() {
         File[] files = new File(indexDirectory).listFiles(new FileFilter() {
             @Override
@@ -158,7 +589,7 @@ public class MappedPageFactory implements AutoCloseable {
                 return pathname.isFile() && pathname.getName().startsWith(PAGE_NAME_PREFIX) && pathname.getName().endsWith(PAGE_NAME_SUFFIX);
             }
         });
-        if (files == null || files.length == 0) {
+        if (files == null) {
             return;
         }
         for (File file: files) {
@@ -167,7 +598,12 @@ public class MappedPageFactory implements AutoCloseable {
             if (index < 0) {
                 throw new RuntimeException("Illegal data file name: " + name);
             }
-            loadPage(index);
+            existingPages.set(index);
+            pageCount.accumulateAndGet(index + 1, Math::max);
+        }
+        if (manifest != null && manifest.pageCount != pageCount.get()) {
+            // pages written after the last force or close, or deleted since
+            logger.warn("manifest of " + name() + " records " + manifest.pageCount + " pages, found " + pageCount.get());
         }
     }
 }
@@ -0,0 +1,172 @@
+package org.mine.iptable.bigtable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * byte budget for the sub pages mapped by any number of arrays. a sub page reserves its size before it is mapped
+ * and gives it back when unmapped, so the mapped total never exceeds the budget. over budget, sub pages are
+ * evicted from the cache holding the most bytes, the victim chosen by that cache's policy. if everything is
+ * pinned the reservation waits for a while and then fails. one reclaim pass frees room for several reservations,
+ * so a tight budget does not rank the caches for every sub page mapped
+ */
+public class MemoryManager {
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 1000;
+    private static final MemoryManager GLOBAL = new MemoryManager(Long.MAX_VALUE);
+    // reservations of the same size a reclaim pass makes room for
+    private static final int RECLAIM_BATCH = 8;
+    private volatile long budgetBytes;
+    private final long maxWaitNanos;
+    private final AtomicLong usedBytes = new AtomicLong();
+    // sub page caches and the bytes each of their entries maps
+    private final Map<PageCache<?>, Integer> caches = new ConcurrentHashMap<>();
+    private final ReentrantLock reclaimLock = new ReentrantLock();
+
+    public MemoryManager(long budgetBytes) {
+        this(budgetBytes, DEFAULT_MAX_WAIT_MILLIS);
+    }
+
+    public MemoryManager(long budgetBytes, long maxWaitMillis) {
+        if (budgetBytes <= 0) {
+            throw new IllegalArgumentException("budgetBytes must be positive: " + budgetBytes);
+        }
+        this.budgetBytes = budgetBytes;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    /**
+     * used by every array not given a manager of its own, unbounded until a budget is set
+     */
+    public static MemoryManager global() {
+        return GLOBAL;
+    }
+
+    public long budgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * a smaller budget takes effect as sub pages are mapped, nothing is evicted right away
+     */
+    public void budgetBytes(long budgetBytes) {
+        if (budgetBytes <= 0) {
+            throw new IllegalArgumentException("budgetBytes must be positive: " + budgetBytes);
+        }
+        this.budgetBytes = budgetBytes;
+    }
+
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+    void register(PageCache<?> cache, int entryBytes) {
+        caches.put(cache, entryBytes);
+    }
+
+    void unregister(PageCache<?> cache) {
+        caches.remove(cache);
+    }
+
+    /**
+     * @throws IllegalStateException if the budget stays exhausted by pinned sub pages
+     */
+    void reserve(int bytes) {
+        if (tryReserve(bytes)) {
+            return;
+        }
+        if (bytes > budgetBytes) {
+            throw new IllegalStateException("sub page of " + bytes + " bytes exceeds memory budget " + budgetBytes);
+        }
+        long deadline = System.nanoTime() + maxWaitNanos;
+        for (;;) {
+            reclaimLock.lock();
+            try {
+                do {
+                    if (tryReserve(bytes)) {
+                        return;
+                    }
+                } while (reclaim(bytes));
+            } finally {
+                reclaimLock.unlock();
+            }
+            if (System.nanoTime() - deadline > 0) {
+                throw new IllegalStateException("memory budget " + budgetBytes + " exhausted, " + usedBytes.get()
+                        + " bytes mapped by pinned sub pages");
+            }
+            // pins are held for single accesses, wait for some to go
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+    }
+
+    void release(int bytes) {
+        usedBytes.addAndGet(-bytes);
+    }
+
+    private boolean tryReserve(int bytes) {
+        for (;;) {
+            long used = usedBytes.get();
+            if (used + bytes > budgetBytes) {
+                return false;
+            }
+            if (usedBytes.compareAndSet(used, used + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * evict from the caches holding the most bytes until bytes and a few more reservations like it fit, without
+     * taking more than a quarter of the budget beyond what is needed
+     * @return false if no cache could give up an entry
+     */
+    private boolean reclaim(int bytes) {
+        long budget = budgetBytes;
+        long target = Math.min(budget - bytes, Math.max(budget - (long) bytes * RECLAIM_BATCH, budget - budget / 4));
+        List<Candidate> largest = new ArrayList<>(caches.size());
+        for (Map.Entry<PageCache<?>, Integer> cache: caches.entrySet()) {
+            long cacheBytes = (long) cache.getKey().size() * cache.getValue();
+            if (cacheBytes > 0) {
+                largest.add(new Candidate(cache.getKey(), cache.getValue(), cacheBytes));
+            }
+        }
+        PriorityQueue<Candidate> candidates = new PriorityQueue<>(largest);
+        boolean evicted = false;
+        while (usedBytes.get() > target && !candidates.isEmpty()) {
+            Candidate candidate = candidates.poll();
+            if (candidate.cache.evictOne()) {
+                evicted = true;
+                candidate.bytes -= candidate.entryBytes;
+                if (candidate.bytes > 0) {
+                    candidates.add(candidate);
+                }
+            }
+        }
+        return evicted;
+    }
+
+    private static final class Candidate implements Comparable<Candidate> {
+        private final PageCache<?> cache;
+        private final int entryBytes;
+        // as counted when the pass started, less what the pass took
+        private long bytes;
+
+        private Candidate(PageCache<?> cache, int entryBytes, long bytes) {
+            this.cache = cache;
+            this.entryBytes = entryBytes;
+            this.bytes = bytes;
+        }
+
+        // largest first
+        @Override
+        public int compareTo(Candidate other) {
+            return Long.compare(other.bytes, bytes);
+        }
+    }
+}
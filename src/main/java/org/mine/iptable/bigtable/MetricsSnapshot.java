@@ -0,0 +1,79 @@
+package org.mine.iptable.bigtable;
+
+/**
+ * point in time copy of {@link ArrayMetrics}. counters are read one after the other, so under load they are not
+ * exactly consistent with each other
+ */
+public final class MetricsSnapshot {
+    private final long pageHits;
+    private final long pageMisses;
+    private final long pageEvictions;
+    private final long subPageHits;
+    private final long subPageMisses;
+    private final long subPageEvictions;
+    private final LatencyHistogram.Snapshot map;
+    private final LatencyHistogram.Snapshot unmap;
+    private final LatencyHistogram.Snapshot force;
+
+    MetricsSnapshot(CacheStats pages, CacheStats subPages, LatencyHistogram.Snapshot map, LatencyHistogram.Snapshot unmap,
+                    LatencyHistogram.Snapshot force) {
+        this.pageHits = pages.hits();
+        this.pageMisses = pages.misses();
+        this.pageEvictions = pages.evictions();
+        this.subPageHits = subPages.hits();
+        this.subPageMisses = subPages.misses();
+        this.subPageEvictions = subPages.evictions();
+        this.map = map;
+        this.unmap = unmap;
+        this.force = force;
+    }
+
+    public long pageHits() {
+        return pageHits;
+    }
+
+    public long pageMisses() {
+        return pageMisses;
+    }
+
+    public long pageEvictions() {
+        return pageEvictions;
+    }
+
+    public long subPageHits() {
+        return subPageHits;
+    }
+
+    public long subPageMisses() {
+        return subPageMisses;
+    }
+
+    public long subPageEvictions() {
+        return subPageEvictions;
+    }
+
+    public double subPageHitRatio() {
+        long total = subPageHits + subPageMisses;
+        return total == 0 ? 0 : (double) subPageHits / total;
+    }
+
+    public LatencyHistogram.Snapshot map() {
+        return map;
+    }
+
+    public LatencyHistogram.Snapshot unmap() {
+        return unmap;
+    }
+
+    public LatencyHistogram.Snapshot force() {
+        return force;
+    }
+
+    @Override
+    public String toString() {
+        return "pages: hits=" + pageHits + " misses=" + pageMisses + " evictions=" + pageEvictions
+                + "\nsub pages: hits=" + subPageHits + " misses=" + subPageMisses + " evictions=" + subPageEvictions
+                + String.format(" hitRatio=%.4f", subPageHitRatio())
+                + "\nmap: " + map + "\nunmap: " + unmap + "\nforce: " + force;
+    }
+}
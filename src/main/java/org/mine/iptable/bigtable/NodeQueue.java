@@ -0,0 +1,73 @@
+package org.mine.iptable.bigtable;
+
+/**
+ * intrusive fifo of policy nodes, a node is in at most one queue at a time. not thread safe
+ */
+class NodeQueue {
+    private EvictionPolicy.Node head;
+    private EvictionPolicy.Node tail;
+    private int size;
+
+    void addLast(EvictionPolicy.Node node) {
+        node.queue = this;
+        node.prev = tail;
+        node.next = null;
+        if (tail == null) {
+            head = node;
+        } else {
+            tail.next = node;
+        }
+        tail = node;
+        size++;
+    }
+
+    boolean remove(EvictionPolicy.Node node) {
+        if (node.queue != this) {
+            return false;
+        }
+        if (node.prev == null) {
+            head = node.next;
+        } else {
+            node.prev.next = node.next;
+        }
+        if (node.next == null) {
+            tail = node.prev;
+        } else {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+        node.queue = null;
+        size--;
+        return true;
+    }
+
+    void moveToLast(EvictionPolicy.Node node) {
+        if (node != tail) {
+            remove(node);
+            addLast(node);
+        }
+    }
+
+    EvictionPolicy.Node first() {
+        return head;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        EvictionPolicy.Node node = head;
+        while (node != null) {
+            EvictionPolicy.Node next = node.next;
+            node.prev = null;
+            node.next = null;
+            node.queue = null;
+            node = next;
+        }
+        head = null;
+        tail = null;
+        size = 0;
+    }
+}
@@ -0,0 +1,411 @@
+package org.mine.iptable.bigtable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * page table indexed by page number. lookups are lock free, only installing or removing a page takes a lock.
+ * every acquired entry is pinned until released, eviction skips pinned entries and explicitly removed entries
+ * are closed by their last user, so a page is never unmapped while in use. which entry is evicted is up to an
+ * {@link EvictionPolicy}, it learns about installs and removals from a queue drained under the eviction lock
+ */
+public class PageCache<T extends ICloseable> {
+    private static final Logger logger = LoggerFactory.getLogger(PageCache.class);
+    private final int maxSize;
+    private final Object tableLock = new Object();
+    private final AtomicInteger size = new AtomicInteger();
+    // installed entries, and removed ones again, for the policy
+    private final ConcurrentLinkedQueue<Entry<T>> events = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final EvictionPolicy policy;
+    private final CacheStats stats;
+    // entries stay until expireAll and are never pinned
+    private final boolean permanent;
+    private volatile AtomicReferenceArray<Entry<T>> table;
+
+    public PageCache(int maxSize) {
+        this(maxSize, 16);
+    }
+
+    public PageCache(int maxSize, int initialCapacity) {
+        this(maxSize, initialCapacity, EvictionPolicy.Type.CLOCK);
+    }
+
+    public PageCache(int maxSize, int initialCapacity, EvictionPolicy.Type policyType) {
+        this(maxSize, initialCapacity, policyType, new CacheStats());
+    }
+
+    /**
+     * @param maxSize negative for unbounded, entries then only leave when removed or taken by a MemoryManager
+     * @param stats counts hits, misses and evictions, may be shared with other caches
+     */
+    public PageCache(int maxSize, int initialCapacity, EvictionPolicy.Type policyType, CacheStats stats) {
+        this(maxSize, initialCapacity, policyType, stats, false);
+    }
+
+    private PageCache(int maxSize, int initialCapacity, EvictionPolicy.Type policyType, CacheStats stats, boolean permanent) {
+        this.maxSize = maxSize;
+        this.stats = stats;
+        this.permanent = permanent;
+        this.table = new AtomicReferenceArray<>(Math.max(1, initialCapacity));
+        this.policy = policyType.create(maxSize < 0 ? Math.max(16, initialCapacity) : maxSize);
+    }
+
+    /**
+     * unbounded cache whose entries only leave on expireAll, for values nobody else may close early like the pages
+     * of a read only array. acquire and release then touch no shared state, remove is not supported
+     */
+    public static <T extends ICloseable> PageCache<T> permanent(int initialCapacity, CacheStats stats) {
+        return new PageCache<>(-1, initialCapacity, EvictionPolicy.Type.CLOCK, stats, true);
+    }
+
+    /**
+     * @return pinned entry, caller must {@link Entry#release()} it
+     */
+    public Entry<T> acquire(int key, IntFunction<T> creator) {
+        for (;;) {
+            Entry<T> entry = lookup(key);
+            if (entry == null) {
+                if (creator == null) {
+                    return null;
+                }
+                stats.misses.increment();
+                return install(key, creator, true);
+            }
+            if (entry.tryPin()) {
+                stats.hits.increment();
+                if (!permanent) {
+                    policy.onAccess(entry);
+                }
+                return entry;
+            }
+            // retired by a concurrent eviction or removal
+            unlink(entry);
+        }
+    }
+
+    /**
+     * @return pinned entry or null if key is not cached
+     */
+    public Entry<T> acquireIfPresent(int key) {
+        return acquire(key, null);
+    }
+
+    /**
+     * install key unless it is cached already, an existing entry is left as it is
+     * @return pinned new entry, or null if key was cached
+     */
+    public Entry<T> prefetch(int key, IntFunction<T> creator) {
+        if (lookup(key) != null) {
+            return null;
+        }
+        return install(key, creator, false);
+    }
+
+    public boolean contains(int key) {
+        return lookup(key) != null;
+    }
+
+    /**
+     * unpinned lookup, the value may be evicted and closed at any time after return, even while the caller still
+     * uses it. only safe on an unbounded cache whose entries are never removed
+     * @deprecated use {@link #acquire(int, IntFunction)} and release the entry when done
+     */
+    @Deprecated
+    public T computeIfAbsent(int key, IntFunction<T> creator) {
+        Entry<T> entry = acquire(key, creator);
+        entry.release();
+        return entry.value;
+    }
+
+    public T remove(int key) {
+        if (permanent) {
+            throw new UnsupportedOperationException("entries of a permanent cache can not be removed");
+        }
+        Entry<T> entry = lookup(key);
+        if (entry == null) {
+            return null;
+        }
+        unlink(entry);
+        entry.retire();
+        events.offer(entry);
+        return entry.value;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public CacheStats stats() {
+        return stats;
+    }
+
+    /**
+     * visit every cached value, each one pinned during the visit
+     */
+    public void forEach(Consumer<T> consumer) {
+        AtomicReferenceArray<Entry<T>> t = table;
+        for (int i = 0; i < t.length(); i++) {
+            Entry<T> entry = t.get(i);
+            if (entry != null && entry.tryPin()) {
+                try {
+                    consumer.accept(entry.value);
+                } finally {
+                    entry.release();
+                }
+            }
+        }
+    }
+
+    public List<T> values() {
+        List<T> values = new ArrayList<>();
+        forEach(values::add);
+        return values;
+    }
+
+    public void expireAll() {
+        List<Entry<T>> entries = new ArrayList<>();
+        // same lock order as eviction
+        evictionLock.lock();
+        try {
+            synchronized (tableLock) {
+                AtomicReferenceArray<Entry<T>> t = table;
+                for (int i = 0; i < t.length(); i++) {
+                    Entry<T> entry = t.get(i);
+                    if (entry != null) {
+                        t.set(i, null);
+                        size.decrementAndGet();
+                        entries.add(entry);
+                    }
+                }
+            }
+            events.clear();
+            policy.clear();
+        } finally {
+            evictionLock.unlock();
+        }
+        for (Entry<T> entry: entries) {
+            entry.retire();
+        }
+    }
+
+    private Entry<T> lookup(int key) {
+        AtomicReferenceArray<Entry<T>> t = table;
+        if (key < 0 || key >= t.length()) {
+            return null;
+        }
+        return t.get(key);
+    }
+
+    private Entry<T> install(int key, IntFunction<T> creator, boolean acquireExisting) {
+        // map outside of the table lock, a racing creator of the same key simply loses
+        T value = creator.apply(key);
+        if (value == null) {
+            throw new IllegalStateException("create page failed, index " + key);
+        }
+        Entry<T> entry = new Entry<>(key, value, !permanent);
+        Entry<T> existing;
+        synchronized (tableLock) {
+            AtomicReferenceArray<Entry<T>> t = ensureCapacity(key);
+            existing = t.get(key);
+            if (existing == null) {
+                t.set(key, entry);
+                size.incrementAndGet();
+            }
+        }
+        if (existing != null) {
+            closeQuietly(value);
+            return acquireExisting ? acquire(key, creator) : null;
+        }
+        if (permanent) {
+            return entry;
+        }
+        events.offer(entry);
+        evictIfNecessary();
+        return entry;
+    }
+
+    private AtomicReferenceArray<Entry<T>> ensureCapacity(int key) {
+        AtomicReferenceArray<Entry<T>> t = table;
+        if (key < t.length()) {
+            return t;
+        }
+        int capacity = t.length();
+        while (capacity <= key) {
+            capacity = capacity > (Integer.MAX_VALUE >> 1) ? Integer.MAX_VALUE : capacity << 1;
+        }
+        AtomicReferenceArray<Entry<T>> grown = new AtomicReferenceArray<>(capacity);
+        for (int i = 0; i < t.length(); i++) {
+            grown.set(i, t.get(i));
+        }
+        table = grown;
+        return grown;
+    }
+
+    private void unlink(Entry<T> entry) {
+        synchronized (tableLock) {
+            AtomicReferenceArray<Entry<T>> t = table;
+            if (entry.key < t.length() && t.get(entry.key) == entry) {
+                t.set(entry.key, null);
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    private void evictIfNecessary() {
+        // an install that lost the lock leaves its event to the holder, which looks again once it let go
+        do {
+            if (!evictionLock.tryLock()) {
+                return;
+            }
+            try {
+                while (maxSize >= 0 && size.get() > maxSize) {
+                    if (!evictVictim()) {
+                        break;
+                    }
+                }
+                drainEvents();
+            } finally {
+                evictionLock.unlock();
+            }
+        } while (!events.isEmpty());
+    }
+
+    /**
+     * evict one idle entry chosen by the policy, whatever the size
+     * @return false if there is none or another thread is evicting
+     */
+    boolean evictOne() {
+        if (!evictionLock.tryLock()) {
+            return false;
+        }
+        try {
+            return evictVictim();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private boolean evictVictim() {
+        for (;;) {
+            drainEvents();
+            @SuppressWarnings("unchecked")
+            Entry<T> entry = (Entry<T>) policy.victim(node -> ((Entry<?>) node).isIdle());
+            if (entry == null) {
+                return false;
+            }
+            // pinned since it was chosen otherwise, ask again
+            if (entry.tryRetireIdle()) {
+                entry.tracked = false;
+                policy.onRemove(entry, true);
+                unlink(entry);
+                stats.evictions.increment();
+                closeQuietly(entry.value);
+                return true;
+            }
+        }
+    }
+
+    private void drainEvents() {
+        Entry<T> entry;
+        while ((entry = events.poll()) != null) {
+            if (!entry.isRetired()) {
+                if (!entry.tracked) {
+                    entry.tracked = true;
+                    policy.onInsert(entry);
+                }
+            } else if (entry.tracked) {
+                entry.tracked = false;
+                policy.onRemove(entry, false);
+            }
+        }
+    }
+
+    private static void closeQuietly(ICloseable value) {
+        try {
+            if (!value.isClosed()) {
+                value.close();
+            }
+        } catch (Exception e) {
+            logger.error("remove entry error", e);
+        }
+    }
+
+    public static final class Entry<T extends ICloseable> extends EvictionPolicy.Node {
+        private static final int RETIRED = 1 << 30;
+        private final T value;
+        // false in a permanent cache, where the state only ever gets the RETIRED bit
+        private final boolean pinned;
+        // pin count, RETIRED bit set once the entry left the table
+        private final AtomicInteger state;
+
+        private Entry(int key, T value, boolean pinned) {
+            super(key);
+            this.value = value;
+            this.pinned = pinned;
+            // installed pinned for its creator
+            this.state = new AtomicInteger(pinned ? 1 : 0);
+        }
+
+        public T value() {
+            return value;
+        }
+
+        public void release() {
+            if (pinned && state.decrementAndGet() == RETIRED) {
+                closeQuietly(value);
+            }
+        }
+
+        private boolean tryPin() {
+            if (!pinned) {
+                return !isRetired();
+            }
+            for (;;) {
+                int s = state.get();
+                if ((s & RETIRED) != 0) {
+                    return false;
+                }
+                if (state.compareAndSet(s, s + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private boolean tryRetireIdle() {
+            return state.compareAndSet(0, RETIRED);
+        }
+
+        private void retire() {
+            for (;;) {
+                int s = state.get();
+                if ((s & RETIRED) != 0) {
+                    return;
+                }
+                if (state.compareAndSet(s, s | RETIRED)) {
+                    if (s == 0) {
+                        closeQuietly(value);
+                    }
+                    return;
+                }
+            }
+        }
+
+        private boolean isRetired() {
+            return (state.get() & RETIRED) != 0;
+        }
+
+        private boolean isIdle() {
+            return pinned && state.get() == 0;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package org.mine.iptable.bigtable;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * direct access to the file behind a page, for zero copy transfers, see {@link BigArray#readPageFile}
+ */
+public interface PageFileAccess {
+    void apply(FileChannel channel) throws IOException;
+}
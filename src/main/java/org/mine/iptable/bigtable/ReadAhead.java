@@ -0,0 +1,72 @@
+package org.mine.iptable.bigtable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * background mapping of the sub pages ahead of a sequential or strided reader, shared by the pages of a factory
+ */
+public final class ReadAhead implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ReadAhead.class);
+    // larger jumps between sub pages are not taken for a pattern
+    static final int MAX_STRIDE = 16;
+    public static final ReadAhead NONE = new ReadAhead(0, null, false);
+    private final int depth;
+    private final Executor executor;
+    private final boolean ownsExecutor;
+
+    private ReadAhead(int depth, Executor executor, boolean ownsExecutor) {
+        this.depth = depth;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    /**
+     * @param executor runs the prefetches, a daemon thread of its own if null
+     */
+    public static ReadAhead of(int depth, Executor executor) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("read ahead depth < 0: " + depth);
+        }
+        if (depth == 0) {
+            return NONE;
+        }
+        if (executor != null) {
+            return new ReadAhead(depth, executor, false);
+        }
+        ExecutorService ownExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bigarray-read-ahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return new ReadAhead(depth, ownExecutor, true);
+    }
+
+    /**
+     * @return sub pages to map ahead, at most half of what a page keeps in memory so the pages being read stay
+     */
+    int depth(int maxSubPageInMem) {
+        return maxSubPageInMem < 0 ? depth : Math.min(depth, maxSubPageInMem / 2);
+    }
+
+    void submit(Runnable prefetch) {
+        try {
+            executor.execute(prefetch);
+        } catch (RejectedExecutionException e) {
+            // shutting down or saturated, reading maps the page itself
+            logger.debug("read ahead rejected", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            ((ExecutorService) executor).shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.mine.iptable.bigtable;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * 2Q: a new entry goes to the fifo "in", hits there are ignored since a reader touches its page many times in a
+ * row. evicted from "in", only its key is remembered in "out"; asked for again while remembered, it goes to the
+ * hot queue, which is run as a clock. a scan therefore only ever churns "in"
+ */
+class TwoQueuePolicy implements EvictionPolicy {
+    private final NodeQueue in = new NodeQueue();
+    private final NodeQueue hot = new NodeQueue();
+    private final LinkedHashSet<Integer> out = new LinkedHashSet<>();
+    private final int maxIn;
+    private final int maxOut;
+
+    TwoQueuePolicy(int maxSize) {
+        this.maxIn = Math.max(1, maxSize / 4);
+        this.maxOut = Math.max(1, maxSize / 2);
+    }
+
+    @Override
+    public void onAccess(Node node) {
+        if (!node.referenced) {
+            node.referenced = true;
+        }
+    }
+
+    @Override
+    public void onInsert(Node node) {
+        node.referenced = true;
+        if (out.remove(node.key)) {
+            hot.addLast(node);
+        } else {
+            in.addLast(node);
+        }
+    }
+
+    @Override
+    public void onRemove(Node node, boolean evicted) {
+        if (in.remove(node)) {
+            if (evicted) {
+                remember(node.key);
+            }
+        } else {
+            hot.remove(node);
+        }
+    }
+
+    private void remember(int key) {
+        out.add(key);
+        if (out.size() > maxOut) {
+            Iterator<Integer> oldest = out.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    @Override
+    public Node victim(Predicate<Node> evictable) {
+        if (in.size() > maxIn || hot.size() == 0) {
+            Node node = first(in, evictable);
+            if (node != null) {
+                return node;
+            }
+        }
+        Node node = ClockPolicy.sweep(hot, evictable);
+        return node != null ? node : first(in, evictable);
+    }
+
+    private static Node first(NodeQueue queue, Predicate<Node> evictable) {
+        for (Node node = queue.first(); node != null; node = node.next) {
+            if (evictable.test(node)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void clear() {
+        in.clear();
+        hot.clear();
+        out.clear();
+    }
+}
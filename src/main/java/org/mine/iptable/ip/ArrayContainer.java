@@ -0,0 +1,144 @@
+package org.mine.iptable.ip;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+final class ArrayContainer extends Container {
+    private char[] content;
+    private int cardinality;
+
+    ArrayContainer() {
+        this(new char[4], 0);
+    }
+
+    ArrayContainer(char[] content, int cardinality) {
+        this.content = content;
+        this.cardinality = cardinality;
+    }
+
+    @Override
+    boolean contains(int x) {
+        return Arrays.binarySearch(content, 0, cardinality, (char) x) >= 0;
+    }
+
+    @Override
+    Container add(int x) {
+        int index = Arrays.binarySearch(content, 0, cardinality, (char) x);
+        if (index >= 0) {
+            return this;
+        }
+        if (cardinality >= MAX_ARRAY_SIZE) {
+            return toBitmap().add(x);
+        }
+        index = -index - 1;
+        if (cardinality == content.length) {
+            content = Arrays.copyOf(content, Math.min(MAX_ARRAY_SIZE, content.length * 2));
+        }
+        System.arraycopy(content, index, content, index + 1, cardinality - index);
+        content[index] = (char) x;
+        cardinality++;
+        return this;
+    }
+
+    @Override
+    Container remove(int x) {
+        int index = Arrays.binarySearch(content, 0, cardinality, (char) x);
+        if (index >= 0) {
+            System.arraycopy(content, index + 1, content, index, cardinality - index - 1);
+            cardinality--;
+        }
+        return this;
+    }
+
+    @Override
+    Container addRange(int lo, int hi) {
+        int from = lowerBound(lo);
+        int to = lowerBound(hi + 1);
+        int updated = cardinality - (to - from) + (hi - lo + 1);
+        if (updated > MAX_ARRAY_SIZE) {
+            return toBitmap().addRange(lo, hi);
+        }
+        char[] merged = new char[Math.max(updated, 4)];
+        System.arraycopy(content, 0, merged, 0, from);
+        for (int x = lo; x <= hi; x++) {
+            merged[from + x - lo] = (char) x;
+        }
+        System.arraycopy(content, to, merged, from + hi - lo + 1, cardinality - to);
+        content = merged;
+        cardinality = updated;
+        return this;
+    }
+
+    @Override
+    Container removeRange(int lo, int hi) {
+        int from = lowerBound(lo);
+        int to = lowerBound(hi + 1);
+        System.arraycopy(content, to, content, from, cardinality - to);
+        cardinality -= to - from;
+        return this;
+    }
+
+    // index of the first value >= x
+    private int lowerBound(int x) {
+        if (x > 65535) {
+            return cardinality;
+        }
+        int index = Arrays.binarySearch(content, 0, cardinality, (char) x);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    @Override
+    int cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    int runCount() {
+        int runs = 0;
+        for (int i = 0; i < cardinality; i++) {
+            if (i == 0 || content[i] != content[i - 1] + 1) {
+                runs++;
+            }
+        }
+        return runs;
+    }
+
+    @Override
+    int sizeInBytes() {
+        return 2 * cardinality;
+    }
+
+    @Override
+    BitmapContainer toBitmap() {
+        BitmapContainer bitmap = new BitmapContainer();
+        for (int i = 0; i < cardinality; i++) {
+            bitmap.add(content[i]);
+        }
+        return bitmap;
+    }
+
+    @Override
+    byte type() {
+        return ARRAY;
+    }
+
+    @Override
+    void write(DataOutput out) throws IOException {
+        out.writeByte(ARRAY);
+        out.writeInt(cardinality);
+        for (int i = 0; i < cardinality; i++) {
+            out.writeChar(content[i]);
+        }
+    }
+
+    static ArrayContainer read(DataInput in) throws IOException {
+        int cardinality = in.readInt();
+        char[] content = new char[Math.max(cardinality, 4)];
+        for (int i = 0; i < cardinality; i++) {
+            content[i] = in.readChar();
+        }
+        return new ArrayContainer(content, cardinality);
+    }
+}
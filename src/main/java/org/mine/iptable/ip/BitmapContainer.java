@@ -0,0 +1,178 @@
+package org.mine.iptable.ip;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+final class BitmapContainer extends Container {
+    private final long[] words;
+    private int cardinality;
+
+    BitmapContainer() {
+        this(new long[1024], 0);
+    }
+
+    private BitmapContainer(long[] words, int cardinality) {
+        this.words = words;
+        this.cardinality = cardinality;
+    }
+
+    @Override
+    boolean contains(int x) {
+        return (words[x >>> 6] & (1L << x)) != 0;
+    }
+
+    @Override
+    Container add(int x) {
+        long word = words[x >>> 6];
+        if ((word & (1L << x)) == 0) {
+            words[x >>> 6] = word | (1L << x);
+            cardinality++;
+        }
+        return this;
+    }
+
+    @Override
+    Container remove(int x) {
+        long word = words[x >>> 6];
+        if ((word & (1L << x)) != 0) {
+            words[x >>> 6] = word & ~(1L << x);
+            cardinality--;
+            if (cardinality <= MAX_ARRAY_SIZE) {
+                return toArray();
+            }
+        }
+        return this;
+    }
+
+    @Override
+    Container addRange(int lo, int hi) {
+        setRange(lo, hi, true);
+        return this;
+    }
+
+    @Override
+    Container removeRange(int lo, int hi) {
+        setRange(lo, hi, false);
+        return cardinality <= MAX_ARRAY_SIZE ? toArray() : this;
+    }
+
+    private void setRange(int lo, int hi, boolean value) {
+        int first = lo >>> 6;
+        int last = hi >>> 6;
+        for (int i = first; i <= last; i++) {
+            long mask = -1L;
+            if (i == first) {
+                mask &= -1L << lo;
+            }
+            if (i == last) {
+                mask &= -1L >>> (63 - (hi & 63));
+            }
+            long word = words[i];
+            long updated = value ? word | mask : word & ~mask;
+            cardinality += Long.bitCount(updated) - Long.bitCount(word);
+            words[i] = updated;
+        }
+    }
+
+    @Override
+    int cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    int runCount() {
+        int runs = 0;
+        long previous = 0;
+        for (long word: words) {
+            // a run starts at every set bit whose lower neighbour is clear
+            runs += Long.bitCount(word & ~((word << 1) | (previous >>> 63)));
+            previous = word;
+        }
+        return runs;
+    }
+
+    @Override
+    int sizeInBytes() {
+        return BITMAP_SIZE_IN_BYTES;
+    }
+
+    @Override
+    BitmapContainer toBitmap() {
+        return this;
+    }
+
+    ArrayContainer toArray() {
+        char[] content = new char[cardinality];
+        int n = 0;
+        for (int i = 0; i < words.length; i++) {
+            long word = words[i];
+            while (word != 0) {
+                content[n++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return new ArrayContainer(content, n);
+    }
+
+    RunContainer toRuns() {
+        char[] runs = new char[2 * runCount()];
+        int n = 0;
+        int x = nextSetBit(0);
+        while (x >= 0) {
+            int end = nextClearBit(x);
+            runs[2 * n] = (char) x;
+            runs[2 * n + 1] = (char) (end - 1 - x);
+            n++;
+            x = end < 65536 ? nextSetBit(end) : -1;
+        }
+        return new RunContainer(runs, n);
+    }
+
+    private int nextSetBit(int from) {
+        int i = from >>> 6;
+        long word = words[i] & (-1L << from);
+        while (word == 0) {
+            if (++i == words.length) {
+                return -1;
+            }
+            word = words[i];
+        }
+        return (i << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    private int nextClearBit(int from) {
+        int i = from >>> 6;
+        long word = ~words[i] & (-1L << from);
+        while (word == 0) {
+            if (++i == words.length) {
+                return 65536;
+            }
+            word = ~words[i];
+        }
+        return (i << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    @Override
+    byte type() {
+        return BITMAP;
+    }
+
+    @Override
+    void write(DataOutput out) throws IOException {
+        out.writeByte(BITMAP);
+        out.writeInt(cardinality);
+        for (long word: words) {
+            out.writeLong(word);
+        }
+    }
+
+    static BitmapContainer read(DataInput in) throws IOException {
+        int cardinality = in.readInt();
+        long[] words = new long[1024];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readLong();
+        }
+        return new BitmapContainer(words, cardinality);
+    }
+}
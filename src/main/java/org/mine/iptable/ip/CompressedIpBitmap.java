@@ -0,0 +1,285 @@
+package org.mine.iptable.ip;
+
+import org.mine.iptable.util.IpUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * in memory ip set for sparse or clustered address lists. addresses are grouped by their high 16 bits and every
+ * group is kept as a sorted array, a 8KB bitmap or a list of runs, whichever is smallest, so a few scattered
+ * addresses or a handful of large cidr blocks cost bytes instead of the 512MB of a full {@link IpBitmap}.
+ * lookups read optimistically and write nothing shared, they only take the read lock when a writer got in between
+ */
+public class CompressedIpBitmap implements IpSet {
+    private static final int MAGIC = 0x49504353;
+    private static final int VERSION = 1;
+    private static final int LOW_MASK = 0xFFFF;
+    private final Container[] containers = new Container[1 << 16];
+    private final StampedLock lock = new StampedLock();
+
+    @Override
+    public void add(int ip) {
+        long stamp = lock.writeLock();
+        try {
+            addUnlocked(ip);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void addUnlocked(int ip) {
+        int key = ip >>> 16;
+        Container container = containers[key];
+        if (container == null) {
+            container = new ArrayContainer();
+        }
+        containers[key] = container.add(ip & LOW_MASK);
+    }
+
+    @Override
+    public void remove(int ip) {
+        long stamp = lock.writeLock();
+        try {
+            int key = ip >>> 16;
+            Container container = containers[key];
+            if (container != null) {
+                containers[key] = nullIfEmpty(container.remove(ip & LOW_MASK));
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void addAll(int[] ips, int offset, int length) {
+        long stamp = lock.writeLock();
+        try {
+            for (int i = offset; i < offset + length; i++) {
+                addUnlocked(ips[i]);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * add every address in [startIp, endIp], both inclusive and compared unsigned. whole /16 blocks become a single run
+     */
+    @Override
+    public void addRange(int startIp, int endIp) {
+        checkRange(startIp, endIp);
+        long stamp = lock.writeLock();
+        try {
+            int lastKey = endIp >>> 16;
+            for (int key = startIp >>> 16; key <= lastKey; key++) {
+                int lo = key == startIp >>> 16 ? startIp & LOW_MASK : 0;
+                int hi = key == lastKey ? endIp & LOW_MASK : LOW_MASK;
+                Container container = containers[key];
+                if (lo == 0 && hi == LOW_MASK) {
+                    containers[key] = RunContainer.full();
+                } else {
+                    containers[key] = (container == null ? new ArrayContainer() : container).addRange(lo, hi).optimize();
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void removeRange(int startIp, int endIp) {
+        checkRange(startIp, endIp);
+        long stamp = lock.writeLock();
+        try {
+            int lastKey = endIp >>> 16;
+            for (int key = startIp >>> 16; key <= lastKey; key++) {
+                Container container = containers[key];
+                if (container == null) {
+                    continue;
+                }
+                int lo = key == startIp >>> 16 ? startIp & LOW_MASK : 0;
+                int hi = key == lastKey ? endIp & LOW_MASK : LOW_MASK;
+                if (lo == 0 && hi == LOW_MASK) {
+                    containers[key] = null;
+                } else {
+                    containers[key] = nullIfEmpty(container.removeRange(lo, hi).optimize());
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private static void checkRange(int startIp, int endIp) {
+        if (Integer.compareUnsigned(startIp, endIp) > 0) {
+            throw new IllegalArgumentException("startIp " + IpUtils.ip(startIp) + " > endIp " + IpUtils.ip(endIp));
+        }
+    }
+
+    private static Container nullIfEmpty(Container container) {
+        return container.isEmpty() ? null : container;
+    }
+
+    @Override
+    public boolean contains(int ip) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                boolean contains = containsUnlocked(ip);
+                if (lock.validate(stamp)) {
+                    return contains;
+                }
+            } catch (RuntimeException e) {
+                // a container torn by a concurrent writer, which the stamp then reports
+                if (lock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return containsUnlocked(ip);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private boolean containsUnlocked(int ip) {
+        Container container = containers[ip >>> 16];
+        return container != null && container.contains(ip & LOW_MASK);
+    }
+
+    @Override
+    public void containsAll(int[] ips, boolean[] out) {
+        if (out.length < ips.length) {
+            throw new IllegalArgumentException("out.length " + out.length + " < ips.length " + ips.length);
+        }
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                containsAllUnlocked(ips, out);
+                if (lock.validate(stamp)) {
+                    return;
+                }
+            } catch (RuntimeException e) {
+                if (lock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            containsAllUnlocked(ips, out);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private void containsAllUnlocked(int[] ips, boolean[] out) {
+        for (int i = 0; i < ips.length; i++) {
+            out[i] = containsUnlocked(ips[i]);
+        }
+    }
+
+    /**
+     * convert every group to its smallest form, worth calling once after a bulk load of single addresses
+     */
+    public void runOptimize() {
+        long stamp = lock.writeLock();
+        try {
+            for (int key = 0; key < containers.length; key++) {
+                if (containers[key] != null) {
+                    containers[key] = containers[key].optimize();
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public long cardinality() {
+        long stamp = lock.readLock();
+        try {
+            long cardinality = 0;
+            for (Container container: containers) {
+                if (container != null) {
+                    cardinality += container.cardinality();
+                }
+            }
+            return cardinality;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * approximate payload size of the containers, excluding object headers and the key table
+     */
+    public long sizeInBytes() {
+        long stamp = lock.readLock();
+        try {
+            long size = 0;
+            for (Container container: containers) {
+                if (container != null) {
+                    size += container.sizeInBytes();
+                }
+            }
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public void save(String filename) {
+        long stamp = lock.readLock();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)))) {
+            int count = 0;
+            for (Container container: containers) {
+                if (container != null) {
+                    count++;
+                }
+            }
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            for (int key = 0; key < containers.length; key++) {
+                if (containers[key] != null) {
+                    out.writeChar(key);
+                    containers[key].write(out);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public static CompressedIpBitmap load(String filename) {
+        IpFileLoader.checkFile(filename);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IllegalArgumentException("not a compressed ip bitmap file: " + filename);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("unsupported compressed ip bitmap version " + version + ": " + filename);
+            }
+            CompressedIpBitmap bitmap = new CompressedIpBitmap();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                bitmap.containers[in.readChar()] = Container.read(in);
+            }
+            return bitmap;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
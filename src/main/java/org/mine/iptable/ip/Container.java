@@ -0,0 +1,77 @@
+package org.mine.iptable.ip;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * set of the low 16 bits of the addresses sharing one /16. mutators return the container to keep,
+ * which is a converted one when the current representation stops fitting
+ */
+abstract class Container {
+    static final int MAX_ARRAY_SIZE = 4096;
+    static final int BITMAP_SIZE_IN_BYTES = 8192;
+    static final byte ARRAY = 1;
+    static final byte BITMAP = 2;
+    static final byte RUN = 3;
+
+    abstract boolean contains(int x);
+
+    abstract Container add(int x);
+
+    abstract Container remove(int x);
+
+    /**
+     * @param lo first value, inclusive
+     * @param hi last value, inclusive
+     */
+    abstract Container addRange(int lo, int hi);
+
+    abstract Container removeRange(int lo, int hi);
+
+    abstract int cardinality();
+
+    abstract int runCount();
+
+    abstract int sizeInBytes();
+
+    abstract BitmapContainer toBitmap();
+
+    abstract byte type();
+
+    abstract void write(DataOutput out) throws IOException;
+
+    boolean isEmpty() {
+        return cardinality() == 0;
+    }
+
+    /**
+     * switch to whichever of array, bitmap or runs is smallest for the current content
+     */
+    Container optimize() {
+        int cardinality = cardinality();
+        int arraySize = 2 * cardinality;
+        int runSize = RunContainer.sizeInBytes(runCount());
+        if (runSize < arraySize && runSize < BITMAP_SIZE_IN_BYTES) {
+            return type() == RUN ? this : toBitmap().toRuns();
+        }
+        if (cardinality <= MAX_ARRAY_SIZE) {
+            return type() == ARRAY ? this : toBitmap().toArray();
+        }
+        return type() == BITMAP ? this : toBitmap();
+    }
+
+    static Container read(DataInput in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case ARRAY:
+                return ArrayContainer.read(in);
+            case BITMAP:
+                return BitmapContainer.read(in);
+            case RUN:
+                return RunContainer.read(in);
+            default:
+                throw new IOException("unknown container type " + type);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.mine.iptable.ip;
+
+import org.mine.iptable.bigtable.BigArray;
+import org.mine.iptable.bigtable.BigArrayCursor;
+import org.mine.iptable.util.IpUtils;
+
+import java.util.Arrays;
+
+/**
+ * one bit per ipv4 address, 2^32 bits (512MB) at most, pages that hold no address are never created.
+ * updates are atomic bit operations, so several threads may add and remove concurrently
+ */
+public class IpBitmap implements IpSet, AutoCloseable {
+    public static final long BITMAP_SIZE_IN_BYTES = 1L << 29;
+    private final BigArray bigArray;
+
+    public IpBitmap(BigArray bigArray) {
+        if ((long) bigArray.maxPageCount() * bigArray.pageSizeInBytes() < BITMAP_SIZE_IN_BYTES) {
+            throw new IllegalArgumentException("bigarray too small for an ip bitmap, maxPageCount " + bigArray.maxPageCount() +
+                    ", pageSizeInBytes " + bigArray.pageSizeInBytes() + ", required bytes " + BITMAP_SIZE_IN_BYTES);
+        }
+        this.bigArray = bigArray;
+    }
+
+    public BigArray bigArray() {
+        return bigArray;
+    }
+
+    @Override
+    public void add(int ip) {
+        orByte(IpUtils.byteIndicator(ip), IpUtils.bitIndicator(ip));
+    }
+
+    @Override
+    public void remove(int ip) {
+        andNotByte(IpUtils.byteIndicator(ip), IpUtils.bitIndicator(ip));
+    }
+
+    /**
+     * add a batch through one cursor, clustered input maps each sub page once
+     */
+    @Override
+    public void addAll(int[] ips, int offset, int length) {
+        try (BigArrayCursor cursor = bigArray.cursor()) {
+            for (int i = offset; i < offset + length; i++) {
+                cursor.setBitsAtomic(IpUtils.byteIndicator(ips[i]), (byte) IpUtils.bitIndicator(ips[i]));
+            }
+        }
+    }
+
+    /**
+     * add every address in [startIp, endIp], both inclusive and compared unsigned
+     */
+    @Override
+    public void addRange(int startIp, int endIp) {
+        long first = checkRange(startIp, endIp);
+        long last = endIp & 0xFFFFFFFFL;
+        long firstByte = first >>> 3;
+        long lastByte = last >>> 3;
+        if (firstByte == lastByte) {
+            orByte(firstByte, headMask(first) & tailMask(last));
+            return;
+        }
+        orByte(firstByte, headMask(first));
+        // interior bytes are whole, filled in bulk straight into the mapped sub pages
+        bigArray.fill(firstByte + 1, lastByte - firstByte - 1, (byte) 0xFF);
+        orByte(lastByte, tailMask(last));
+    }
+
+    /**
+     * remove every address in [startIp, endIp], pages that were never written are left untouched
+     */
+    @Override
+    public void removeRange(int startIp, int endIp) {
+        long first = checkRange(startIp, endIp);
+        long last = endIp & 0xFFFFFFFFL;
+        long firstByte = first >>> 3;
+        long lastByte = last >>> 3;
+        if (firstByte == lastByte) {
+            andNotByte(firstByte, headMask(first) & tailMask(last));
+            return;
+        }
+        andNotByte(firstByte, headMask(first));
+        bigArray.clear(firstByte + 1, lastByte - firstByte - 1);
+        andNotByte(lastByte, tailMask(last));
+    }
+
+    private static long checkRange(int startIp, int endIp) {
+        if (Integer.compareUnsigned(startIp, endIp) > 0) {
+            throw new IllegalArgumentException("startIp " + IpUtils.ip(startIp) + " > endIp " + IpUtils.ip(endIp));
+        }
+        return startIp & 0xFFFFFFFFL;
+    }
+
+    // bits of the first address and above within its byte
+    private static int headMask(long ip) {
+        return (0xFF << (ip & 7)) & 0xFF;
+    }
+
+    // bits of the last address and below within its byte
+    private static int tailMask(long ip) {
+        return 0xFF >>> (7 - (ip & 7));
+    }
+
+    private void orByte(long bytesIndex, int bits) {
+        bigArray.setBitsAtomic(bytesIndex, (byte) bits);
+    }
+
+    private void andNotByte(long bytesIndex, int bits) {
+        bigArray.clearBitsAtomic(bytesIndex, (byte) bits);
+    }
+
+    @Override
+    public boolean contains(int ip) {
+        return (bigArray.getByteOrDefault(IpUtils.byteIndicator(ip), (byte) 0) & IpUtils.bitIndicator(ip)) != 0;
+    }
+
+    /**
+     * batched lookup, queries are ordered by address so every sub page is mapped at most once per batch
+     * @param ips addresses to check
+     * @param out out[i] is set to whether ips[i] is present
+     */
+    @Override
+    public void containsAll(int[] ips, boolean[] out) {
+        if (out.length < ips.length) {
+            throw new IllegalArgumentException("out.length " + out.length + " < ips.length " + ips.length);
+        }
+        // byte index in the high bits, position in the batch in the low bits
+        long[] queries = new long[ips.length];
+        for (int i = 0; i < ips.length; i++) {
+            queries[i] = ((long) IpUtils.byteIndicator(ips[i]) << 32) | i;
+        }
+        Arrays.sort(queries);
+        try (BigArrayCursor cursor = bigArray.cursor()) {
+            for (long query: queries) {
+                int i = (int) query;
+                out[i] = (cursor.getByteOrDefault(query >>> 32, (byte) 0) & IpUtils.bitIndicator(ips[i])) != 0;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        bigArray.close();
+    }
+}
@@ -0,0 +1,291 @@
+package org.mine.iptable.ip;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * reads one dotted quad per line straight from file bytes into ints, no object is allocated per line.
+ * blank lines are skipped, surrounding spaces and \r are allowed, malformed lines are counted and skipped.
+ */
+public class IpFileLoader {
+    private static final Logger logger = LoggerFactory.getLogger(IpFileLoader.class);
+    static final int BUFFER_SIZE = 1024 * 1024;
+    static final int BATCH_SIZE = 64 * 1024;
+    static final long PARALLEL_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    public static LoadStats load(String filename, IpSet ipSet) {
+        LoadStats stats = read(filename, ipSet::addAll);
+        logger.info("load " + filename + " finished, " + stats);
+        return stats;
+    }
+
+    public static LoadStats read(String filename, IpBatchConsumer consumer) {
+        File file = checkFile(filename);
+        long begin = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Parser parser = new Parser(consumer);
+            parser.parse(channel, 0, channel.size());
+            return parser.stats(System.nanoTime() - begin);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * split the file on line boundaries and parse the pieces on the pool, ipSet must accept concurrent addAll calls
+     */
+    public static LoadStats loadParallel(String filename, IpSet ipSet, ForkJoinPool pool) {
+        LoadStats stats = readParallel(filename, ipSet::addAll, pool);
+        logger.info("parallel load " + filename + " finished, parallelism " + pool.getParallelism() + ", " + stats);
+        return stats;
+    }
+
+    public static LoadStats loadParallel(String filename, IpSet ipSet) {
+        return loadParallel(filename, ipSet, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param consumer called concurrently from pool threads
+     */
+    public static LoadStats readParallel(String filename, IpBatchConsumer consumer, ForkJoinPool pool) {
+        File file = checkFile(filename);
+        long begin = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            LoadStats stats = pool.invoke(new ParseTask(channel, 0, channel.size(), consumer));
+            return new LoadStats(stats.lines, stats.invalidLines, stats.bytes, System.nanoTime() - begin);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return position right after the first line feed at or after position, or end
+     */
+    static long nextLineStart(FileChannel channel, long position, long end) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(256);
+        while (position < end) {
+            byteBuffer.clear();
+            int n = channel.read(byteBuffer, position);
+            if (n < 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (byteBuffer.get(i) == '\n') {
+                    return Math.min(position + i + 1, end);
+                }
+            }
+            position += n;
+        }
+        return end;
+    }
+
+    static class ParseTask extends RecursiveTask<LoadStats> {
+        private static final long serialVersionUID = 1L;
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final IpBatchConsumer consumer;
+
+        ParseTask(FileChannel channel, long start, long end, IpBatchConsumer consumer) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.consumer = consumer;
+        }
+
+        @Override
+        protected LoadStats compute() {
+            try {
+                if (end - start > PARALLEL_CHUNK_SIZE) {
+                    long middle = nextLineStart(channel, start + (end - start) / 2, end);
+                    if (middle < end) {
+                        ParseTask right = new ParseTask(channel, middle, end, consumer);
+                        right.fork();
+                        LoadStats left = new ParseTask(channel, start, middle, consumer).compute();
+                        return left.merge(right.join());
+                    }
+                }
+                Parser parser = new Parser(consumer);
+                parser.parse(channel, start, end);
+                return parser.stats(0);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    static File checkFile(String filename) {
+        File file = new File(filename);
+        if (!file.exists() || !file.isFile()) {
+            throw new IllegalArgumentException("illegal file: " + filename);
+        }
+        return file;
+    }
+
+    public interface IpBatchConsumer {
+        void accept(int[] ips, int offset, int length);
+    }
+
+    static class Parser {
+        private final IpBatchConsumer consumer;
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private final int[] batch = new int[BATCH_SIZE];
+        private int batchSize = 0;
+        // state of the current line
+        private int ip = 0;
+        private int octet = 0;
+        private int octets = 0;
+        private int digits = 0;
+        private boolean content = false;
+        private boolean trailing = false;
+        private boolean invalid = false;
+        private long lines = 0;
+        private long invalidLines = 0;
+        private long bytes = 0;
+
+        Parser(IpBatchConsumer consumer) {
+            this.consumer = consumer;
+        }
+
+        /**
+         * parse [start, end) of the file, start must be the beginning of a line and end the end of one (or eof)
+         */
+        void parse(FileChannel channel, long start, long end) throws IOException {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buf);
+            long position = start;
+            while (position < end) {
+                byteBuffer.clear();
+                byteBuffer.limit((int) Math.min(buf.length, end - position));
+                int n = channel.read(byteBuffer, position);
+                if (n < 0) {
+                    break;
+                }
+                parse(buf, n);
+                position += n;
+            }
+            bytes += position - start;
+            endLine();
+            flush();
+        }
+
+        private void parse(byte[] buf, int length) {
+            for (int i = 0; i < length; i++) {
+                byte c = buf[i];
+                int d = c - '0';
+                if (d >= 0 && d <= 9) {
+                    if (trailing || ++digits > 3) {
+                        invalid = true;
+                    } else {
+                        octet = octet * 10 + d;
+                    }
+                    content = true;
+                } else if (c == '.') {
+                    if (trailing || digits == 0 || octet > 255 || octets == 3) {
+                        invalid = true;
+                    } else {
+                        ip = (ip << 8) | octet;
+                        octets++;
+                        octet = 0;
+                        digits = 0;
+                    }
+                    content = true;
+                } else if (c == '\n') {
+                    endLine();
+                } else if (c == ' ' || c == '\t' || c == '\r') {
+                    trailing = content;
+                } else {
+                    invalid = true;
+                    content = true;
+                }
+            }
+        }
+
+        private void endLine() {
+            if (content) {
+                lines++;
+                if (!invalid && octets == 3 && digits > 0 && octet <= 255) {
+                    batch[batchSize++] = (ip << 8) | octet;
+                    if (batchSize == batch.length) {
+                        flush();
+                    }
+                } else {
+                    invalidLines++;
+                }
+            }
+            ip = octet = octets = digits = 0;
+            content = trailing = invalid = false;
+        }
+
+        private void flush() {
+            if (batchSize > 0) {
+                consumer.accept(batch, 0, batchSize);
+                batchSize = 0;
+            }
+        }
+
+        LoadStats stats(long elapsedNanos) {
+            return new LoadStats(lines, invalidLines, bytes, elapsedNanos);
+        }
+    }
+
+    public static class LoadStats {
+        private final long lines;
+        private final long invalidLines;
+        private final long bytes;
+        private final long elapsedNanos;
+
+        public LoadStats(long lines, long invalidLines, long bytes, long elapsedNanos) {
+            this.lines = lines;
+            this.invalidLines = invalidLines;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long lines() {
+            return lines;
+        }
+
+        public long ips() {
+            return lines - invalidLines;
+        }
+
+        public long invalidLines() {
+            return invalidLines;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+
+        public long elapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+        public double linesPerSecond() {
+            return elapsedNanos == 0 ? 0 : lines * 1e9 / elapsedNanos;
+        }
+
+        public double megabytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos / (1024 * 1024);
+        }
+
+        LoadStats merge(LoadStats other) {
+            return new LoadStats(lines + other.lines, invalidLines + other.invalidLines, bytes + other.bytes,
+                    Math.max(elapsedNanos, other.elapsedNanos));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("lines %d, invalid %d, bytes %d, elapsed %d ms, %.0f lines/s, %.1f MB/s",
+                    lines, invalidLines, bytes, elapsedMillis(), linesPerSecond(), megabytesPerSecond());
+        }
+    }
+}
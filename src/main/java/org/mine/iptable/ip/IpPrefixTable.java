@@ -0,0 +1,315 @@
+package org.mine.iptable.ip;
+
+import org.mine.iptable.bigtable.BigArray;
+import org.mine.iptable.bigtable.BigArrayCursor;
+import org.mine.iptable.util.IpUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * longest prefix match from ipv4 prefixes to int values, laid out as DIR-24-8: one int per /24 (64MB) and a block
+ * of 256 ints for every /24 holding a prefix longer than /24, so a lookup reads one or two ints. every entry keeps
+ * the length of the prefix it came from, an insert only overwrites entries of shorter or equal prefixes.
+ * the prefixes themselves are kept on the heap too, a delete needs the next shorter one covering it. the table
+ * starts empty whatever the array held before.
+ * lookups are lock free and run concurrently with updates, which are serialized. a lookup racing the delete that
+ * frees a block and the insert reusing it may read the new block once
+ */
+public class IpPrefixTable implements AutoCloseable {
+    public static final int NO_VALUE = -1;
+    public static final int MAX_VALUE = (1 << 24) - 2;
+    private static final int LEVEL_ONE_SIZE = 1 << 24;
+    private static final int BLOCK_SIZE = 256;
+    // a level one entry with this bit points to a block, whose number is in the low 24 bits. any other entry is a
+    // route, prefix length in bits 24..29 and value + 1 in the low 24 bits, 0 for none
+    private static final int BLOCK_FLAG = 1 << 31;
+    private static final int CHUNK = 4096;
+    private final BigArray bigArray;
+    private final int maxBlocks;
+    private final Object updateLock = new Object();
+    // prefix -> value per prefix length
+    private final List<Map<Integer, Integer>> routes;
+    private final ArrayDeque<Integer> freeBlocks = new ArrayDeque<>();
+    private int nextBlock = 0;
+    private int size = 0;
+
+    public IpPrefixTable(BigArray bigArray) {
+        long capacity = (long) bigArray.maxPageCount() * bigArray.pageSizeInBytes() / 4;
+        if (capacity < LEVEL_ONE_SIZE + BLOCK_SIZE) {
+            throw new IllegalArgumentException("bigarray too small for an ip prefix table, maxPageCount " + bigArray.maxPageCount() +
+                    ", pageSizeInBytes " + bigArray.pageSizeInBytes() + ", required bytes " + (LEVEL_ONE_SIZE + BLOCK_SIZE) * 4L);
+        }
+        this.bigArray = bigArray;
+        this.maxBlocks = (int) Math.min(1 << 24, (capacity - LEVEL_ONE_SIZE) / BLOCK_SIZE);
+        this.routes = new ArrayList<>(33);
+        for (int i = 0; i <= 32; i++) {
+            routes.add(new HashMap<>());
+        }
+        bigArray.clear(0, LEVEL_ONE_SIZE * 4L);
+        // every level one page exists from here on, lookups never miss one
+        bigArray.getOrPutInt(LEVEL_ONE_SIZE - 1);
+    }
+
+    public BigArray bigArray() {
+        return bigArray;
+    }
+
+    /**
+     * @return value of the longest prefix holding ip, {@link #NO_VALUE} if there is none
+     */
+    public int lookup(int ip) {
+        int entry = bigArray.getInt(ip >>> 8);
+        if ((entry & BLOCK_FLAG) != 0) {
+            entry = bigArray.getInt(blockOffset(entry) + (ip & 0xFF));
+        }
+        return value(entry);
+    }
+
+    /**
+     * batched lookup, queries are ordered by address so every sub page is mapped at most once per batch
+     * @param out out[i] is set to the value for ips[i]
+     */
+    public void lookupAll(int[] ips, int[] out) {
+        if (out.length < ips.length) {
+            throw new IllegalArgumentException("out.length " + out.length + " < ips.length " + ips.length);
+        }
+        // address in the high bits, position in the batch in the low bits
+        long[] queries = new long[ips.length];
+        for (int i = 0; i < ips.length; i++) {
+            queries[i] = ((ips[i] & 0xFFFFFFFFL) << 32) | i;
+        }
+        Arrays.sort(queries);
+        // one cursor per level, so they do not push each other out of their sub page
+        try (BigArrayCursor levelOne = bigArray.cursor(); BigArrayCursor blocks = bigArray.cursor()) {
+            for (long query: queries) {
+                int ip = (int) (query >>> 32);
+                int entry = levelOne.getInt(ip >>> 8);
+                if ((entry & BLOCK_FLAG) != 0) {
+                    entry = blocks.getInt(blockOffset(entry) + (ip & 0xFF));
+                }
+                out[(int) query] = value(entry);
+            }
+        }
+    }
+
+    /**
+     * @return previous value of the prefix, {@link #NO_VALUE} if it is new
+     */
+    public int put(String cidr, int value) {
+        int[] range = IpUtils.parseCidr(cidr);
+        return put(range[0], Integer.numberOfLeadingZeros(range[0] ^ range[1]), value);
+    }
+
+    /**
+     * @param prefix host bits are ignored
+     * @param value between 0 and {@link #MAX_VALUE}
+     * @return previous value of the prefix, {@link #NO_VALUE} if it is new
+     */
+    public int put(int prefix, int prefixLength, int value) {
+        checkPrefixLength(prefixLength);
+        if (value < 0 || value > MAX_VALUE) {
+            throw new IllegalArgumentException("value must be between 0 and " + MAX_VALUE + ": " + value);
+        }
+        int start = prefix & mask(prefixLength);
+        int route = route(prefixLength, value);
+        IntUnaryOperator rewrite = entry -> length(entry) <= prefixLength ? route : entry;
+        synchronized (updateLock) {
+            Integer previous = routes.get(prefixLength).put(start, value);
+            if (previous == null) {
+                size++;
+            }
+            if (prefixLength <= 24) {
+                rewriteLevelOne(start >>> 8, 1 << (24 - prefixLength), rewrite);
+            } else {
+                long offset = blockOffset(ensureBlock(start >>> 8));
+                rewrite(offset + (start & 0xFF), 1 << (32 - prefixLength), rewrite);
+            }
+            return previous == null ? NO_VALUE : previous;
+        }
+    }
+
+    /**
+     * @return value of the removed prefix, {@link #NO_VALUE} if it was not in the table
+     */
+    public int remove(String cidr) {
+        int[] range = IpUtils.parseCidr(cidr);
+        return remove(range[0], Integer.numberOfLeadingZeros(range[0] ^ range[1]));
+    }
+
+    /**
+     * addresses of the prefix fall back to the longest shorter prefix holding them
+     * @return value of the removed prefix, {@link #NO_VALUE} if it was not in the table
+     */
+    public int remove(int prefix, int prefixLength) {
+        checkPrefixLength(prefixLength);
+        int start = prefix & mask(prefixLength);
+        synchronized (updateLock) {
+            Integer previous = routes.get(prefixLength).remove(start);
+            if (previous == null) {
+                return NO_VALUE;
+            }
+            size--;
+            int fallback = coveringRoute(start, prefixLength);
+            // prefixes of equal length never overlap, so these entries are all from the removed one
+            IntUnaryOperator rewrite = entry -> length(entry) == prefixLength ? fallback : entry;
+            if (prefixLength <= 24) {
+                rewriteLevelOne(start >>> 8, 1 << (24 - prefixLength), rewrite);
+            } else {
+                int pointer = bigArray.getInt(start >>> 8);
+                rewrite(blockOffset(pointer) + (start & 0xFF), 1 << (32 - prefixLength), rewrite);
+                collapseBlock(start >>> 8, pointer);
+            }
+            return previous;
+        }
+    }
+
+    /**
+     * @return number of prefixes
+     */
+    public int size() {
+        synchronized (updateLock) {
+            return size;
+        }
+    }
+
+    /**
+     * @return number of /24 blocks in use
+     */
+    int blockCount() {
+        synchronized (updateLock) {
+            return nextBlock - freeBlocks.size();
+        }
+    }
+
+    private static void checkPrefixLength(int prefixLength) {
+        if (prefixLength < 0 || prefixLength > 32) {
+            throw new IllegalArgumentException("prefixLength must be between 0 and 32: " + prefixLength);
+        }
+    }
+
+    /**
+     * rewrite level one entries, following the ones that point to a block
+     */
+    private void rewriteLevelOne(int from, int count, IntUnaryOperator rewrite) {
+        int[] entries = new int[Math.min(count, CHUNK)];
+        for (int done = 0; done < count; done += entries.length) {
+            bigArray.getInts(from + done, entries, 0, entries.length);
+            boolean changed = false;
+            for (int i = 0; i < entries.length; i++) {
+                int entry = entries[i];
+                if ((entry & BLOCK_FLAG) != 0) {
+                    rewrite(blockOffset(entry), BLOCK_SIZE, rewrite);
+                    continue;
+                }
+                int rewritten = rewrite.applyAsInt(entry);
+                if (rewritten != entry) {
+                    entries[i] = rewritten;
+                    changed = true;
+                }
+            }
+            if (changed) {
+                bigArray.putInts(from + done, entries, 0, entries.length);
+            }
+        }
+    }
+
+    private void rewrite(long from, int count, IntUnaryOperator rewrite) {
+        int[] entries = new int[count];
+        bigArray.getInts(from, entries, 0, count);
+        boolean changed = false;
+        for (int i = 0; i < count; i++) {
+            int rewritten = rewrite.applyAsInt(entries[i]);
+            if (rewritten != entries[i]) {
+                entries[i] = rewritten;
+                changed = true;
+            }
+        }
+        if (changed) {
+            bigArray.putInts(from, entries, 0, count);
+        }
+    }
+
+    /**
+     * @return pointer to the block of a /24, split off its level one entry if there is none yet
+     */
+    private int ensureBlock(int index) {
+        int entry = bigArray.getInt(index);
+        if ((entry & BLOCK_FLAG) != 0) {
+            return entry;
+        }
+        int pointer = BLOCK_FLAG | allocateBlock();
+        int[] entries = new int[BLOCK_SIZE];
+        Arrays.fill(entries, entry);
+        bigArray.putInts(blockOffset(pointer), entries, 0, BLOCK_SIZE);
+        // the cas publishes the filled block to lookups
+        bigArray.compareAndSetInt(index, entry, pointer);
+        return pointer;
+    }
+
+    /**
+     * turn a block back into a level one entry once no prefix longer than /24 is left in it
+     */
+    private void collapseBlock(int index, int pointer) {
+        int[] entries = new int[BLOCK_SIZE];
+        bigArray.getInts(blockOffset(pointer), entries, 0, BLOCK_SIZE);
+        for (int entry: entries) {
+            if (entry != entries[0] || length(entry) > 24) {
+                return;
+            }
+        }
+        bigArray.compareAndSetInt(index, pointer, entries[0]);
+        freeBlocks.push(pointer & ~BLOCK_FLAG);
+    }
+
+    private int allocateBlock() {
+        Integer block = freeBlocks.poll();
+        if (block != null) {
+            return block;
+        }
+        if (nextBlock >= maxBlocks) {
+            throw new IllegalStateException("no room for another /24 with longer prefixes, " + maxBlocks + " blocks in use");
+        }
+        return nextBlock++;
+    }
+
+    private int coveringRoute(int prefix, int prefixLength) {
+        for (int length = prefixLength - 1; length >= 0; length--) {
+            Integer value = routes.get(length).get(prefix & mask(length));
+            if (value != null) {
+                return route(length, value);
+            }
+        }
+        return 0;
+    }
+
+    private static long blockOffset(int pointer) {
+        return LEVEL_ONE_SIZE + (long) (pointer & ~BLOCK_FLAG) * BLOCK_SIZE;
+    }
+
+    private static int mask(int prefixLength) {
+        return prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+    }
+
+    private static int route(int prefixLength, int value) {
+        return (prefixLength << 24) | (value + 1);
+    }
+
+    private static int length(int entry) {
+        return (entry >>> 24) & 0x3F;
+    }
+
+    private static int value(int entry) {
+        return (entry & 0xFFFFFF) - 1;
+    }
+
+    @Override
+    public void close() throws Exception {
+        bigArray.close();
+    }
+}
@@ -0,0 +1,23 @@
+package org.mine.iptable.ip;
+
+import org.mine.iptable.util.IpUtils;
+
+public interface IpSet {
+    void add(int ip);
+    void remove(int ip);
+    boolean contains(int ip);
+    void containsAll(int[] ips, boolean[] out);
+    void addAll(int[] ips, int offset, int length);
+    void addRange(int startIp, int endIp);
+    void removeRange(int startIp, int endIp);
+
+    default void addCidr(String cidr) {
+        int[] range = IpUtils.parseCidr(cidr);
+        addRange(range[0], range[1]);
+    }
+
+    default void removeCidr(String cidr) {
+        int[] range = IpUtils.parseCidr(cidr);
+        removeRange(range[0], range[1]);
+    }
+}
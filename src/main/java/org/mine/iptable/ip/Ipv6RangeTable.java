@@ -0,0 +1,384 @@
+package org.mine.iptable.ip;
+
+import org.mine.iptable.bigtable.BigArray;
+import org.mine.iptable.bigtable.BigArrayCursor;
+import org.mine.iptable.util.BigArrayUtils;
+import org.mine.iptable.util.IpUtils;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * ipv6 ranges mapped to int values, kept in a BigArray as sorted non overlapping (start, end, value) records of 5
+ * longs behind a 64 byte header. the first start of every block of 16 records is held on the heap in eytzinger
+ * order, a lookup searches these fences and then reads that one block, which lies in one or two sub pages.
+ * a range set is a table whose values are all 0. tables are built in bulk by a {@link Builder} and only read
+ * afterwards, so lookups need no lock
+ */
+public class Ipv6RangeTable implements AutoCloseable {
+    public static final int NO_VALUE = -1;
+    private static final long MAGIC = 0x4950365247L;
+    private static final long VERSION = 1;
+    private static final int HEADER_LONGS = 8;
+    private static final int RECORD_LONGS = 5;
+    private static final int BLOCK_RECORDS = 16;
+    private final BigArray bigArray;
+    private final long count;
+    // first start of every block in eytzinger order from index 1, a search walks down like in a binary heap
+    private final long[] fenceHigh;
+    private final long[] fenceLow;
+    private final int[] fenceBlock;
+
+    /**
+     * open a table a {@link Builder} wrote into bigArray
+     */
+    public Ipv6RangeTable(BigArray bigArray) {
+        if (!bigArray.pageExists(0) || bigArray.getLong(0) != MAGIC) {
+            throw new IllegalArgumentException("no ipv6 range table in bigarray");
+        }
+        long version = bigArray.getLong(1);
+        if (version != VERSION) {
+            throw new IllegalStateException("unsupported ipv6 range table version " + version);
+        }
+        this.bigArray = bigArray;
+        this.count = bigArray.getLong(2);
+        long blocks = (count + BLOCK_RECORDS - 1) / BLOCK_RECORDS;
+        if (blocks > Integer.MAX_VALUE) {
+            throw new IllegalStateException("too many ranges: " + count);
+        }
+        fenceHigh = new long[(int) blocks + 1];
+        fenceLow = new long[(int) blocks + 1];
+        fenceBlock = new int[(int) blocks + 1];
+        try (BigArrayCursor cursor = bigArray.cursor()) {
+            layoutFences(cursor, 0, 1);
+        }
+    }
+
+    // in order walk of the implicit tree hands out blocks in ascending order
+    private int layoutFences(BigArrayCursor cursor, int block, int k) {
+        if (k < fenceHigh.length) {
+            block = layoutFences(cursor, block, 2 * k);
+            long offset = HEADER_LONGS + (long) block * BLOCK_RECORDS * RECORD_LONGS;
+            fenceHigh[k] = cursor.getLong(offset);
+            fenceLow[k] = cursor.getLong(offset + 1);
+            fenceBlock[k] = block++;
+            block = layoutFences(cursor, block, 2 * k + 1);
+        }
+        return block;
+    }
+
+    public BigArray bigArray() {
+        return bigArray;
+    }
+
+    /**
+     * @return number of ranges, adjacent input ranges of equal value are merged into one
+     */
+    public long size() {
+        return count;
+    }
+
+    public boolean contains(String ip) {
+        return lookup(ip) != NO_VALUE;
+    }
+
+    public boolean contains(long high, long low) {
+        return lookup(high, low) != NO_VALUE;
+    }
+
+    public int lookup(String ip) {
+        long[] address = IpUtils.parse6(ip);
+        return lookup(address[0], address[1]);
+    }
+
+    /**
+     * @return value of the range holding the address, {@link #NO_VALUE} if there is none
+     */
+    public int lookup(long high, long low) {
+        int block = floorBlock(high, low);
+        if (block < 0) {
+            return NO_VALUE;
+        }
+        // the cursor pins the one or two sub pages of the block while its records are compared in place
+        try (BigArrayCursor cursor = bigArray.cursor()) {
+            return lookupInBlock(cursor, block, high, low);
+        }
+    }
+
+    /**
+     * batched lookup, queries are ordered by block so every sub page is mapped at most once per batch and blocks
+     * are read through one cursor
+     * @param out out[i] is set to the value for the address (highs[i], lows[i])
+     */
+    public void lookupAll(long[] highs, long[] lows, int[] out) {
+        if (lows.length < highs.length || out.length < highs.length) {
+            throw new IllegalArgumentException("lows.length " + lows.length + ", out.length " + out.length + " < highs.length " + highs.length);
+        }
+        // block + 1 in the high bits, 0 for none, position in the batch in the low bits
+        long[] queries = new long[highs.length];
+        for (int i = 0; i < highs.length; i++) {
+            queries[i] = ((long) (floorBlock(highs[i], lows[i]) + 1) << 32) | i;
+        }
+        Arrays.sort(queries);
+        try (BigArrayCursor cursor = bigArray.cursor()) {
+            for (long query: queries) {
+                int i = (int) query;
+                int block = (int) (query >>> 32) - 1;
+                out[i] = block < 0 ? NO_VALUE : lookupInBlock(cursor, block, highs[i], lows[i]);
+            }
+        }
+    }
+
+    private int lookupInBlock(BigArrayCursor cursor, int block, long high, long low) {
+        int n = (int) Math.min(BLOCK_RECORDS, count - (long) block * BLOCK_RECORDS);
+        long offset = HEADER_LONGS + ((long) block * BLOCK_RECORDS + n - 1) * RECORD_LONGS;
+        // the first record starts at the fence, so one of them starts at or before the address
+        for (int i = n - 1; i > 0 && compare(cursor.getLong(offset), cursor.getLong(offset + 1), high, low) > 0; i--) {
+            offset -= RECORD_LONGS;
+        }
+        if (compare(high, low, cursor.getLong(offset + 2), cursor.getLong(offset + 3)) > 0) {
+            return NO_VALUE;
+        }
+        return (int) cursor.getLong(offset + 4);
+    }
+
+    // last block whose first start is at or before the address, -1 if none
+    private int floorBlock(long high, long low) {
+        int k = 1;
+        while (k < fenceHigh.length) {
+            k = 2 * k + (compare(fenceHigh[k], fenceLow[k], high, low) <= 0 ? 1 : 0);
+        }
+        // drop the right turns taken after the last left one, k is then the first fence above the address
+        k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+        return k == 0 ? fenceHigh.length - 2 : fenceBlock[k] - 1;
+    }
+
+    private static int compare(long aHigh, long aLow, long bHigh, long bLow) {
+        int c = Long.compareUnsigned(aHigh, bHigh);
+        return c != 0 ? c : Long.compareUnsigned(aLow, bLow);
+    }
+
+    @Override
+    public void close() throws Exception {
+        bigArray.close();
+    }
+
+    /**
+     * collects ranges in any order, they may overlap. where ranges overlap the one starting last wins, so a
+     * longer prefix nested in a shorter one overrides it. input is sorted with
+     * {@link BigArrayUtils#sortLongRecords}, in arrays under workDirectory that are deleted once the table is built,
+     * or on close if it never is
+     */
+    public static class Builder implements AutoCloseable {
+        private static final String STAGING_PREFIX = "ipv6-staging-";
+        private static final String SORTED_PREFIX = "ipv6-sorted-";
+        private static final int BUFFER_RECORDS = 1024;
+        private final BigArray table;
+        private final String workDirectory;
+        private final BigArray staging;
+        private final long[] buffer = new long[BUFFER_RECORDS * RECORD_LONGS];
+        private int buffered = 0;
+        private long count = 0;
+        private boolean stagingDiscarded = false;
+
+        /**
+         * @param table receives the table, whatever it held is overwritten
+         */
+        public Builder(BigArray table, String workDirectory) {
+            this.table = table;
+            this.workDirectory = workDirectory;
+            this.staging = new BigArray.Builder(workDirectory, STAGING_PREFIX).pageSizeInBytes(table.pageSizeInBytes()).
+                    maxPageCount(table.maxPageCount()).subPageSizeInBytes(table.subPageSizeInBytes()).maxSubPageInMem(64).jmx(false).build();
+        }
+
+        /**
+         * add a range of a set, value 0
+         */
+        public Builder add(String cidr) {
+            return add(cidr, 0);
+        }
+
+        public Builder add(String cidr, int value) {
+            long[] range = IpUtils.parseCidr6(cidr);
+            return add(range[0], range[1], range[2], range[3], value);
+        }
+
+        /**
+         * @param value not negative
+         */
+        public Builder add(long startHigh, long startLow, long endHigh, long endLow, int value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("value must not be negative: " + value);
+            }
+            if (compare(startHigh, startLow, endHigh, endLow) > 0) {
+                throw new IllegalArgumentException("start " + IpUtils.ip6(startHigh, startLow) + " > end " + IpUtils.ip6(endHigh, endLow));
+            }
+            // the inverted end sorts ranges of equal start longest first
+            int offset = buffered * RECORD_LONGS;
+            buffer[offset] = startHigh;
+            buffer[offset + 1] = startLow;
+            buffer[offset + 2] = ~endHigh;
+            buffer[offset + 3] = ~endLow;
+            buffer[offset + 4] = value;
+            if (++buffered == BUFFER_RECORDS) {
+                flush();
+            }
+            return this;
+        }
+
+        private void flush() {
+            if (buffered > 0) {
+                staging.putLongs(count * RECORD_LONGS, buffer, 0, buffered * RECORD_LONGS);
+                count += buffered;
+                buffered = 0;
+            }
+        }
+
+        public Ipv6RangeTable build() {
+            flush();
+            BigArray sorted;
+            try {
+                sorted = BigArrayUtils.sortLongRecords(staging, count, RECORD_LONGS, 4, workDirectory, SORTED_PREFIX);
+            } finally {
+                discardStaging();
+            }
+            try {
+                long ranges = new Sweep(table).run(sorted, count);
+                table.putLongs(0, new long[]{MAGIC, VERSION, ranges, 0, 0, 0, 0, 0}, 0, HEADER_LONGS);
+            } finally {
+                discard(sorted);
+            }
+            return new Ipv6RangeTable(table);
+        }
+
+        /**
+         * drop what was added, unless it was built already
+         */
+        @Override
+        public void close() {
+            discardStaging();
+        }
+
+        private void discardStaging() {
+            if (!stagingDiscarded) {
+                stagingDiscarded = true;
+                discard(staging);
+            }
+        }
+
+        private static void discard(BigArray bigArray) {
+            try {
+                bigArray.close();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            bigArray.deletePages();
+        }
+    }
+
+    /**
+     * turns ranges sorted by start into non overlapping ones. open ranges are kept on a stack, the innermost one
+     * owns the addresses up to where the next range starts or it ends
+     */
+    private static final class Sweep {
+        private final BigArray table;
+        private final long[] out = new long[1024 * RECORD_LONGS];
+        private int buffered = 0;
+        private long written = 0;
+        private final ArrayDeque<long[]> open = new ArrayDeque<>();
+        // first address not assigned yet, done once the last address was
+        private long cursorHigh = 0;
+        private long cursorLow = 0;
+        private boolean done = false;
+        // last range, extended while the next one adjoins it with the same value
+        private long[] pending;
+
+        Sweep(BigArray table) {
+            this.table = table;
+        }
+
+        long run(BigArray sorted, long count) {
+            long[] in = new long[1024 * RECORD_LONGS];
+            for (long position = 0; position < count; ) {
+                int n = (int) Math.min(in.length / RECORD_LONGS, count - position);
+                sorted.getLongs(position * RECORD_LONGS, in, 0, n * RECORD_LONGS);
+                for (int r = 0; r < n * RECORD_LONGS; r += RECORD_LONGS) {
+                    add(new long[]{in[r], in[r + 1], ~in[r + 2], ~in[r + 3], in[r + 4]});
+                }
+                position += n;
+            }
+            while (!open.isEmpty()) {
+                assignUpTo(open.pop());
+            }
+            if (pending != null) {
+                write(pending);
+            }
+            flush();
+            return written;
+        }
+
+        private void add(long[] range) {
+            while (!open.isEmpty() && compare(open.peek()[2], open.peek()[3], range[0], range[1]) < 0) {
+                assignUpTo(open.pop());
+            }
+            if (compare(cursorHigh, cursorLow, range[0], range[1]) < 0) {
+                if (!open.isEmpty()) {
+                    long[] owner = open.peek();
+                    long beforeLow = range[1] - 1;
+                    long beforeHigh = range[1] == 0 ? range[0] - 1 : range[0];
+                    emit(cursorHigh, cursorLow, beforeHigh, beforeLow, owner[4]);
+                }
+                cursorHigh = range[0];
+                cursorLow = range[1];
+            }
+            open.push(range);
+        }
+
+        // give the rest of a closing range to it
+        private void assignUpTo(long[] range) {
+            if (done || compare(cursorHigh, cursorLow, range[2], range[3]) > 0) {
+                return;
+            }
+            emit(cursorHigh, cursorLow, range[2], range[3], range[4]);
+            if (range[2] == -1L && range[3] == -1L) {
+                done = true;
+            } else {
+                cursorLow = range[3] + 1;
+                cursorHigh = cursorLow == 0 ? range[2] + 1 : range[2];
+            }
+        }
+
+        private void emit(long startHigh, long startLow, long endHigh, long endLow, long value) {
+            if (pending != null && pending[4] == value && adjoins(pending, startHigh, startLow)) {
+                pending[2] = endHigh;
+                pending[3] = endLow;
+                return;
+            }
+            if (pending != null) {
+                write(pending);
+            }
+            pending = new long[]{startHigh, startLow, endHigh, endLow, value};
+        }
+
+        private static boolean adjoins(long[] range, long high, long low) {
+            long nextLow = range[3] + 1;
+            long nextHigh = nextLow == 0 ? range[2] + 1 : range[2];
+            return nextHigh == high && nextLow == low && !(range[2] == -1L && range[3] == -1L);
+        }
+
+        private void write(long[] range) {
+            System.arraycopy(range, 0, out, buffered * RECORD_LONGS, RECORD_LONGS);
+            if (++buffered * RECORD_LONGS == out.length) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (buffered > 0) {
+                table.putLongs(HEADER_LONGS + written * RECORD_LONGS, out, 0, buffered * RECORD_LONGS);
+                written += buffered;
+                buffered = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.mine.iptable.ip;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * sorted, disjoint and non adjacent runs stored as (start, length - 1) pairs
+ */
+final class RunContainer extends Container {
+    private char[] runs;
+    private int n;
+
+    RunContainer(char[] runs, int n) {
+        this.runs = runs;
+        this.n = n;
+    }
+
+    static RunContainer full() {
+        return new RunContainer(new char[] {0, 65535}, 1);
+    }
+
+    static int sizeInBytes(int runCount) {
+        return 2 + 4 * runCount;
+    }
+
+    private int start(int i) {
+        return runs[2 * i];
+    }
+
+    private int end(int i) {
+        return runs[2 * i] + runs[2 * i + 1];
+    }
+
+    // index of the last run starting at or before x, -1 if none
+    private int floor(int x) {
+        int low = 0;
+        int high = n - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (start(middle) <= x) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    @Override
+    boolean contains(int x) {
+        int i = floor(x);
+        return i >= 0 && x <= end(i);
+    }
+
+    @Override
+    Container add(int x) {
+        return contains(x) ? this : addRange(x, x);
+    }
+
+    @Override
+    Container remove(int x) {
+        return contains(x) ? removeRange(x, x) : this;
+    }
+
+    @Override
+    Container addRange(int lo, int hi) {
+        // runs touching [lo - 1, hi + 1] are absorbed into the new one
+        int first = floor(lo - 1);
+        if (first < 0 || end(first) < lo - 1) {
+            first++;
+        }
+        int last = floor(hi + 1);
+        if (first <= last) {
+            lo = Math.min(lo, start(first));
+            hi = Math.max(hi, end(last));
+        }
+        replace(first, last, lo, hi, -1, -1);
+        return checkSize();
+    }
+
+    @Override
+    Container removeRange(int lo, int hi) {
+        int first = floor(lo);
+        if (first < 0 || end(first) < lo) {
+            first++;
+        }
+        int last = floor(hi);
+        if (first > last) {
+            return this;
+        }
+        int leftStart = start(first) < lo ? start(first) : -1;
+        int rightEnd = end(last) > hi ? end(last) : -1;
+        replace(first, last, leftStart, lo - 1, hi + 1, rightEnd);
+        return checkSize();
+    }
+
+    /**
+     * replace runs [first, last] with up to two runs, a run whose start is -1 is skipped
+     */
+    private void replace(int first, int last, int start1, int end1, int start2, int end2) {
+        int pieces = (start1 >= 0 ? 1 : 0) + (end2 >= 0 ? 1 : 0);
+        int updated = n - (last - first + 1) + pieces;
+        char[] target = updated * 2 <= runs.length ? runs : Arrays.copyOf(runs, Math.max(updated * 2, runs.length * 2));
+        System.arraycopy(runs, 2 * (last + 1), target, 2 * (first + pieces), 2 * (n - last - 1));
+        int i = 2 * first;
+        if (start1 >= 0) {
+            target[i++] = (char) start1;
+            target[i++] = (char) (end1 - start1);
+        }
+        if (end2 >= 0) {
+            target[i++] = (char) start2;
+            target[i] = (char) (end2 - start2);
+        }
+        runs = target;
+        n = updated;
+    }
+
+    private Container checkSize() {
+        return sizeInBytes() > BITMAP_SIZE_IN_BYTES ? optimize() : this;
+    }
+
+    @Override
+    int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < n; i++) {
+            cardinality += runs[2 * i + 1] + 1;
+        }
+        return cardinality;
+    }
+
+    @Override
+    int runCount() {
+        return n;
+    }
+
+    @Override
+    int sizeInBytes() {
+        return sizeInBytes(n);
+    }
+
+    @Override
+    BitmapContainer toBitmap() {
+        BitmapContainer bitmap = new BitmapContainer();
+        for (int i = 0; i < n; i++) {
+            bitmap.addRange(start(i), end(i));
+        }
+        return bitmap;
+    }
+
+    @Override
+    byte type() {
+        return RUN;
+    }
+
+    @Override
+    void write(DataOutput out) throws IOException {
+        out.writeByte(RUN);
+        out.writeInt(n);
+        for (int i = 0; i < 2 * n; i++) {
+            out.writeChar(runs[i]);
+        }
+    }
+
+    static RunContainer read(DataInput in) throws IOException {
+        int n = in.readInt();
+        char[] runs = new char[Math.max(2 * n, 2)];
+        for (int i = 0; i < 2 * n; i++) {
+            runs[i] = in.readChar();
+        }
+        return new RunContainer(runs, n);
+    }
+}
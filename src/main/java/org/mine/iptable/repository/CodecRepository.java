@@ -0,0 +1,236 @@
+package org.mine.iptable.repository;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * encodes pages on their way to the delegate and decodes them on the way back. every stored page is a frame of
+ * magic, raw length and crc32 of the raw bytes followed by the encoded bytes. the crc is checked while the page
+ * is streamed to the consumer, a corrupted page fails the load with an IOException once its end is reached
+ */
+public class CodecRepository implements Repository {
+    static final int MAGIC = 0x42415047;
+    static final int HEADER_SIZE = 12;
+    private final Repository delegate;
+    private final PageCodec codec;
+
+    /**
+     * @param codec codec for a new namespace, must match the one recorded for an existing namespace
+     */
+    public CodecRepository(Repository delegate, PageCodec codec) {
+        String recorded = delegate.codecName();
+        if (recorded == null) {
+            if (delegate.pageCount() > 0) {
+                throw new IllegalStateException("namespace already holds pages written without a codec");
+            }
+            delegate.codecName(codec.name());
+        } else if (!recorded.equals(codec.name())) {
+            throw new IllegalStateException("namespace is stored with codec " + recorded + ", not " + codec.name());
+        }
+        this.delegate = delegate;
+        this.codec = codec;
+    }
+
+    /**
+     * use the codec recorded for the namespace, deflate for a new one
+     */
+    public static CodecRepository open(Repository delegate) {
+        String recorded = delegate.codecName();
+        return new CodecRepository(delegate, recorded == null ? PageCodecs.DEFLATE : PageCodecs.forName(recorded));
+    }
+
+    public PageCodec codec() {
+        return codec;
+    }
+
+    @Override
+    public String codecName() {
+        return codec.name();
+    }
+
+    @Override
+    public int pageCount() {
+        return delegate.pageCount();
+    }
+
+    @Override
+    public int[] pageIndexes() {
+        return delegate.pageIndexes();
+    }
+
+    @Override
+    public byte[] fetchPage(int pageIndex) {
+        byte[] frame = delegate.fetchPage(pageIndex);
+        if (frame == null) {
+            return null;
+        }
+        try (InputStream inputStream = decode(pageIndex, new ByteArrayInputStream(frame))) {
+            return Repository.readFully(inputStream);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean fetchPage(int pageIndex, PageConsumer consumer) {
+        return delegate.fetchPage(pageIndex, (index, data) -> {
+            try (InputStream inputStream = decode(index, data)) {
+                consumer.accept(index, inputStream);
+            }
+        });
+    }
+
+    @Override
+    public void fetchPages(PageConsumer consumer) {
+        delegate.fetchPages((index, data) -> {
+            try (InputStream inputStream = decode(index, data)) {
+                consumer.accept(index, inputStream);
+            }
+        });
+    }
+
+    @Override
+    public boolean savePage(int pageIndex, byte[] buf) {
+        return delegate.savePage(pageIndex, encode(new ByteArrayInputStream(buf)));
+    }
+
+    /**
+     * pages are encoded one at a time, only the encoded frames of a batch are held in memory
+     */
+    @Override
+    public void savePages(int[] pageIndexes, InputStream[] pages) {
+        InputStream[] frames = new InputStream[pages.length];
+        for (int i = 0; i < pages.length; i++) {
+            frames[i] = new ByteArrayInputStream(encode(pages[i]));
+        }
+        delegate.savePages(pageIndexes, frames);
+    }
+
+    private byte[] encode(InputStream page) {
+        try {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            frame.write(new byte[HEADER_SIZE]);
+            CRC32 crc = new CRC32();
+            long length = 0;
+            byte[] buf = new byte[64 * 1024];
+            try (OutputStream encoder = codec.encode(frame)) {
+                int n;
+                while ((n = page.read(buf)) != -1) {
+                    crc.update(buf, 0, n);
+                    encoder.write(buf, 0, n);
+                    length += n;
+                }
+            }
+            if (length > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("page too large: " + length);
+            }
+            byte[] bytes = frame.toByteArray();
+            putInt(bytes, 0, MAGIC);
+            putInt(bytes, 4, (int) length);
+            putInt(bytes, 8, (int) crc.getValue());
+            return bytes;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void putInt(byte[] bytes, int index, int v) {
+        bytes[index] = (byte) (v >>> 24);
+        bytes[index + 1] = (byte) (v >>> 16);
+        bytes[index + 2] = (byte) (v >>> 8);
+        bytes[index + 3] = (byte) v;
+    }
+
+    private InputStream decode(int pageIndex, InputStream frame) throws IOException {
+        DataInputStream header = new DataInputStream(frame);
+        int magic;
+        int length;
+        int crc;
+        try {
+            magic = header.readInt();
+            length = header.readInt();
+            crc = header.readInt();
+        } catch (EOFException e) {
+            throw new IOException("page " + pageIndex + " is truncated", e);
+        }
+        if (magic != MAGIC) {
+            throw new IOException("page " + pageIndex + " is not a page frame, stored without a codec?");
+        }
+        return new VerifyingInputStream(pageIndex, codec.decode(frame), length, crc);
+    }
+
+    /**
+     * checks length and crc32 of the decoded bytes when the end is reached
+     */
+    static class VerifyingInputStream extends FilterInputStream {
+        private final int pageIndex;
+        private final long expectedLength;
+        private final int expectedCrc;
+        private final CRC32 crc = new CRC32();
+        private long length = 0;
+        private boolean verified = false;
+
+        VerifyingInputStream(int pageIndex, InputStream in, int expectedLength, int expectedCrc) {
+            super(in);
+            this.pageIndex = pageIndex;
+            this.expectedLength = expectedLength & 0xFFFFFFFFL;
+            this.expectedCrc = expectedCrc;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n == -1) {
+                verify();
+                return -1;
+            }
+            crc.update(b, off, n);
+            length += n;
+            if (length > expectedLength) {
+                throw new IOException("page " + pageIndex + " longer than its recorded length " + expectedLength);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            throw new IOException("skip is not supported while verifying");
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void verify() throws IOException {
+            if (verified) {
+                return;
+            }
+            if (length != expectedLength) {
+                throw new IOException("page " + pageIndex + " length " + length + ", recorded " + expectedLength);
+            }
+            if ((int) crc.getValue() != expectedCrc) {
+                throw new IOException("page " + pageIndex + " checksum mismatch");
+            }
+            verified = true;
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        delegate.close();
+    }
+}
@@ -0,0 +1,155 @@
+package org.mine.iptable.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * fixed number of connections opened up front, borrowers block until one is returned. a connection returned closed,
+ * e.g. by the driver after a network error, is replaced, and one idle for longer than the validation interval is
+ * checked with isValid before it is handed out, which catches server side timeouts
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+    public static final long DEFAULT_VALIDATION_INTERVAL_MILLIS = 30_000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+    private final ConnectionFactory factory;
+    private final int size;
+    private final long validationIntervalMillis;
+    // open connections, idle or borrowed
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    // one slot per connection of the pool, a slot without connection stands for one that broke and could not be
+    // replaced yet, the borrower taking it tries again
+    private final BlockingQueue<Slot> idle;
+    private volatile boolean closed;
+
+    public ConnectionPool(ConnectionFactory factory, int size) {
+        this(factory, size, DEFAULT_VALIDATION_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param validationIntervalMillis idle time after which a connection is validated before reuse, 0 for every time
+     */
+    public ConnectionPool(ConnectionFactory factory, int size, long validationIntervalMillis) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("illegal pool size " + size);
+        }
+        this.factory = factory;
+        this.size = size;
+        this.validationIntervalMillis = validationIntervalMillis;
+        idle = new ArrayBlockingQueue<>(size);
+        try {
+            for (int i = 0; i < size; i++) {
+                idle.add(new Slot(open()));
+            }
+        } catch (SQLException e) {
+            close();
+            throw new RuntimeException(e);
+        }
+    }
+
+    public ConnectionPool(String url, String username, String password, int size) {
+        this(() -> DriverManager.getConnection(url, username, password), size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Connection borrow() {
+        Slot slot;
+        try {
+            slot = idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        Connection connection = slot.connection;
+        try {
+            if (connection != null && System.currentTimeMillis() - slot.idleSince >= validationIntervalMillis && !isValid(connection)) {
+                logger.warn("replace broken connection");
+                discard(connection);
+                connection = null;
+            }
+            return connection != null ? connection : open();
+        } catch (SQLException e) {
+            // the slot stays, the next borrower tries to connect again
+            idle.add(new Slot(null));
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void giveBack(Connection connection) {
+        if (isClosed(connection)) {
+            logger.warn("closed connection given back, it is replaced on the next borrow");
+            discard(connection);
+            idle.add(new Slot(null));
+            return;
+        }
+        idle.add(new Slot(connection));
+    }
+
+    private Connection open() throws SQLException {
+        Connection connection = factory.create();
+        connections.add(connection);
+        if (closed) {
+            // raced close, which may have missed it
+            discard(connection);
+            throw new SQLException("connection pool closed");
+        }
+        return connection;
+    }
+
+    private void discard(Connection connection) {
+        connections.remove(connection);
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.error("close connection error", e);
+        }
+    }
+
+    private static boolean isValid(Connection connection) {
+        try {
+            return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private static boolean isClosed(Connection connection) {
+        try {
+            return connection.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Connection connection: connections) {
+            discard(connection);
+        }
+    }
+
+    public interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    private static final class Slot {
+        private final Connection connection;
+        private final long idleSince = System.currentTimeMillis();
+
+        private Slot(Connection connection) {
+            this.connection = connection;
+        }
+    }
+}
@@ -3,124 +3,295 @@ package org.mine.iptable.repository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
 
+/**
+ * pages of a namespace in one table, safe for concurrent use: every call borrows its own connection from the pool
+ */
 public class MysqlDBRepository implements Repository {
     private static final Logger logger = LoggerFactory.getLogger(MysqlDBRepository.class);
-    private Connection connection;
-    private String namespace;
+    public static final int DEFAULT_POOL_SIZE = 4;
+    private final ConnectionPool connectionPool;
+    private final boolean ownsPool;
+    private final String namespace;
+    private final int streamingFetchSize;
 
     public MysqlDBRepository(String url, String username, String password, String namespace) {
+        this(url, username, password, namespace, DEFAULT_POOL_SIZE);
+    }
+
+    public MysqlDBRepository(String url, String username, String password, String namespace, int poolSize) {
+        this(new ConnectionPool(batchedUrl(url), username, password, poolSize), true, namespace);
+    }
+
+    // connector/j sends a batch statement by statement unless told to rewrite it into one request
+    private static String batchedUrl(String url) {
+        if (!url.startsWith("jdbc:mysql:") || url.contains("rewriteBatchedStatements")) {
+            return url;
+        }
+        return url + (url.indexOf('?') < 0 ? "?" : "&") + "rewriteBatchedStatements=true";
+    }
+
+    /**
+     * use an existing pool, which stays open when the repository is closed. any jdbc source understanding
+     * mysql's replace and longblob works, e.g. an embedded database in mysql mode for tests
+     */
+    public MysqlDBRepository(ConnectionPool connectionPool, String namespace) {
+        this(connectionPool, false, namespace);
+    }
+
+    private MysqlDBRepository(ConnectionPool connectionPool, boolean ownsPool, String namespace) {
+        this.connectionPool = connectionPool;
+        this.ownsPool = ownsPool;
+        this.namespace = namespace;
+        Connection connection = connectionPool.borrow();
         try {
-            // Class.forName("com.mysql.jdbc.Driver");
-            connection = DriverManager.getConnection(url, username, password);
-            this.namespace = namespace;
             createTable(connection);
+            // mysql only streams a result set row by row with this magic fetch size, otherwise it is buffered whole
+            streamingFetchSize = "MySQL".equalsIgnoreCase(connection.getMetaData().getDatabaseProductName()) ? Integer.MIN_VALUE : 1;
         } catch (Exception e) {
             logger.error("MysqlDBRepository error", e);
+            if (ownsPool) {
+                connectionPool.close();
+            }
             throw new RuntimeException(e);
+        } finally {
+            connectionPool.giveBack(connection);
         }
     }
 
     private void createTable(Connection connection) {
-        try {
-            PreparedStatement statement = connection.prepareStatement("" +
+        try (PreparedStatement statement = connection.prepareStatement("" +
                     "CREATE TABLE IF NOT EXISTS bigarray_repo(" +
                     "namespace VARCHAR(256) NOT NULL," +
                     "pageindex int NOT NULL," +
                     "data longblob," +
                     "PRIMARY KEY(namespace, pageindex)" +
-                    ")ENGINE=InnoDB DEFAULT CHARSET=utf8;");
+                    ")ENGINE=InnoDB DEFAULT CHARSET=utf8;")) {
+            statement.execute();
+        } catch (Exception e) {
+            logger.error("create table error", e);
+            throw new RuntimeException(e);
+        }
+        try (PreparedStatement statement = connection.prepareStatement("" +
+                    "CREATE TABLE IF NOT EXISTS bigarray_repo_namespace(" +
+                    "namespace VARCHAR(256) NOT NULL," +
+                    "codec VARCHAR(64) NOT NULL," +
+                    "PRIMARY KEY(namespace)" +
+                    ")ENGINE=InnoDB DEFAULT CHARSET=utf8;")) {
             statement.execute();
-            statement.close();
         } catch (Exception e) {
             logger.error("create table error", e);
             throw new RuntimeException(e);
         }
     }
 
+    @Override
+    public String codecName() {
+        Connection connection = connectionPool.borrow();
+        try (PreparedStatement statement = connection.prepareStatement("select codec from bigarray_repo_namespace where namespace=?")) {
+            statement.setString(1, namespace);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getString(1) : null;
+            }
+        } catch (Exception e) {
+            logger.error("codec name error", e);
+            throw new RuntimeException(e);
+        } finally {
+            connectionPool.giveBack(connection);
+        }
+    }
+
+    @Override
+    public void codecName(String codecName) {
+        Connection connection = connectionPool.borrow();
+        try (PreparedStatement statement = connection.prepareStatement("replace into bigarray_repo_namespace(namespace, codec) values(?, ?)")) {
+            statement.setString(1, namespace);
+            statement.setString(2, codecName);
+            statement.executeUpdate();
+        } catch (Exception e) {
+            logger.error("codec name error", e);
+            throw new RuntimeException(e);
+        } finally {
+            connectionPool.giveBack(connection);
+        }
+    }
+
     @Override
     public int pageCount() {
-        ResultSet resultSet = null;
+        Connection connection = connectionPool.borrow();
         try (PreparedStatement statement = connection.prepareStatement("select count(1) from bigarray_repo where namespace=?")) {
             statement.setString(1, namespace);
-            resultSet = statement.executeQuery();
-            resultSet.next();
-            return resultSet.getInt(1);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
         } catch (Exception e) {
             logger.error("page count error", e);
             throw new RuntimeException(e);
         } finally {
-            if (resultSet != null) {
-                try {
-                    resultSet.close();
-                } catch (Exception e) {
-                    logger.error("page count error", e);
+            connectionPool.giveBack(connection);
+        }
+    }
+
+    @Override
+    public int[] pageIndexes() {
+        Connection connection = connectionPool.borrow();
+        try (PreparedStatement statement = connection.prepareStatement("select pageindex from bigarray_repo where namespace=? order by pageindex")) {
+            statement.setString(1, namespace);
+            int[] pageIndexes = new int[16];
+            int n = 0;
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    if (n == pageIndexes.length) {
+                        pageIndexes = Arrays.copyOf(pageIndexes, n * 2);
+                    }
+                    pageIndexes[n++] = resultSet.getInt(1);
                 }
             }
+            return Arrays.copyOf(pageIndexes, n);
+        } catch (Exception e) {
+            logger.error("page indexes error", e);
+            throw new RuntimeException(e);
+        } finally {
+            connectionPool.giveBack(connection);
         }
     }
 
+    /**
+     * @return content of the page, null if it is not stored
+     */
     @Override
     public byte[] fetchPage(int pageIndex) {
-        ResultSet resultSet = null;
+        Connection connection = connectionPool.borrow();
         try (PreparedStatement statement = connection.prepareStatement("select data from bigarray_repo where namespace=? and pageindex=?")) {
             statement.setString(1, namespace);
             statement.setInt(2, pageIndex);
-            resultSet = statement.executeQuery();
-            resultSet.next();
-            InputStream inputStream = resultSet.getBlob(1).getBinaryStream();
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            byte[] buf = new byte[1024 * 1024];
-            int n;
-            while ((n = inputStream.read(buf)) != -1) {
-                byteArrayOutputStream.write(buf, 0, n);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getBytes(1) : null;
             }
-            return byteArrayOutputStream.toByteArray();
         } catch (Exception e) {
             logger.error("fetch page error", e);
             throw new RuntimeException(e);
         } finally {
-            if (resultSet != null) {
-                try {
-                    resultSet.close();
-                } catch (Exception e) {
-                    logger.error("fetch page error", e);
+            connectionPool.giveBack(connection);
+        }
+    }
+
+    @Override
+    public boolean fetchPage(int pageIndex, PageConsumer consumer) {
+        Connection connection = connectionPool.borrow();
+        try (PreparedStatement statement = connection.prepareStatement("select data from bigarray_repo where namespace=? and pageindex=?")) {
+            statement.setString(1, namespace);
+            statement.setInt(2, pageIndex);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return false;
+                }
+                try (InputStream inputStream = resultSet.getBinaryStream(1)) {
+                    consumer.accept(pageIndex, inputStream);
+                }
+                return true;
+            }
+        } catch (Exception e) {
+            logger.error("fetch page error", e);
+            throw new RuntimeException(e);
+        } finally {
+            connectionPool.giveBack(connection);
+        }
+    }
+
+    /**
+     * one query for the whole namespace, rows are streamed so only the page being consumed is held in memory
+     */
+    @Override
+    public void fetchPages(PageConsumer consumer) {
+        Connection connection = connectionPool.borrow();
+        try (PreparedStatement statement = connection.prepareStatement("select pageindex, data from bigarray_repo where namespace=? order by pageindex",
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            statement.setFetchSize(streamingFetchSize);
+            statement.setString(1, namespace);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    try (InputStream inputStream = resultSet.getBinaryStream(2)) {
+                        consumer.accept(resultSet.getInt(1), inputStream);
+                    }
                 }
             }
+        } catch (Exception e) {
+            logger.error("fetch pages error", e);
+            throw new RuntimeException(e);
+        } finally {
+            connectionPool.giveBack(connection);
         }
     }
 
     @Override
     public boolean savePage(int pageIndex, byte[] buf) {
-        ResultSet resultSet = null;
+        Connection connection = connectionPool.borrow();
         try (PreparedStatement statement = connection.prepareStatement("replace into bigarray_repo(namespace, pageindex, data) values(?, ?, ?)")) {
             statement.setString(1, namespace);
             statement.setInt(2, pageIndex);
-            statement.setBinaryStream(3, new ByteArrayInputStream(buf));
+            statement.setBytes(3, buf);
             return statement.executeUpdate() > 0;
         } catch (Exception e) {
-            logger.error("fetch page error", e);
+            logger.error("save page error", e);
             throw new RuntimeException(e);
         } finally {
-            if (resultSet != null) {
+            connectionPool.giveBack(connection);
+        }
+    }
+
+    /**
+     * one batch in one transaction on one connection, sent as one request by mysql if the url sets
+     * rewriteBatchedStatements=true, which repositories opened by url do
+     */
+    @Override
+    public void savePages(int[] pageIndexes, InputStream[] pages) {
+        if (pageIndexes.length != pages.length) {
+            throw new IllegalArgumentException("pageIndexes.length " + pageIndexes.length + " != pages.length " + pages.length);
+        }
+        Connection connection = connectionPool.borrow();
+        try {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement("replace into bigarray_repo(namespace, pageindex, data) values(?, ?, ?)")) {
+                for (int i = 0; i < pageIndexes.length; i++) {
+                    statement.setString(1, namespace);
+                    statement.setInt(2, pageIndexes[i]);
+                    statement.setBinaryStream(3, pages[i]);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                connection.commit();
+            } catch (Throwable e) {
+                // whatever failed, a page stream included: restoring auto commit below would commit the partial batch
                 try {
-                    resultSet.close();
-                } catch (Exception e) {
-                    logger.error("fetch page error", e);
+                    connection.rollback();
+                } catch (SQLException rollbackError) {
+                    e.addSuppressed(rollbackError);
                 }
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
             }
+        } catch (Exception e) {
+            logger.error("save pages error", e);
+            throw new RuntimeException(e);
+        } finally {
+            connectionPool.giveBack(connection);
         }
     }
 
     @Override
     public void close() throws Exception {
-        connection.close();
+        if (ownsPool) {
+            connectionPool.close();
+        }
     }
 }
@@ -0,0 +1,19 @@
+package org.mine.iptable.repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * page encoding on the repository transfer path, see {@link CodecRepository}. the name is stored with the namespace
+ */
+public interface PageCodec {
+    String name();
+
+    /**
+     * @return stream encoding into out, closing it finishes the encoding but must leave out usable
+     */
+    OutputStream encode(OutputStream out) throws IOException;
+
+    InputStream decode(InputStream in) throws IOException;
+}
@@ -0,0 +1,94 @@
+package org.mine.iptable.repository;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+public class PageCodecs {
+    public static final PageCodec IDENTITY = new PageCodec() {
+        @Override
+        public String name() {
+            return "identity";
+        }
+
+        @Override
+        public OutputStream encode(OutputStream out) {
+            // closing must not close out
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+        }
+
+        @Override
+        public InputStream decode(InputStream in) {
+            return in;
+        }
+    };
+
+    public static final PageCodec DEFLATE = deflate(Deflater.DEFAULT_COMPRESSION);
+
+    private static final Map<String, PageCodec> codecs = new ConcurrentHashMap<>();
+
+    static {
+        register(IDENTITY);
+        register(DEFLATE);
+    }
+
+    /**
+     * the level only matters when writing, every deflate level reads back with the same codec name
+     */
+    public static PageCodec deflate(int level) {
+        return new PageCodec() {
+            @Override
+            public String name() {
+                return "deflate";
+            }
+
+            @Override
+            public OutputStream encode(OutputStream out) {
+                Deflater deflater = new Deflater(level);
+                return new DeflaterOutputStream(out, deflater, 64 * 1024) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            finish();
+                        } finally {
+                            deflater.end();
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public InputStream decode(InputStream in) {
+                return new InflaterInputStream(in);
+            }
+        };
+    }
+
+    public static void register(PageCodec codec) {
+        codecs.put(codec.name(), codec);
+    }
+
+    public static PageCodec forName(String name) {
+        PageCodec codec = codecs.get(name);
+        if (codec == null) {
+            throw new IllegalArgumentException("unknown page codec: " + name);
+        }
+        return codec;
+    }
+}
@@ -1,7 +1,91 @@
 package org.mine.iptable.repository;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 public interface Repository extends AutoCloseable {
     int pageCount();
     byte[] fetchPage(int pageIndex);
     boolean savePage(int pageIndex, byte[] buf);
+
+    /**
+     * @return codec the namespace was written with, null if none was recorded
+     */
+    default String codecName() {
+        return null;
+    }
+
+    /**
+     * record the codec of the namespace, see {@link CodecRepository}
+     */
+    default void codecName(String codecName) {
+        throw new UnsupportedOperationException("codec is not recorded by " + getClass().getSimpleName());
+    }
+
+    /**
+     * indexes of the stored pages in ascending order
+     */
+    default int[] pageIndexes() {
+        int[] pageIndexes = new int[pageCount()];
+        for (int i = 0; i < pageIndexes.length; i++) {
+            pageIndexes[i] = i;
+        }
+        return pageIndexes;
+    }
+
+    /**
+     * save pages[i] as page pageIndexes[i], every stream is read to its end. implementations may send the batch at
+     * once, the default saves one page after the other
+     */
+    default void savePages(int[] pageIndexes, InputStream[] pages) {
+        for (int i = 0; i < pageIndexes.length; i++) {
+            savePage(pageIndexes[i], readFully(pages[i]));
+        }
+    }
+
+    /**
+     * hand the stored content of one page to consumer without keeping it around
+     * @return false if the page is not stored
+     */
+    default boolean fetchPage(int pageIndex, PageConsumer consumer) {
+        byte[] buf = fetchPage(pageIndex);
+        if (buf == null) {
+            return false;
+        }
+        try {
+            consumer.accept(pageIndex, new ByteArrayInputStream(buf));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return true;
+    }
+
+    /**
+     * stream every stored page to consumer in ascending page order
+     */
+    default void fetchPages(PageConsumer consumer) {
+        for (int pageIndex: pageIndexes()) {
+            fetchPage(pageIndex, consumer);
+        }
+    }
+
+    static byte[] readFully(InputStream inputStream) {
+        try {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = inputStream.read(buf)) != -1) {
+                byteArrayOutputStream.write(buf, 0, n);
+            }
+            return byteArrayOutputStream.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    interface PageConsumer {
+        void accept(int pageIndex, InputStream data) throws IOException;
+    }
 }
@@ -0,0 +1,449 @@
+package org.mine.iptable.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * pages in a local directory: page bytes are appended to a segment file and every save appends an entry
+ * (page index, offset, length) to an index file, the last entry of a page wins. entries pointing past the end
+ * of the segment, left by a crash in the middle of a save, are ignored when opening. the index header names the
+ * generation of its segment, {@link #compact()} writes the next generation and switches by renaming the index.
+ * {@link #transferFrom} and {@link #transferTo} move pages between files with FileChannel transfers, no heap copy.
+ * saves are serialized on the monitor, reads run concurrently with them and with each other under the read lock,
+ * compact and close take the write lock so they wait for reads in progress, a streaming read included
+ */
+public class SegmentFileRepository implements Repository {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentFileRepository.class);
+    static final String SEGMENT_FILE_PREFIX = "segment-";
+    static final String SEGMENT_FILE_SUFFIX = ".dat";
+    static final String INDEX_FILE = "segment.idx";
+    static final String CODEC_FILE = "codec";
+    static final int INDEX_MAGIC = 0x42415349;
+    static final int INDEX_VERSION = 1;
+    static final int INDEX_HEADER_SIZE = 16;
+    static final int INDEX_ENTRY_SIZE = 16;
+    private final Path directory;
+    private final Map<Integer, long[]> index = new TreeMap<>();
+    // held by readers of the segment, taken exclusively to replace or close it. always before the monitor
+    private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    private FileChannel segment;
+    private FileChannel indexChannel;
+    private long segmentSize;
+    private long generation;
+    // read on open, checked by every transfer without taking the monitor
+    private volatile String codecName;
+
+    public SegmentFileRepository(String directory) {
+        File dir = new File(directory);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        if (!dir.isDirectory()) {
+            throw new IllegalArgumentException("not a directory: " + directory);
+        }
+        this.directory = dir.toPath();
+        try {
+            open();
+        } catch (IOException e) {
+            logger.error("open segment repository error", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void open() throws IOException {
+        indexChannel = FileChannel.open(directory.resolve(INDEX_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long indexSize = indexChannel.size();
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+        if (indexSize < INDEX_HEADER_SIZE) {
+            generation = 0;
+            header.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).putLong(generation).flip();
+            writeFully(indexChannel, header, 0);
+            indexChannel.force(true);
+            indexSize = INDEX_HEADER_SIZE;
+        } else {
+            readFully(indexChannel, header, 0);
+            header.flip();
+            if (header.getInt() != INDEX_MAGIC || header.getInt() != INDEX_VERSION) {
+                throw new IllegalStateException("not a segment index: " + directory.resolve(INDEX_FILE));
+            }
+            generation = header.getLong();
+        }
+        segment = FileChannel.open(segmentPath(generation), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segmentSize = segment.size();
+        index.clear();
+        // a torn last entry is cut off
+        long end = INDEX_HEADER_SIZE + (indexSize - INDEX_HEADER_SIZE) / INDEX_ENTRY_SIZE * INDEX_ENTRY_SIZE;
+        ByteBuffer buf = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 4096);
+        long position = INDEX_HEADER_SIZE;
+        while (position < end) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), end - position));
+            readFully(indexChannel, buf, position);
+            buf.flip();
+            position += buf.limit();
+            while (buf.hasRemaining()) {
+                int pageIndex = buf.getInt();
+                long offset = buf.getLong();
+                int length = buf.getInt();
+                if (offset + length <= segmentSize) {
+                    index.put(pageIndex, new long[] {offset, length});
+                }
+            }
+        }
+        indexChannel.truncate(end);
+        indexChannel.position(end);
+        Path codecFile = directory.resolve(CODEC_FILE);
+        codecName = Files.exists(codecFile) ? new String(Files.readAllBytes(codecFile), StandardCharsets.UTF_8) : null;
+    }
+
+    private Path segmentPath(long generation) {
+        return directory.resolve(SEGMENT_FILE_PREFIX + generation + SEGMENT_FILE_SUFFIX);
+    }
+
+    @Override
+    public synchronized int pageCount() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized int[] pageIndexes() {
+        return index.keySet().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private synchronized long[] entry(int pageIndex) {
+        return index.get(pageIndex);
+    }
+
+    /**
+     * @return content of the page, null if it is not stored
+     */
+    @Override
+    public byte[] fetchPage(int pageIndex) {
+        segmentLock.readLock().lock();
+        try {
+            long[] entry = entry(pageIndex);
+            if (entry == null) {
+                return null;
+            }
+            byte[] buf = new byte[(int) entry[1]];
+            readFully(segment, ByteBuffer.wrap(buf), entry[0]);
+            return buf;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * compact waits until consumer returns
+     */
+    @Override
+    public boolean fetchPage(int pageIndex, PageConsumer consumer) {
+        segmentLock.readLock().lock();
+        try {
+            long[] entry = entry(pageIndex);
+            if (entry == null) {
+                return false;
+            }
+            try (InputStream inputStream = new SegmentInputStream(segment, entry[0], entry[1])) {
+                consumer.accept(pageIndex, inputStream);
+            }
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean savePage(int pageIndex, byte[] buf) {
+        try {
+            synchronized (this) {
+                long offset = segmentSize;
+                writeFully(segment, ByteBuffer.wrap(buf), offset);
+                append(pageIndex, offset, buf.length);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.error("save page error", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void savePages(int[] pageIndexes, InputStream[] pages) {
+        byte[] buf = new byte[64 * 1024];
+        try {
+            synchronized (this) {
+                for (int i = 0; i < pageIndexes.length; i++) {
+                    long offset = segmentSize;
+                    long position = offset;
+                    int n;
+                    while ((n = pages[i].read(buf)) != -1) {
+                        writeFully(segment, ByteBuffer.wrap(buf, 0, n), position);
+                        position += n;
+                    }
+                    append(pageIndexes[i], offset, position - offset);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("save pages error", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * store count bytes of src starting at position as the page, copied file to file by the os
+     */
+    public void transferFrom(int pageIndex, FileChannel src, long position, long count) {
+        checkRaw();
+        try {
+            synchronized (this) {
+                long offset = segmentSize;
+                segment.position(offset);
+                long done = 0;
+                while (done < count) {
+                    long n = src.transferTo(position + done, count - done, segment);
+                    if (n <= 0) {
+                        throw new IOException("unexpected end of source at " + (position + done));
+                    }
+                    done += n;
+                }
+                append(pageIndex, offset, count);
+            }
+        } catch (IOException e) {
+            logger.error("transfer from error", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * write the page to target at its current position, copied file to file by the os
+     * @return false if the page is not stored
+     */
+    public boolean transferTo(int pageIndex, FileChannel target) {
+        checkRaw();
+        segmentLock.readLock().lock();
+        try {
+            long[] entry = entry(pageIndex);
+            if (entry == null) {
+                return false;
+            }
+            long done = 0;
+            while (done < entry[1]) {
+                long n = segment.transferTo(entry[0] + done, entry[1] - done, target);
+                if (n <= 0) {
+                    throw new IOException("unexpected end of segment at " + (entry[0] + done));
+                }
+                done += n;
+            }
+            return true;
+        } catch (IOException e) {
+            logger.error("transfer to error", e);
+            throw new RuntimeException(e);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    // transfers bypass CodecRepository, raw pages must not end up in an encoded namespace
+    private void checkRaw() {
+        String codecName = codecName();
+        if (codecName != null) {
+            throw new IllegalStateException("pages are stored with codec " + codecName + ", raw transfer not possible");
+        }
+    }
+
+    private void append(int pageIndex, long offset, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("page too large: " + length);
+        }
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        entry.putInt(pageIndex).putLong(offset).putInt((int) length).flip();
+        segmentSize = offset + length;
+        writeFully(indexChannel, entry, indexChannel.position());
+        indexChannel.position(indexChannel.position() + INDEX_ENTRY_SIZE);
+        index.put(pageIndex, new long[] {offset, length});
+    }
+
+    /**
+     * bytes of the segment no longer referenced by the index
+     */
+    public synchronized long garbageBytes() {
+        long live = 0;
+        for (long[] entry: index.values()) {
+            live += entry[1];
+        }
+        return segmentSize - live;
+    }
+
+    /**
+     * rewrite the live pages into a new segment generation, once the reads in progress are done
+     */
+    public void compact() {
+        segmentLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                compactSegment();
+            }
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+    }
+
+    private void compactSegment() {
+        Path newSegmentPath = segmentPath(generation + 1);
+        Path indexTmp = directory.resolve(INDEX_FILE + ".tmp");
+        Path oldSegmentPath = segmentPath(generation);
+        try {
+            try (FileChannel newSegment = FileChannel.open(newSegmentPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                 FileChannel newIndex = FileChannel.open(indexTmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.allocate(INDEX_HEADER_SIZE + INDEX_ENTRY_SIZE * index.size());
+                buf.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).putLong(generation + 1);
+                long offset = 0;
+                for (Map.Entry<Integer, long[]> entry: index.entrySet()) {
+                    long[] location = entry.getValue();
+                    long done = 0;
+                    while (done < location[1]) {
+                        long n = segment.transferTo(location[0] + done, location[1] - done, newSegment);
+                        if (n <= 0) {
+                            throw new IOException("unexpected end of segment at " + (location[0] + done));
+                        }
+                        done += n;
+                    }
+                    buf.putInt(entry.getKey()).putLong(offset).putInt((int) location[1]);
+                    offset += location[1];
+                }
+                buf.flip();
+                writeFully(newIndex, buf, 0);
+                newSegment.force(true);
+                newIndex.force(true);
+            }
+            segment.close();
+            indexChannel.close();
+            // renaming the index is the switch, a crash before it leaves the old generation in place
+            Files.move(indexTmp, directory.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(oldSegmentPath);
+            open();
+        } catch (IOException e) {
+            logger.error("compact error", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String codecName() {
+        return codecName;
+    }
+
+    @Override
+    public synchronized void codecName(String codecName) {
+        try {
+            Files.write(directory.resolve(CODEC_FILE), codecName.getBytes(StandardCharsets.UTF_8));
+            this.codecName = codecName;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * make every save so far durable
+     */
+    public synchronized void flush() {
+        try {
+            segment.force(false);
+            indexChannel.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        segmentLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                flush();
+                segment.close();
+                indexChannel.close();
+            }
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0) {
+                throw new IOException("unexpected end of file at " + position);
+            }
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    /**
+     * positional reads of one page, several may read the segment concurrently
+     */
+    static class SegmentInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        SegmentInputStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (n < 0) {
+                throw new IOException("unexpected end of segment at " + position);
+            }
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+}
@@ -1,14 +1,30 @@
 package org.mine.iptable.util;
 
 import org.mine.iptable.bigtable.BigArray;
-import org.mine.iptable.bigtable.IMappedPage;
+import org.mine.iptable.bigtable.DirtyPages;
 import org.mine.iptable.repository.Repository;
+import org.mine.iptable.repository.SegmentFileRepository;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
-import java.util.PriorityQueue;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
 
 public class BigArrayUtils {
+    static final int RUN_BUFFER_INTS = 4096;
+    static final int OUTPUT_BUFFER_INTS = 64 * 1024;
+    static final long REPO_BATCH_BYTES = 64 * 1024 * 1024;
+    static final int COPY_BUFFER_SIZE = 64 * 1024;
+    public static final long FULL_SYNC = -1;
+
     /**
      *
      * @param bigArray 待排序bigarray
@@ -18,88 +34,596 @@ public class BigArrayUtils {
      * @return 排序结果
      */
     public static BigArray sortInt(BigArray bigArray, long availableCount, String destDirectory, String resultPagePrefix) {
+        return sortInt(bigArray, availableCount, destDirectory, resultPagePrefix, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 每页作为一个run在pool中并行排序（原地写回），再用loser tree多路归并到结果，归并过程不分配对象
+     * @param pool 页排序所用线程池
+     */
+    public static BigArray sortInt(BigArray bigArray, long availableCount, String destDirectory, String resultPagePrefix, ForkJoinPool pool) {
         BigArray result = new BigArray.Builder(destDirectory, resultPagePrefix).pageSizeInBytes(bigArray.pageSizeInBytes()).
                 maxPageCount(bigArray.maxPageCount()).subPageSizeInBytes(bigArray.subPageSizeInBytes()).maxSubPageInMem(64).build();
-        sortPagesInt(bigArray, availableCount);
-        int availablePageCount = (int)(availableCount * 4 / bigArray.pageSizeInBytes());
-        int pageSizeIn4Bytes = bigArray.pageSizeInBytes() / 4;
-        if (availableCount * 4 % bigArray.pageSizeInBytes() != 0) {
-            availablePageCount++;
-        }
-        PriorityQueue<int[]> queue = new PriorityQueue<>(Comparator.comparingInt(v -> v[0]));
-        int[] indexInPage = new int[availablePageCount];
-        int[] pageSize = new int[availablePageCount];
-        int[] offsetInPage = new int[availablePageCount];
-        Arrays.fill(pageSize, bigArray.pageSizeInBytes() / 4);
-        if (availableCount * 4 % bigArray.pageSizeInBytes() != 0) {
-            pageSize[pageSize.length - 1] = (int) (availableCount * 4 % bigArray.pageSizeInBytes()) / 4;
-        }
-        for (int i = 1; i < availablePageCount; i++) {
-            offsetInPage[i] = offsetInPage[i - 1] + pageSize[i - 1];
-        }
-        long processed = 0;
-        long resultIndex = 0;
-        if (processed < availableCount) {
-            for (int i = 0; i < availablePageCount; i++) {
-                queue.offer(new int[]{bigArray.getInt(offsetInPage[i] + indexInPage[i]++), i});
-                processed++;
-            }
-        }
-        while (!queue.isEmpty()) {
-            int[] data = queue.peek();
-            int pageIndex = data[1];
-            if (indexInPage[pageIndex] < pageSize[pageIndex]) {
-                int v = bigArray.getInt(offsetInPage[pageIndex] + indexInPage[pageIndex]++);
-                if (v == data[0]) {
-                    result.putInt(resultIndex++, v);
-                } else {
-                    queue.poll();
-                    result.putInt(resultIndex++, data[0]);
-                    queue.offer(new int[]{v, pageIndex});
+        if (availableCount <= 0) {
+            return result;
+        }
+        try {
+            mergeSortedInts(bigArray, availableCount, result, pool);
+        } catch (RuntimeException | Error e) {
+            // same as sortLongRecords, the caller never sees the half written result
+            try {
+                result.close();
+            } catch (Exception closeError) {
+                e.addSuppressed(closeError);
+            }
+            result.deletePages();
+            throw e;
+        }
+        return result;
+    }
+
+    private static void mergeSortedInts(BigArray bigArray, long availableCount, BigArray result, ForkJoinPool pool) {
+        int runLength = bigArray.pageSizeInBytes() / 4;
+        int runCount = (int) ((availableCount + runLength - 1) / runLength);
+        sortPagesInt(bigArray, availableCount, runLength, runCount, pool);
+        IntRunReader[] readers = new IntRunReader[runCount];
+        for (int i = 0; i < runCount; i++) {
+            long start = (long) i * runLength;
+            readers[i] = new IntRunReader(bigArray, start, Math.min(availableCount, start + runLength));
+        }
+        IntRunWriter writer = new IntRunWriter(result);
+        new IntLoserTree(readers).mergeTo(writer);
+        writer.flush();
+    }
+
+    private static void sortPagesInt(BigArray bigArray, long availableCount, int runLength, int runCount, ForkJoinPool pool) {
+        List<RecursiveAction> tasks = new ArrayList<>(runCount);
+        for (int i = 0; i < runCount; i++) {
+            long start = (long) i * runLength;
+            int length = (int) Math.min(runLength, availableCount - start);
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    int[] buf = new int[length];
+                    bigArray.getInts(start, buf, 0, length);
+                    Arrays.sort(buf);
+                    bigArray.putInts(start, buf, 0, length);
+                }
+            });
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /**
+     * 按块读取一个已排序run
+     */
+    static class IntRunReader {
+        private final BigArray bigArray;
+        private final int[] buf = new int[RUN_BUFFER_INTS];
+        private long position;
+        private final long end;
+        private int bufPosition = 0;
+        private int bufLimit = 0;
+
+        IntRunReader(BigArray bigArray, long start, long end) {
+            this.bigArray = bigArray;
+            this.position = start;
+            this.end = end;
+        }
+
+        boolean hasNext() {
+            return bufPosition < bufLimit || position < end;
+        }
+
+        int next() {
+            if (bufPosition == bufLimit) {
+                bufLimit = (int) Math.min(buf.length, end - position);
+                bigArray.getInts(position, buf, 0, bufLimit);
+                position += bufLimit;
+                bufPosition = 0;
+            }
+            return buf[bufPosition++];
+        }
+    }
+
+    static class IntRunWriter {
+        private final BigArray bigArray;
+        private final int[] buf = new int[OUTPUT_BUFFER_INTS];
+        private long position = 0;
+        private int size = 0;
+
+        IntRunWriter(BigArray bigArray) {
+            this.bigArray = bigArray;
+        }
+
+        void write(int value) {
+            buf[size++] = value;
+            if (size == buf.length) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (size > 0) {
+                bigArray.putInts(position, buf, 0, size);
+                position += size;
+                size = 0;
+            }
+        }
+    }
+
+    /**
+     * tree[0]为当前最小值所在run，其余节点保存比较中落败的run；exhausted run的key为Long.MAX_VALUE
+     */
+    static class IntLoserTree {
+        private static final long EXHAUSTED = Long.MAX_VALUE;
+        private final IntRunReader[] readers;
+        private final int[] tree;
+        private final long[] keys;
+
+        IntLoserTree(IntRunReader[] readers) {
+            int k = readers.length;
+            this.readers = readers;
+            this.tree = new int[k];
+            // keys[k]为初始化用的虚拟最小值
+            this.keys = new long[k + 1];
+            for (int i = 0; i < k; i++) {
+                keys[i] = readers[i].hasNext() ? readers[i].next() : EXHAUSTED;
+            }
+            keys[k] = Long.MIN_VALUE;
+            Arrays.fill(tree, k);
+            for (int i = k - 1; i >= 0; i--) {
+                adjust(i);
+            }
+        }
+
+        private void adjust(int run) {
+            int winner = run;
+            for (int node = (run + tree.length) >>> 1; node > 0; node >>>= 1) {
+                if (keys[winner] > keys[tree[node]]) {
+                    int loser = winner;
+                    winner = tree[node];
+                    tree[node] = loser;
                 }
-            } else {
-                queue.poll();
-                result.putInt(resultIndex++, data[0]);
             }
-            processed++;
+            tree[0] = winner;
+        }
+
+        void mergeTo(IntRunWriter writer) {
+            if (tree.length == 0) {
+                return;
+            }
+            int winner = tree[0];
+            while (keys[winner] != EXHAUSTED) {
+                writer.write((int) keys[winner]);
+                keys[winner] = readers[winner].hasNext() ? readers[winner].next() : EXHAUSTED;
+                adjust(winner);
+                winner = tree[0];
+            }
+        }
+    }
+
+    /**
+     * 对定长long记录排序，记录按前keyLongs个long做无符号字典序比较
+     * @param recordCount 记录数
+     * @param recordLongs 每条记录的long数
+     * @param keyLongs 参与比较的long数，从记录开头算起
+     * @return 排序结果
+     */
+    public static BigArray sortLongRecords(BigArray bigArray, long recordCount, int recordLongs, int keyLongs, String destDirectory, String resultPagePrefix) {
+        return sortLongRecords(bigArray, recordCount, recordLongs, keyLongs, destDirectory, resultPagePrefix, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 与sortInt相同：每约一页记录作为一个run并行排序（原地写回），再用loser tree多路归并，记录可以跨页。
+     * 结果与bigArray同样注册或不注册MXBean
+     * @param pool run排序所用线程池
+     */
+    public static BigArray sortLongRecords(BigArray bigArray, long recordCount, int recordLongs, int keyLongs, String destDirectory, String resultPagePrefix,
+                                           ForkJoinPool pool) {
+        if (keyLongs <= 0 || keyLongs > recordLongs) {
+            throw new IllegalArgumentException("keyLongs must be between 1 and recordLongs " + recordLongs + ": " + keyLongs);
+        }
+        BigArray result = new BigArray.Builder(destDirectory, resultPagePrefix).pageSizeInBytes(bigArray.pageSizeInBytes()).
+                maxPageCount(bigArray.maxPageCount()).subPageSizeInBytes(bigArray.subPageSizeInBytes()).maxSubPageInMem(64).jmx(bigArray.jmx()).build();
+        if (recordCount <= 0) {
+            return result;
+        }
+        try {
+            mergeSortedRuns(bigArray, recordCount, recordLongs, keyLongs, result, pool);
+        } catch (RuntimeException | Error e) {
+            // a half written result is of no use to the caller, who never gets to see it
+            try {
+                result.close();
+            } catch (Exception closeError) {
+                e.addSuppressed(closeError);
+            }
+            result.deletePages();
+            throw e;
         }
         return result;
     }
 
-    private static void sortPagesInt(BigArray bigArray, long availableCount) {
-        int availablePageCount = (int)(availableCount * 4 / bigArray.pageSizeInBytes());
-        int lastExtraBytes = (int)availableCount * 4 % bigArray.pageSizeInBytes();
-        if (lastExtraBytes != 0) {
-            availablePageCount++;
+    private static void mergeSortedRuns(BigArray bigArray, long recordCount, int recordLongs, int keyLongs, BigArray result, ForkJoinPool pool) {
+        int runLength = Math.max(1, bigArray.pageSizeInBytes() / 8 / recordLongs);
+        int runCount = (int) ((recordCount + runLength - 1) / runLength);
+        List<RecursiveAction> tasks = new ArrayList<>(runCount);
+        for (int i = 0; i < runCount; i++) {
+            long start = (long) i * runLength;
+            int length = (int) Math.min(runLength, recordCount - start);
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    long[] buf = new long[length * recordLongs];
+                    bigArray.getLongs(start * recordLongs, buf, 0, buf.length);
+                    sortRecords(buf, length, recordLongs, keyLongs);
+                    bigArray.putLongs(start * recordLongs, buf, 0, buf.length);
+                }
+            });
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        LongRecordRunReader[] readers = new LongRecordRunReader[runCount];
+        for (int i = 0; i < runCount; i++) {
+            long start = (long) i * runLength;
+            readers[i] = new LongRecordRunReader(bigArray, recordLongs, start, Math.min(recordCount, start + runLength));
+        }
+        LongRecordRunWriter writer = new LongRecordRunWriter(result, recordLongs);
+        new LongRecordLoserTree(readers, keyLongs).mergeTo(writer);
+        writer.flush();
+    }
+
+    /**
+     * 自底向上归并排序，记录在数组中连续存放
+     */
+    static void sortRecords(long[] records, int count, int recordLongs, int keyLongs) {
+        long[] src = records;
+        long[] dst = new long[records.length];
+        for (int width = 1; width < count; width <<= 1) {
+            for (int lo = 0; lo < count; lo += width << 1) {
+                int mid = Math.min(lo + width, count);
+                int hi = Math.min(lo + (width << 1), count);
+                int i = lo;
+                int j = mid;
+                for (int k = lo; k < hi; k++) {
+                    int from = j >= hi || (i < mid && compareRecords(src, i * recordLongs, src, j * recordLongs, keyLongs) <= 0) ? i++ : j++;
+                    System.arraycopy(src, from * recordLongs, dst, k * recordLongs, recordLongs);
+                }
+            }
+            long[] t = src;
+            src = dst;
+            dst = t;
+        }
+        if (src != records) {
+            System.arraycopy(src, 0, records, 0, count * recordLongs);
+        }
+    }
+
+    static int compareRecords(long[] a, int aOffset, long[] b, int bOffset, int keyLongs) {
+        for (int i = 0; i < keyLongs; i++) {
+            int c = Long.compareUnsigned(a[aOffset + i], b[bOffset + i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 按块读取一个已排序的记录run，当前记录为buf中offset()开始的recordLongs个long
+     */
+    static class LongRecordRunReader {
+        private final BigArray bigArray;
+        private final int recordLongs;
+        private final long[] buf;
+        private long position;
+        private final long end;
+        private int bufPosition = 0;
+        private int bufLimit = 0;
+
+        LongRecordRunReader(BigArray bigArray, int recordLongs, long start, long end) {
+            this.bigArray = bigArray;
+            this.recordLongs = recordLongs;
+            this.buf = new long[Math.max(1, RUN_BUFFER_INTS / 2 / recordLongs) * recordLongs];
+            this.position = start;
+            this.end = end;
+            fill();
+        }
+
+        boolean exhausted() {
+            return bufPosition == bufLimit;
+        }
+
+        int offset() {
+            return bufPosition * recordLongs;
+        }
+
+        void advance() {
+            if (++bufPosition == bufLimit) {
+                fill();
+            }
+        }
+
+        private void fill() {
+            bufLimit = (int) Math.min(buf.length / recordLongs, end - position);
+            if (bufLimit > 0) {
+                bigArray.getLongs(position * recordLongs, buf, 0, bufLimit * recordLongs);
+                position += bufLimit;
+            }
+            bufPosition = 0;
+        }
+    }
+
+    static class LongRecordRunWriter {
+        private final BigArray bigArray;
+        private final long[] buf;
+        private long position = 0;
+        private int size = 0;
+
+        LongRecordRunWriter(BigArray bigArray, int recordLongs) {
+            this.bigArray = bigArray;
+            this.buf = new long[Math.max(1, OUTPUT_BUFFER_INTS / 2 / recordLongs) * recordLongs];
         }
-        for (int i = 0; i < availablePageCount; i++) {
-            int length = bigArray.pageSizeInBytes() / 4;
-            if (i == availablePageCount - 1) {
-                length = lastExtraBytes / 4;
+
+        void write(long[] record, int offset, int recordLongs) {
+            System.arraycopy(record, offset, buf, size, recordLongs);
+            size += recordLongs;
+            if (size == buf.length) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (size > 0) {
+                bigArray.putLongs(position, buf, 0, size);
+                position += size;
+                size = 0;
             }
-            IMappedPage mappedPage = bigArray.getMappedPage(i);
-            mappedPage.force();
-            int[] buf = mappedPage.load4Bytes(0, length);
-            Arrays.sort(buf);
-            bigArray.getMappedPage(i).put4Bytes(buf, 0, length);
         }
     }
 
-    public static void saveToRepo(BigArray bigArray, Repository repository) {
-        int pageCount = bigArray.pageCount();
-        for (int i = 0; i < pageCount; i++) {
-            IMappedPage mappedPage = bigArray.getMappedPage(i);
-            byte[] buf = mappedPage.loadBytes(0, bigArray.pageSizeInBytes());
-            repository.savePage(i, buf);
+    /**
+     * 同IntLoserTree，readers.length为初始化用的虚拟最小run，exhausted run大于任何记录
+     */
+    static class LongRecordLoserTree {
+        private final LongRecordRunReader[] readers;
+        private final int keyLongs;
+        private final int[] tree;
+
+        LongRecordLoserTree(LongRecordRunReader[] readers, int keyLongs) {
+            int k = readers.length;
+            this.readers = readers;
+            this.keyLongs = keyLongs;
+            this.tree = new int[k];
+            Arrays.fill(tree, k);
+            for (int i = k - 1; i >= 0; i--) {
+                adjust(i);
+            }
         }
+
+        // run a的当前记录小于run b的
+        private boolean less(int a, int b) {
+            int k = readers.length;
+            if (a == k || b == k) {
+                return a == k && b != k;
+            }
+            if (readers[a].exhausted() || readers[b].exhausted()) {
+                return !readers[a].exhausted() && readers[b].exhausted();
+            }
+            return compareRecords(readers[a].buf, readers[a].offset(), readers[b].buf, readers[b].offset(), keyLongs) < 0;
+        }
+
+        private void adjust(int run) {
+            int winner = run;
+            for (int node = (run + tree.length) >>> 1; node > 0; node >>>= 1) {
+                if (less(tree[node], winner)) {
+                    int loser = winner;
+                    winner = tree[node];
+                    tree[node] = loser;
+                }
+            }
+            tree[0] = winner;
+        }
+
+        void mergeTo(LongRecordRunWriter writer) {
+            if (tree.length == 0) {
+                return;
+            }
+            int winner = tree[0];
+            while (!readers[winner].exhausted()) {
+                LongRecordRunReader reader = readers[winner];
+                writer.write(reader.buf, reader.offset(), reader.recordLongs);
+                reader.advance();
+                adjust(winner);
+                winner = tree[0];
+            }
+        }
+    }
+
+    /**
+     * 逐批保存全部已存在的页，每批一次往返
+     * @return 下次增量保存使用的sinceVersion
+     */
+    public static long saveToRepo(BigArray bigArray, Repository repository) {
+        return saveToRepo(bigArray, repository, FULL_SYNC, 1);
     }
 
+    /**
+     * 增量保存：只保存sinceVersion之后修改过的页
+     * @param sinceVersion 上次成功保存返回的版本，FULL_SYNC保存全部页
+     * @return 下次增量保存使用的sinceVersion，保存失败时应继续使用原来的sinceVersion
+     */
+    public static long saveToRepo(BigArray bigArray, Repository repository, long sinceVersion) {
+        return saveToRepo(bigArray, repository, sinceVersion, 1);
+    }
+
+    /**
+     * @param parallelism 同时进行的批次数，大于1时repository需支持并发调用（如MysqlDBRepository的连接池）
+     */
+    public static long saveToRepo(BigArray bigArray, Repository repository, long sinceVersion, int parallelism) {
+        DirtyPages dirtyPages = bigArray.collectDirtyPages(sinceVersion);
+        int pageSize = bigArray.pageSizeInBytes();
+        int batchPages = (int) Math.max(1, REPO_BATCH_BYTES / pageSize);
+        List<int[]> batches = new ArrayList<>();
+        int[] pageIndexes = dirtyPages.pages();
+        for (int i = 0; i < pageIndexes.length; i += batchPages) {
+            batches.add(Arrays.copyOfRange(pageIndexes, i, Math.min(pageIndexes.length, i + batchPages)));
+        }
+        runAll(batches, parallelism, batch -> {
+            InputStream[] pages = new InputStream[batch.length];
+            for (int i = 0; i < batch.length; i++) {
+                pages[i] = new BigArrayInputStream(bigArray, (long) batch[i] * pageSize, pageSize);
+            }
+            repository.savePages(batch, pages);
+        });
+        return dirtyPages.version();
+    }
+
+    /**
+     * 单次查询读取全部页，数据直接流式写入页中
+     */
     public static void loadFromRepo(BigArray bigArray, Repository repository) {
-        int pageCount = repository.pageCount();
-        for (int i = 0; i < pageCount; i++) {
-            IMappedPage mappedPage = bigArray.getMappedPageOrCreate(i);
-            byte[] buf = repository.fetchPage(i);
-            mappedPage.putBytes(buf, 0, buf.length);
+        byte[] buf = new byte[COPY_BUFFER_SIZE];
+        repository.fetchPages((pageIndex, data) -> copyToPage(data, bigArray, pageIndex, buf));
+    }
+
+    /**
+     * @param parallelism 同时读取的页数，大于1时repository需支持并发调用
+     */
+    public static void loadFromRepo(BigArray bigArray, Repository repository, int parallelism) {
+        if (parallelism <= 1) {
+            loadFromRepo(bigArray, repository);
+            return;
+        }
+        int[] pageIndexes = repository.pageIndexes();
+        List<int[]> slices = new ArrayList<>(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            int from = (int) ((long) pageIndexes.length * i / parallelism);
+            int to = (int) ((long) pageIndexes.length * (i + 1) / parallelism);
+            slices.add(Arrays.copyOfRange(pageIndexes, from, to));
+        }
+        runAll(slices, parallelism, slice -> {
+            byte[] buf = new byte[COPY_BUFFER_SIZE];
+            for (int pageIndex: slice) {
+                repository.fetchPage(pageIndex, (index, data) -> copyToPage(data, bigArray, index, buf));
+            }
+        });
+    }
+
+    /**
+     * 页文件直接复制到段文件，不经过堆内存
+     * @return 下次增量快照使用的sinceVersion
+     */
+    public static long snapshot(BigArray bigArray, SegmentFileRepository repository) {
+        return snapshot(bigArray, repository, FULL_SYNC);
+    }
+
+    /**
+     * 增量快照：只复制sinceVersion之后修改过的页
+     * @param sinceVersion 上次成功快照返回的版本，FULL_SYNC复制全部页
+     * @return 下次增量快照使用的sinceVersion，失败时应继续使用原来的sinceVersion
+     */
+    public static long snapshot(BigArray bigArray, SegmentFileRepository repository, long sinceVersion) {
+        DirtyPages dirtyPages = bigArray.collectDirtyPages(sinceVersion);
+        for (int pageIndex: dirtyPages.pages()) {
+            bigArray.readPageFile(pageIndex, channel -> repository.transferFrom(pageIndex, channel, 0, channel.size()));
+        }
+        repository.flush();
+        return dirtyPages.version();
+    }
+
+    /**
+     * 段文件中的页直接复制为页文件，每页整体替换，恢复期间其他线程对bigArray的写入会丢失
+     */
+    public static void restore(BigArray bigArray, SegmentFileRepository repository) {
+        for (int pageIndex: repository.pageIndexes()) {
+            bigArray.writePageFile(pageIndex, channel -> repository.transferTo(pageIndex, channel));
+        }
+    }
+
+    private static void copyToPage(InputStream data, BigArray bigArray, int pageIndex, byte[] buf) throws IOException {
+        int pageSize = bigArray.pageSizeInBytes();
+        long index = (long) pageIndex * pageSize;
+        int written = 0;
+        int n;
+        while ((n = data.read(buf)) != -1) {
+            if (written + n > pageSize) {
+                throw new IllegalStateException("stored page " + pageIndex + " larger than pageSizeInBytes " + pageSize);
+            }
+            bigArray.putBytes(index + written, buf, 0, n);
+            written += n;
+        }
+    }
+
+    private static void runAll(List<int[]> works, int parallelism, Consumer<int[]> action) {
+        if (parallelism <= 1 || works.size() <= 1) {
+            works.forEach(action);
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, works.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<>(works.size());
+            for (int[] work: works) {
+                futures.add(executor.submit(() -> action.accept(work)));
+            }
+            for (Future<?> future: futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 以流的形式读取bigarray的一段，用于不经整页拷贝直接写入repository
+     */
+    static class BigArrayInputStream extends InputStream {
+        private final BigArray bigArray;
+        private long position;
+        private final long end;
+
+        BigArrayInputStream(BigArray bigArray, long start, long length) {
+            this.bigArray = bigArray;
+            this.position = start;
+            this.end = start + length;
+        }
+
+        @Override
+        public int read() {
+            return position < end ? bigArray.getByte(position++) & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int n = (int) Math.min(len, end - position);
+            bigArray.getBytes(position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
         }
     }
 }
@@ -23,6 +23,33 @@ public class IpUtils {
         throw new IllegalArgumentException("invalid ip: " + ip);
     }
 
+    /**
+     * @param cidr e.g. 10.0.0.0/8, a plain address is treated as /32
+     * @return {first address, last address} of the block, host bits of the given address are ignored
+     */
+    public static int[] parseCidr(String cidr) {
+        if (cidr == null) {
+            throw new IllegalArgumentException("invalid cidr: " + cidr);
+        }
+        int slash = cidr.indexOf('/');
+        if (slash < 0) {
+            int ip = parse(cidr.trim());
+            return new int[]{ip, ip};
+        }
+        int prefixLength;
+        try {
+            prefixLength = Integer.parseInt(cidr.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid cidr: " + cidr);
+        }
+        if (prefixLength < 0 || prefixLength > 32) {
+            throw new IllegalArgumentException("invalid cidr: " + cidr);
+        }
+        int mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+        int start = parse(cidr.substring(0, slash).trim()) & mask;
+        return new int[]{start, start | ~mask};
+    }
+
     public static String ip(int bytes) {
         short a = (short)(bytes >>> 24);
         short b = (short)((bytes & 0x00FF0000) >>> 16);
@@ -31,6 +58,107 @@ public class IpUtils {
         return new String(("" + a + '.' + b + '.' + c + '.' + d).getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
     }
 
+    /**
+     * @param ip ipv6 address, "::" and a trailing dotted ipv4 part are understood
+     * @return {high 64 bits, low 64 bits}
+     */
+    public static long[] parse6(String ip) {
+        if (ip == null) {
+            throw new IllegalArgumentException("invalid ip: " + ip);
+        }
+        String s = ip.trim();
+        int gap = s.indexOf("::");
+        if (gap >= 0 && s.indexOf("::", gap + 1) >= 0) {
+            throw new IllegalArgumentException("invalid ip: " + ip);
+        }
+        int[] head = groups6(gap < 0 ? s : s.substring(0, gap), gap < 0, ip);
+        int[] tail = gap < 0 ? new int[0] : groups6(s.substring(gap + 2), true, ip);
+        if (gap < 0 ? head.length != 8 : head.length + tail.length > 7) {
+            throw new IllegalArgumentException("invalid ip: " + ip);
+        }
+        int[] groups = new int[8];
+        System.arraycopy(head, 0, groups, 0, head.length);
+        System.arraycopy(tail, 0, groups, 8 - tail.length, tail.length);
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 4; i++) {
+            high = (high << 16) | groups[i];
+            low = (low << 16) | groups[i + 4];
+        }
+        return new long[]{high, low};
+    }
+
+    // 16 bit groups of one side of "::", a dotted ipv4 part counts as two
+    private static int[] groups6(String part, boolean last, String ip) {
+        if (part.isEmpty()) {
+            return new int[0];
+        }
+        String[] tokens = part.split(":", -1);
+        boolean dotted = last && tokens[tokens.length - 1].indexOf('.') >= 0;
+        int[] groups = new int[tokens.length + (dotted ? 1 : 0)];
+        for (int i = 0; i < tokens.length; i++) {
+            String token = tokens[i];
+            if (dotted && i == tokens.length - 1) {
+                int v4 = parse(token);
+                groups[i] = v4 >>> 16;
+                groups[i + 1] = v4 & 0xFFFF;
+            } else if (token.isEmpty() || token.length() > 4) {
+                throw new IllegalArgumentException("invalid ip: " + ip);
+            } else {
+                try {
+                    groups[i] = Integer.parseInt(token, 16);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("invalid ip: " + ip);
+                }
+                if (groups[i] < 0) {
+                    throw new IllegalArgumentException("invalid ip: " + ip);
+                }
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * @param cidr e.g. 2001:db8::/32, a plain address is treated as /128
+     * @return {first high, first low, last high, last low} of the block, host bits of the given address are ignored
+     */
+    public static long[] parseCidr6(String cidr) {
+        if (cidr == null) {
+            throw new IllegalArgumentException("invalid cidr: " + cidr);
+        }
+        int slash = cidr.indexOf('/');
+        long[] ip = parse6(slash < 0 ? cidr : cidr.substring(0, slash));
+        int prefixLength = 128;
+        if (slash >= 0) {
+            try {
+                prefixLength = Integer.parseInt(cidr.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid cidr: " + cidr);
+            }
+            if (prefixLength < 0 || prefixLength > 128) {
+                throw new IllegalArgumentException("invalid cidr: " + cidr);
+            }
+        }
+        long highMask = prefixLength >= 64 ? -1L : prefixLength == 0 ? 0 : -1L << (64 - prefixLength);
+        long lowMask = prefixLength <= 64 ? 0 : prefixLength == 128 ? -1L : -1L << (128 - prefixLength);
+        return new long[]{ip[0] & highMask, ip[1] & lowMask, ip[0] | ~highMask, ip[1] | ~lowMask};
+    }
+
+    /**
+     * all eight groups, without "::"
+     */
+    public static String ip6(long high, long low) {
+        StringBuilder sb = new StringBuilder(39);
+        for (int i = 0; i < 8; i++) {
+            long half = i < 4 ? high : low;
+            if (i > 0) {
+                sb.append(':');
+            }
+            sb.append(Long.toHexString((half >>> (48 - 16 * (i & 3))) & 0xFFFF));
+        }
+        return sb.toString();
+    }
+
     public static int byteIndicator(int bytes) {
         return bytes >>> 3;
     }
@@ -0,0 +1,160 @@
+package org.mine.iptable.bigtable;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * rank and select against java.util.BitSet while single bit updates and bulk operations change the set
+ */
+public class BigBitSetTest {
+    private static final int PAGE_SIZE = 64 * 1024;
+    private static final int PAGES = 8;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BigBitSet open() throws Exception {
+        return new BigBitSet(new BigArray.Builder(folder.newFolder().getPath()).pageSizeInBytes(PAGE_SIZE).subPageSizeInBytes(4096)
+                .maxPageCount(PAGES).build());
+    }
+
+    private static void checkRankSelect(BigBitSet set, BitSet expected, Random random) {
+        for (int i = 0; i < 20; i++) {
+            int bit = random.nextInt(PAGES * PAGE_SIZE * 8);
+            assertEquals("rank " + bit, expected.get(0, bit).cardinality(), set.rank(bit));
+        }
+        int cardinality = expected.cardinality();
+        assertEquals(cardinality, set.rank(set.size()));
+        if (cardinality > 0) {
+            int k = random.nextInt(cardinality);
+            int bit = expected.nextSetBit(0);
+            for (int i = 0; i < k; i++) {
+                bit = expected.nextSetBit(bit + 1);
+            }
+            assertEquals("select " + k, bit, set.select(k));
+        }
+        assertEquals(-1, set.select(cardinality));
+    }
+
+    @Test
+    public void updatesBetweenQueries() throws Exception {
+        Random random = new Random(1);
+        try (BigBitSet set = open(); BigBitSet other = open()) {
+            BitSet expected = new BitSet();
+            BitSet otherExpected = new BitSet();
+            // pages 2 and 5 stay absent
+            int[] pages = {0, 1, 3, 4, 6, 7};
+            for (int round = 0; round < 300; round++) {
+                for (int i = 0; i < 20; i++) {
+                    int bit = pages[random.nextInt(pages.length)] * PAGE_SIZE * 8 + random.nextInt(PAGE_SIZE * 8);
+                    switch (random.nextInt(3)) {
+                        case 0:
+                            assertEquals(!expected.get(bit), set.set(bit));
+                            expected.set(bit);
+                            break;
+                        case 1:
+                            assertEquals(expected.get(bit), set.clear(bit));
+                            expected.clear(bit);
+                            break;
+                        default:
+                            expected.flip(bit);
+                            assertEquals(expected.get(bit), set.flip(bit));
+                    }
+                    int otherBit = random.nextInt(4 * PAGE_SIZE * 8);
+                    other.set(otherBit);
+                    otherExpected.set(otherBit);
+                }
+                checkRankSelect(set, expected, random);
+                if (round % 50 == 49) {
+                    switch (round / 50 % 4) {
+                        case 0:
+                            set.or(other);
+                            expected.or(otherExpected);
+                            break;
+                        case 1:
+                            set.andNot(other);
+                            expected.andNot(otherExpected);
+                            break;
+                        case 2:
+                            set.xor(other);
+                            expected.xor(otherExpected);
+                            break;
+                        default:
+                            set.and(other);
+                            expected.and(otherExpected);
+                    }
+                    checkRankSelect(set, expected, random);
+                }
+            }
+        }
+    }
+
+    /**
+     * counts racing the updates of their page are not kept, once the writers are done rank is exact
+     */
+    @Test
+    public void concurrentUpdatesAndRanks() throws Exception {
+        try (BigBitSet set = open()) {
+            long bits = (long) PAGES * PAGE_SIZE * 8;
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread[] writers = new Thread[4];
+            for (int t = 0; t < writers.length; t++) {
+                int seed = t;
+                writers[t] = new Thread(() -> {
+                    try {
+                        // every writer owns the bits congruent to its seed, so each set changes a bit
+                        Random random = new Random(seed);
+                        for (int i = 0; i < 20_000; i++) {
+                            long bit = (random.nextLong() & Long.MAX_VALUE) % (bits / writers.length) * writers.length + seed;
+                            set.flip(bit);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+                writers[t].start();
+            }
+            Thread reader = new Thread(() -> {
+                try {
+                    Random random = new Random(9);
+                    while (isAlive(writers)) {
+                        set.rank((random.nextLong() & Long.MAX_VALUE) % bits);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            reader.start();
+            for (Thread writer: writers) {
+                writer.join();
+            }
+            reader.join();
+            assertNull(String.valueOf(failure.get()), failure.get());
+            long cardinality = set.cardinality();
+            assertEquals(cardinality, set.rank(bits));
+            for (long bit = 0; bit < bits; bit += bits / 16) {
+                long expected = 0;
+                for (long b = set.nextSetBit(0); b >= 0 && b < bit; b = set.nextSetBit(b + 1)) {
+                    expected++;
+                }
+                assertEquals("rank " + bit, expected, set.rank(bit));
+            }
+        }
+    }
+
+    private static boolean isAlive(Thread[] threads) {
+        for (Thread thread: threads) {
+            if (thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
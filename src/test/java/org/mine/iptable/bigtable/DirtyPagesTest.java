@@ -0,0 +1,84 @@
+package org.mine.iptable.bigtable;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * sync versions handed out before a restart
+ */
+public class DirtyPagesTest {
+    private static final int PAGE_SIZE = 64 * 1024;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static BigArray open(File dir) {
+        return new BigArray.Builder(dir.getPath()).pageSizeInBytes(PAGE_SIZE).subPageSizeInBytes(4096).maxPageCount(16).build();
+    }
+
+    @Test
+    public void versionSurvivesReopen() throws Exception {
+        File dir = folder.newFolder();
+        BigArray bigArray = open(dir);
+        for (int page = 0; page < 8; page++) {
+            bigArray.putByte((long) page * PAGE_SIZE, (byte) page);
+        }
+        long since = bigArray.collectDirtyPages(-1).version();
+        bigArray.putByte(5L * PAGE_SIZE, (byte) 1);
+        since = bigArray.collectDirtyPages(since).version();
+        // modified after the sync and before the close
+        bigArray.putByte(6L * PAGE_SIZE, (byte) 1);
+        bigArray.close();
+
+        bigArray = open(dir);
+        bigArray.putByte(3L * PAGE_SIZE + 100, (byte) 1);
+        assertArrayEquals(new int[] {3}, bigArray.dirtyPages());
+        DirtyPages dirtyPages = bigArray.collectDirtyPages(since);
+        assertArrayEquals(new int[] {3, 6}, dirtyPages.pages());
+        bigArray.close();
+
+        bigArray = open(dir);
+        assertArrayEquals(new int[0], bigArray.collectDirtyPages(dirtyPages.version()).pages());
+        bigArray.close();
+    }
+
+    @Test
+    public void versionFromBeforeCrashSyncsEverything() throws Exception {
+        File dir = folder.newFolder();
+        File copy = folder.newFolder();
+        BigArray bigArray = open(dir);
+        for (int page = 0; page < 4; page++) {
+            bigArray.putByte((long) page * PAGE_SIZE, (byte) page);
+        }
+        bigArray.force();
+        bigArray.putByte(2L * PAGE_SIZE, (byte) 7);
+        long since = bigArray.collectDirtyPages(-1).version();
+        bigArray.force();
+        // the files as a crash leaves them, the manifest is not marked clean
+        for (File file: dir.listFiles()) {
+            Files.copy(file.toPath(), new File(copy, file.getName()).toPath());
+        }
+        bigArray.close();
+
+        BigArray recovered = open(copy);
+        recovered.putByte(1L * PAGE_SIZE, (byte) 1);
+        assertArrayEquals(new int[] {0, 1, 2, 3}, recovered.collectDirtyPages(since).pages());
+        recovered.close();
+    }
+
+    @Test
+    public void versionWithoutEpochSyncsEverything() throws Exception {
+        BigArray bigArray = open(folder.newFolder());
+        bigArray.putByte(0, (byte) 1);
+        bigArray.putByte(PAGE_SIZE, (byte) 1);
+        bigArray.collectDirtyPages(-1);
+        // as returned before versions carried an epoch
+        assertArrayEquals(new int[] {0, 1}, bigArray.collectDirtyPages(100).pages());
+        bigArray.close();
+    }
+}
@@ -0,0 +1,124 @@
+package org.mine.iptable.bigtable;
+
+import org.junit.Test;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * acquire, eviction and remove racing on a small cache: a pinned value is never closed, every value is closed
+ * exactly once and nothing is left open after expireAll
+ */
+public class PageCacheConcurrencyTest {
+    private static final int THREADS = 8;
+    private static final int KEYS = 64;
+    private static final int ROUNDS = 200_000;
+
+    @Test
+    public void acquireEvictRemove() throws Exception {
+        for (EvictionPolicy.Type type: EvictionPolicy.Type.values()) {
+            hammer(type);
+        }
+    }
+
+    private void hammer(EvictionPolicy.Type type) throws Exception {
+        PageCache<Value> cache = new PageCache<>(8, 16, type);
+        Queue<Value> created = new ConcurrentLinkedQueue<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    for (int i = 0; i < ROUNDS && failure.get() == null; i++) {
+                        int key = random.nextInt(KEYS);
+                        int op = random.nextInt(16);
+                        if (op == 0) {
+                            cache.remove(key);
+                        } else if (op == 1) {
+                            cache.evictOne();
+                        } else {
+                            PageCache.Entry<Value> entry = op == 2 ? cache.acquireIfPresent(key) : cache.acquire(key, k -> {
+                                Value value = new Value(k);
+                                created.add(value);
+                                return value;
+                            });
+                            if (entry != null) {
+                                try {
+                                    entry.value().use(key);
+                                } finally {
+                                    entry.release();
+                                }
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        assertNull(type + ": " + failure.get(), failure.get());
+        assertTrue(type + " cache size " + cache.size(), cache.size() <= KEYS);
+        cache.expireAll();
+        assertEquals(0, cache.size());
+        for (Value value: created) {
+            assertEquals(type + " value of key " + value.key + " closed", 1, value.closes.get());
+        }
+    }
+
+    private static final class Value implements ICloseable {
+        private final int key;
+        private final AtomicInteger users = new AtomicInteger();
+        private final AtomicInteger closes = new AtomicInteger();
+
+        private Value(int key) {
+            this.key = key;
+        }
+
+        private void use(int expectedKey) {
+            users.incrementAndGet();
+            try {
+                if (key != expectedKey) {
+                    throw new AssertionError("got value of key " + key + " for " + expectedKey);
+                }
+                if (closes.get() != 0) {
+                    throw new AssertionError("pinned value of key " + key + " was closed");
+                }
+                Thread.yield();
+                if (closes.get() != 0) {
+                    throw new AssertionError("value of key " + key + " closed while in use");
+                }
+            } finally {
+                users.decrementAndGet();
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closes.get() != 0;
+        }
+
+        @Override
+        public void close() {
+            if (users.get() != 0) {
+                throw new AssertionError("value of key " + key + " closed with " + users.get() + " users");
+            }
+            closes.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.mine.iptable.bigtable;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mine.iptable.repository.SegmentFileRepository;
+import org.mine.iptable.util.BigArrayUtils;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * a read only array returns what the same files return opened read write, also past the end of a short page file
+ */
+public class ReadOnlyBigArrayTest {
+    private static final int PAGE_SIZE = 64 * 1024;
+    private static final int SUB_PAGE_SIZE = 4096;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static BigArray.Builder builder(File dir) {
+        return new BigArray.Builder(dir.getPath()).pageSizeInBytes(PAGE_SIZE).subPageSizeInBytes(SUB_PAGE_SIZE).maxPageCount(4);
+    }
+
+    @Test
+    public void readsPastEndOfPageFile() throws Exception {
+        File dir = folder.newFolder();
+        try (BigArray bigArray = builder(dir).build()) {
+            for (int i = 0; i < 3000; i++) {
+                bigArray.putByte(PAGE_SIZE + i, (byte) (i + 1));
+            }
+        }
+        // cut the page file within its first sub page
+        File[] pageFiles = dir.listFiles((d, name) -> name.endsWith("page-1.dat"));
+        assertEquals(1, pageFiles.length);
+        try (RandomAccessFile file = new RandomAccessFile(pageFiles[0], "rw")) {
+            assertEquals(SUB_PAGE_SIZE, file.length());
+            file.setLength(2000);
+        }
+
+        try (BigArray readOnly = builder(dir).readOnly().build()) {
+            assertEquals(1, readOnly.getByte(PAGE_SIZE));
+            assertEquals((byte) 2000, readOnly.getByte(PAGE_SIZE + 1999));
+            assertEquals(0, readOnly.getByte(PAGE_SIZE + 2000));
+            assertEquals(0, readOnly.getInt((PAGE_SIZE + 3 * SUB_PAGE_SIZE) / 4));
+            assertEquals(0, readOnly.getLong((2L * PAGE_SIZE - 8) / 8));
+            try (BigArrayCursor cursor = readOnly.cursor()) {
+                assertEquals((byte) 1999, cursor.getByte(PAGE_SIZE + 1998));
+                assertEquals(0, cursor.getLong((PAGE_SIZE + 5 * SUB_PAGE_SIZE) / 8));
+            }
+            byte[] expected = new byte[PAGE_SIZE];
+            for (int i = 0; i < 2000; i++) {
+                expected[i] = (byte) (i + 1);
+            }
+            byte[] actual = new byte[PAGE_SIZE];
+            readOnly.getBytes(PAGE_SIZE, actual, 0, PAGE_SIZE);
+            assertArrayEquals(expected, actual);
+
+            // whole pages are streamed into the repository
+            SegmentFileRepository repository = new SegmentFileRepository(folder.newFolder().getPath());
+            try {
+                BigArrayUtils.saveToRepo(readOnly, repository);
+                byte[] saved = repository.fetchPage(1);
+                assertEquals(PAGE_SIZE, saved.length);
+                assertArrayEquals(expected, saved);
+            } finally {
+                repository.close();
+            }
+        }
+        // reads did not grow the file
+        assertEquals(2000, pageFiles[0].length());
+        assertTrue(pageFiles[0].exists());
+    }
+}
@@ -0,0 +1,127 @@
+package org.mine.iptable.ip;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mine.iptable.bigtable.BigArray;
+import org.mine.iptable.util.IpUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * overlapping prefixes put and removed in random order, lookups against a scan of the prefixes in the table
+ */
+public class IpPrefixTableTest {
+    private static final String[] CIDRS = {"0.0.0.0/0", "10.0.0.0/8", "11.0.0.0/8", "10.1.2.0/24", "10.1.3.0/24",
+            "10.1.2.0/25", "10.1.2.128/25", "10.1.3.128/25", "10.1.2.5/32", "10.1.2.200/32", "10.1.3.77/32", "10.1.4.1/32"};
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private IpPrefixTable open() throws Exception {
+        return new IpPrefixTable(new BigArray.Builder(folder.newFolder().getPath()).pageSizeInBytes(1 << 24).subPageSizeInBytes(1 << 16)
+                .maxSubPageInMem(64).maxPageCount(8).jmx(false).build());
+    }
+
+    private static int[] probes() {
+        List<Integer> probes = new ArrayList<>();
+        // every address of the /24s holding longer prefixes
+        for (String block: new String[] {"10.1.2.0", "10.1.3.0", "10.1.4.0"}) {
+            int start = IpUtils.parse(block);
+            for (int i = 0; i < 256; i++) {
+                probes.add(start + i);
+            }
+        }
+        for (String ip: new String[] {"0.0.0.0", "9.255.255.255", "10.0.0.0", "10.1.1.255", "10.1.5.0", "10.255.255.255",
+                "11.0.0.0", "11.200.0.1", "12.0.0.0", "192.168.1.1", "255.255.255.255"}) {
+            probes.add(IpUtils.parse(ip));
+        }
+        int[] ips = new int[probes.size()];
+        for (int i = 0; i < ips.length; i++) {
+            ips[i] = probes.get(i);
+        }
+        return ips;
+    }
+
+    private static int expected(Map<String, Integer> prefixes, int ip) {
+        int length = -1;
+        int value = IpPrefixTable.NO_VALUE;
+        for (Map.Entry<String, Integer> prefix: prefixes.entrySet()) {
+            int[] range = IpUtils.parseCidr(prefix.getKey());
+            int prefixLength = Integer.numberOfLeadingZeros(range[0] ^ range[1]);
+            boolean holds = Integer.compareUnsigned(range[0], ip) <= 0 && Integer.compareUnsigned(ip, range[1]) <= 0;
+            if (holds && prefixLength > length) {
+                length = prefixLength;
+                value = prefix.getValue();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return number of /24s holding a prefix longer than /24
+     */
+    private static int blocks(Map<String, Integer> prefixes) {
+        Set<Integer> blocks = new HashSet<>();
+        for (String cidr: prefixes.keySet()) {
+            int[] range = IpUtils.parseCidr(cidr);
+            if (Integer.numberOfLeadingZeros(range[0] ^ range[1]) > 24) {
+                blocks.add(range[0] >>> 8);
+            }
+        }
+        return blocks.size();
+    }
+
+    private static void check(IpPrefixTable table, Map<String, Integer> prefixes, int[] probes) {
+        int[] expected = new int[probes.length];
+        for (int i = 0; i < probes.length; i++) {
+            expected[i] = expected(prefixes, probes[i]);
+            assertEquals("lookup " + IpUtils.ip(probes[i]) + " in " + prefixes, expected[i], table.lookup(probes[i]));
+        }
+        int[] out = new int[probes.length];
+        table.lookupAll(probes, out);
+        assertArrayEquals(expected, out);
+        assertEquals(prefixes.size(), table.size());
+        assertEquals("blocks in use", blocks(prefixes), table.blockCount());
+    }
+
+    @Test
+    public void putAndRemoveInRandomOrder() throws Exception {
+        Random random = new Random(7);
+        int[] probes = probes();
+        try (IpPrefixTable table = open()) {
+            Map<String, Integer> prefixes = new HashMap<>();
+            for (int round = 0; round < 5; round++) {
+                for (int i = 0; i < 40; i++) {
+                    String cidr = CIDRS[random.nextInt(CIDRS.length)];
+                    if (random.nextInt(3) > 0) {
+                        int value = random.nextInt(1000);
+                        Integer previous = prefixes.put(cidr, value);
+                        assertEquals(previous == null ? IpPrefixTable.NO_VALUE : previous, table.put(cidr, value));
+                    } else {
+                        Integer previous = prefixes.remove(cidr);
+                        assertEquals(previous == null ? IpPrefixTable.NO_VALUE : previous, table.remove(cidr));
+                    }
+                    check(table, prefixes, probes);
+                }
+                // drain the table, the last /25 or longer prefix of a /24 gives its block back
+                List<String> cidrs = new ArrayList<>(prefixes.keySet());
+                Collections.shuffle(cidrs, random);
+                for (String cidr: cidrs) {
+                    assertEquals((int) prefixes.remove(cidr), table.remove(cidr));
+                    check(table, prefixes, probes);
+                }
+                assertEquals(0, table.blockCount());
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.mine.iptable.ip;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mine.iptable.bigtable.BigArray;
+import org.mine.iptable.util.IpUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * lookups against a scan of every input range: where ranges overlap the one starting last wins, of equal starts
+ * the shorter one
+ */
+public class Ipv6RangeTableTest {
+    // few distinct highs, so ranges cluster and overlap, including the unsigned extremes
+    private static final long[] HIGHS = {0, 1, 0x2001_0db8_0000_0000L, Long.MIN_VALUE, -1L};
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BigArray newArray(File dir) {
+        return new BigArray.Builder(dir.getPath(), "table-").pageSizeInBytes(4096).subPageSizeInBytes(4096).maxPageCount(1024).jmx(false).build();
+    }
+
+    private Ipv6RangeTable build(List<long[]> ranges) throws Exception {
+        File dir = folder.newFolder();
+        try (Ipv6RangeTable.Builder builder = new Ipv6RangeTable.Builder(newArray(dir), dir.getPath())) {
+            for (long[] range: ranges) {
+                builder.add(range[0], range[1], range[2], range[3], (int) range[4]);
+            }
+            Ipv6RangeTable table = builder.build();
+            File[] left = dir.listFiles((d, name) -> !name.startsWith("table-"));
+            assertEquals("work files left behind", 0, left.length);
+            return table;
+        }
+    }
+
+    private static int compare(long aHigh, long aLow, long bHigh, long bLow) {
+        int c = Long.compareUnsigned(aHigh, bHigh);
+        return c != 0 ? c : Long.compareUnsigned(aLow, bLow);
+    }
+
+    private static int expected(List<long[]> ranges, long high, long low) {
+        long[] owner = null;
+        for (long[] range: ranges) {
+            if (compare(range[0], range[1], high, low) > 0 || compare(high, low, range[2], range[3]) > 0) {
+                continue;
+            }
+            if (owner == null) {
+                owner = range;
+                continue;
+            }
+            int start = compare(range[0], range[1], owner[0], owner[1]);
+            if (start > 0 || start == 0 && compare(range[2], range[3], owner[2], owner[3]) < 0) {
+                owner = range;
+            }
+        }
+        return owner == null ? Ipv6RangeTable.NO_VALUE : (int) owner[4];
+    }
+
+    private static void addAround(List<long[]> queries, long high, long low) {
+        queries.add(new long[] {low == 0 ? high - 1 : high, low - 1});
+        queries.add(new long[] {high, low});
+        queries.add(new long[] {low == -1L ? high + 1 : high, low + 1});
+    }
+
+    private static void check(Ipv6RangeTable table, List<long[]> ranges, Random random) {
+        List<long[]> queries = new ArrayList<>();
+        for (long[] range: ranges) {
+            addAround(queries, range[0], range[1]);
+            addAround(queries, range[2], range[3]);
+        }
+        addAround(queries, 0, 0);
+        addAround(queries, -1L, -1L);
+        for (int i = 0; i < 500; i++) {
+            queries.add(new long[] {HIGHS[random.nextInt(HIGHS.length)], random.nextInt(3000) - 100});
+        }
+        long[] highs = new long[queries.size()];
+        long[] lows = new long[queries.size()];
+        int[] expected = new int[queries.size()];
+        for (int i = 0; i < queries.size(); i++) {
+            highs[i] = queries.get(i)[0];
+            lows[i] = queries.get(i)[1];
+            expected[i] = expected(ranges, highs[i], lows[i]);
+            assertEquals("lookup " + IpUtils.ip6(highs[i], lows[i]), expected[i], table.lookup(highs[i], lows[i]));
+        }
+        int[] out = new int[queries.size()];
+        table.lookupAll(highs, lows, out);
+        assertArrayEquals(expected, out);
+    }
+
+    @Test
+    public void overlappingRanges() throws Exception {
+        Random random = new Random(3);
+        for (int round = 0; round < 20; round++) {
+            List<long[]> ranges = new ArrayList<>();
+            // equal ranges keep one value, which of two values would win is not defined
+            Map<String, Integer> values = new HashMap<>();
+            int n = 1 + random.nextInt(120);
+            for (int i = 0; i < n; i++) {
+                long high = HIGHS[random.nextInt(HIGHS.length)];
+                long start = random.nextInt(2000);
+                long end = start + (random.nextInt(4) == 0 ? random.nextInt(1000) : random.nextInt(20));
+                // some ranges share their start with an earlier one
+                if (i > 0 && random.nextInt(5) == 0) {
+                    long[] other = ranges.get(random.nextInt(ranges.size()));
+                    high = other[0];
+                    start = other[1];
+                    end = Math.max(start, end);
+                }
+                int value = values.computeIfAbsent(high + "/" + start + "/" + end, key -> random.nextInt(50));
+                ranges.add(new long[] {high, start, high, end, value});
+            }
+            if (round % 4 == 0) {
+                ranges.add(new long[] {0, 0, -1L, -1L, 99});
+            }
+            if (round % 5 == 0) {
+                // across the boundary of two highs
+                ranges.add(new long[] {0, -10, 1, 10, 77});
+            }
+            try (Ipv6RangeTable table = build(ranges)) {
+                check(table, ranges, random);
+            }
+        }
+    }
+
+    @Test
+    public void cidrs() throws Exception {
+        List<long[]> ranges = new ArrayList<>();
+        String[] cidrs = {"::/0", "2001:db8::/32", "2001:db8::/48", "2001:db8:0:1::/64", "2001:db8::1/128", "ffff::/16", "::1/128"};
+        for (int i = 0; i < cidrs.length; i++) {
+            long[] range = IpUtils.parseCidr6(cidrs[i]);
+            ranges.add(new long[] {range[0], range[1], range[2], range[3], i});
+        }
+        try (Ipv6RangeTable table = build(ranges)) {
+            check(table, ranges, new Random(4));
+            assertEquals(1, table.lookup("2001:db8:ffff::1"));
+            assertEquals(4, table.lookup("2001:db8::1"));
+            assertEquals(0, table.lookup("::2"));
+            assertEquals(6, table.lookup("::1"));
+        }
+    }
+
+    @Test
+    public void emptyTable() throws Exception {
+        try (Ipv6RangeTable table = build(new ArrayList<>())) {
+            assertEquals(0, table.size());
+            assertEquals(Ipv6RangeTable.NO_VALUE, table.lookup(0, 0));
+            assertEquals(Ipv6RangeTable.NO_VALUE, table.lookup(-1L, -1L));
+            int[] out = new int[2];
+            table.lookupAll(new long[] {0, 5}, new long[] {0, 5}, out);
+            assertArrayEquals(new int[] {Ipv6RangeTable.NO_VALUE, Ipv6RangeTable.NO_VALUE}, out);
+        }
+    }
+
+    /**
+     * disjoint ranges, one record each, around multiples of the 16 records of a block
+     */
+    @Test
+    public void blockBoundaries() throws Exception {
+        Random random = new Random(5);
+        for (int n: new int[] {1, 15, 16, 17, 31, 32, 33, 255, 256, 257}) {
+            List<long[]> ranges = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                ranges.add(new long[] {1, i * 10L, 1, i * 10L + 4, i});
+            }
+            try (Ipv6RangeTable table = build(ranges)) {
+                assertEquals(n, table.size());
+                check(table, ranges, random);
+            }
+        }
+    }
+
+    @Test
+    public void closeWithoutBuild() throws Exception {
+        File dir = folder.newFolder();
+        try (BigArray table = newArray(dir)) {
+            try (Ipv6RangeTable.Builder builder = new Ipv6RangeTable.Builder(table, dir.getPath())) {
+                builder.add("2001:db8::/32", 1);
+            }
+            assertEquals(0, dir.listFiles((d, name) -> !name.startsWith("table-")).length);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.mine.iptable.repository;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mine.iptable.bigtable.BigArray;
+import org.mine.iptable.util.BigArrayUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * MysqlDBRepository against an in memory h2 database in mysql mode
+ */
+public class MysqlDBRepositoryTest {
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private ConnectionPool pool;
+    private MysqlDBRepository repository;
+
+    @Before
+    public void open() {
+        String url = "jdbc:h2:mem:repo" + DATABASES.incrementAndGet() + ";MODE=MySQL;DB_CLOSE_DELAY=-1";
+        pool = new ConnectionPool(() -> DriverManager.getConnection(url, "sa", ""), 2);
+        repository = new MysqlDBRepository(pool, "test");
+    }
+
+    @After
+    public void close() throws Exception {
+        repository.close();
+        pool.close();
+    }
+
+    @Test
+    public void savePagesAndFetch() {
+        assertEquals(0, repository.pageCount());
+        assertNull(repository.fetchPage(0));
+        assertNull(repository.codecName());
+        byte[] first = {1, 2, 3};
+        byte[] second = new byte[100_000];
+        new Random(1).nextBytes(second);
+        assertTrue(repository.savePage(3, first));
+        repository.savePages(new int[] {7, 3}, new InputStream[] {new ByteArrayInputStream(second), new ByteArrayInputStream(second)});
+        repository.codecName("crc32");
+        assertEquals(2, repository.pageCount());
+        assertArrayEquals(new int[] {3, 7}, repository.pageIndexes());
+        assertArrayEquals(second, repository.fetchPage(3));
+        assertArrayEquals(second, repository.fetchPage(7));
+        assertEquals("crc32", repository.codecName());
+        // namespaces share the table without seeing each other
+        MysqlDBRepository other = new MysqlDBRepository(pool, "other");
+        assertEquals(0, other.pageCount());
+        assertTrue(other.savePage(3, first));
+        assertArrayEquals(second, repository.fetchPage(3));
+        assertArrayEquals(first, other.fetchPage(3));
+    }
+
+    @Test
+    public void bigArrayRoundTrip() throws Exception {
+        String dir = folder.getRoot().getPath();
+        int pageSize = 64 * 1024;
+        BigArray source = new BigArray.Builder(dir, "source").pageSizeInBytes(pageSize).subPageSizeInBytes(4096).maxPageCount(16).build();
+        BigArray target = new BigArray.Builder(dir, "target").pageSizeInBytes(pageSize).subPageSizeInBytes(4096).maxPageCount(16).build();
+        try {
+            Random random = new Random(2);
+            long[] indexes = new long[2000];
+            for (int i = 0; i < indexes.length; i++) {
+                // sparse, pages 1, 4 and 9 stay absent
+                long page = new int[] {0, 2, 3, 5, 12}[random.nextInt(5)];
+                indexes[i] = page * pageSize + random.nextInt(pageSize);
+                source.putByte(indexes[i], (byte) (1 + random.nextInt(255)));
+            }
+            long version = BigArrayUtils.saveToRepo(source, repository, BigArrayUtils.FULL_SYNC, 2);
+            assertArrayEquals(new int[] {0, 2, 3, 5, 12}, repository.pageIndexes());
+            // only page 2 changes, only page 2 is saved again
+            byte[] page5 = repository.fetchPage(5);
+            repository.savePage(5, new byte[] {9});
+            source.putByte(2L * pageSize, (byte) 7);
+            BigArrayUtils.saveToRepo(source, repository, version);
+            assertArrayEquals(new byte[] {9}, repository.fetchPage(5));
+            assertEquals(7, repository.fetchPage(2)[0]);
+            repository.savePage(5, page5);
+
+            BigArrayUtils.loadFromRepo(target, repository, 2);
+            byte[] expected = new byte[pageSize];
+            byte[] actual = new byte[pageSize];
+            for (int page = 0; page < 16; page++) {
+                assertEquals("page " + page, source.pageExists(page), target.pageExists(page));
+                if (source.pageExists(page)) {
+                    source.getBytes((long) page * pageSize, expected, 0, pageSize);
+                    target.getBytes((long) page * pageSize, actual, 0, pageSize);
+                    assertArrayEquals("page " + page, expected, actual);
+                }
+            }
+        } finally {
+            source.close();
+            target.close();
+        }
+    }
+
+    @Test
+    public void failingPageStreamRollsBackBatch() {
+        assertTrue(repository.savePage(1, new byte[] {1}));
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() {
+                throw new IllegalStateException("page source failed");
+            }
+        };
+        try {
+            repository.savePages(new int[] {1, 2, 3}, new InputStream[] {new ByteArrayInputStream(new byte[] {9}),
+                    new ByteArrayInputStream(new byte[] {9}), failing});
+            fail("savePages succeeded with a failing stream");
+        } catch (RuntimeException expected) {
+            // nothing of the batch is committed
+        }
+        assertArrayEquals(new int[] {1}, repository.pageIndexes());
+        assertArrayEquals(new byte[] {1}, repository.fetchPage(1));
+    }
+
+    @Test
+    public void closedConnectionIsReplaced() throws Exception {
+        Connection broken = pool.borrow();
+        broken.close();
+        pool.giveBack(broken);
+        // every connection of the pool is used at least once, the broken one included
+        for (int i = 0; i < 4; i++) {
+            assertTrue(repository.savePage(i, new byte[] {(byte) i}));
+        }
+        assertEquals(4, repository.pageCount());
+        Connection first = pool.borrow();
+        Connection second = pool.borrow();
+        try {
+            assertTrue(!first.isClosed() && !second.isClosed());
+        } finally {
+            pool.giveBack(first);
+            pool.giveBack(second);
+        }
+    }
+
+    @Test
+    public void invalidConnectionIsReplaced() throws Exception {
+        String url = "jdbc:h2:mem:repo" + DATABASES.incrementAndGet() + ";MODE=MySQL;DB_CLOSE_DELAY=-1";
+        AtomicInteger created = new AtomicInteger();
+        AtomicBoolean timedOut = new AtomicBoolean();
+        // open but dead on the server side, only isValid tells
+        ConnectionPool.ConnectionFactory factory = () -> {
+            Connection connection = DriverManager.getConnection(url, "sa", "");
+            boolean first = created.incrementAndGet() == 1;
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+                if (first && timedOut.get() && method.getName().equals("isValid")) {
+                    return false;
+                }
+                try {
+                    return method.invoke(connection, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            });
+        };
+        try (ConnectionPool validating = new ConnectionPool(factory, 1, 0)) {
+            MysqlDBRepository repo = new MysqlDBRepository(validating, "test");
+            timedOut.set(true);
+            assertTrue(repo.savePage(0, new byte[] {1}));
+            assertArrayEquals(new byte[] {1}, repo.fetchPage(0));
+            assertEquals(2, created.get());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.mine.iptable.repository;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mine.iptable.bigtable.BigArray;
+import org.mine.iptable.bigtable.BigArrayCursor;
+import org.mine.iptable.util.BigArrayUtils;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SegmentFileRepositoryTest {
+    private static final int PAGES = 32;
+    private static final int PAGE_SIZE = 16 * 1024;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] page(int pageIndex, int round) {
+        byte[] buf = new byte[PAGE_SIZE];
+        Arrays.fill(buf, (byte) (pageIndex * 7 + round));
+        return buf;
+    }
+
+    /**
+     * readers never see a closed or replaced segment while pages are rewritten and compacted under them
+     */
+    @Test
+    public void readsDuringCompact() throws Exception {
+        try (SegmentFileRepository repository = new SegmentFileRepository(folder.getRoot().getPath())) {
+            for (int i = 0; i < PAGES; i++) {
+                repository.savePage(i, page(i, 0));
+            }
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread[] readers = new Thread[4];
+            for (int t = 0; t < readers.length; t++) {
+                int seed = t;
+                readers[t] = new Thread(() -> {
+                    try {
+                        for (int n = seed; !done.get(); n++) {
+                            int pageIndex = n % PAGES;
+                            byte[] buf = n % 2 == 0 ? repository.fetchPage(pageIndex) : fetchStreaming(repository, pageIndex);
+                            for (byte b: buf) {
+                                if (b != buf[0]) {
+                                    throw new AssertionError("page " + pageIndex + " torn");
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+                readers[t].start();
+            }
+            for (int round = 1; round <= 50 && failure.get() == null; round++) {
+                for (int i = 0; i < PAGES; i += 3) {
+                    repository.savePage(i, page(i, round));
+                }
+                repository.compact();
+            }
+            done.set(true);
+            for (Thread reader: readers) {
+                reader.join();
+            }
+            assertNull(String.valueOf(failure.get()), failure.get());
+            for (int i = 0; i < PAGES; i++) {
+                assertArrayEquals(page(i, i % 3 == 0 ? 50 : 0), repository.fetchPage(i));
+            }
+        }
+    }
+
+    /**
+     * a segment cut short under an open repository fails the compact instead of looping on it
+     */
+    @Test(timeout = 10_000, expected = RuntimeException.class)
+    public void compactTruncatedSegment() throws Exception {
+        try (SegmentFileRepository repository = new SegmentFileRepository(folder.getRoot().getPath())) {
+            repository.savePage(0, page(0, 0));
+            repository.savePage(1, page(1, 0));
+            try (FileChannel segment = FileChannel.open(Paths.get(folder.getRoot().getPath(), SegmentFileRepository.SEGMENT_FILE_PREFIX + 0
+                    + SegmentFileRepository.SEGMENT_FILE_SUFFIX), StandardOpenOption.WRITE)) {
+                segment.truncate(PAGE_SIZE + 1);
+            }
+            repository.compact();
+        }
+    }
+
+    /**
+     * a restored page replaces the file as a whole, a cursor still on the old page keeps reading the old content
+     */
+    @Test
+    public void restoreUnderPinnedPage() throws Exception {
+        String dir = folder.newFolder().getPath();
+        try (SegmentFileRepository repository = new SegmentFileRepository(folder.newFolder().getPath());
+             BigArray bigArray = new BigArray.Builder(dir, "restore").pageSizeInBytes(PAGE_SIZE).subPageSizeInBytes(4096).maxPageCount(4).build()) {
+            bigArray.putByte(PAGE_SIZE - 1, (byte) 1);
+            BigArrayUtils.snapshot(bigArray, repository, BigArrayUtils.FULL_SYNC);
+            repository.savePage(0, new byte[] {2});
+            try (BigArrayCursor cursor = bigArray.cursor()) {
+                assertEquals(1, cursor.getByte(PAGE_SIZE - 1));
+                BigArrayUtils.restore(bigArray, repository);
+                // the old file is gone from the directory but still mapped, the new one is shorter
+                assertEquals(1, cursor.getByte(PAGE_SIZE - 1));
+            }
+            assertEquals(2, bigArray.getByte(0));
+            assertEquals(0, bigArray.getByte(PAGE_SIZE - 1));
+        }
+    }
+
+    private static byte[] fetchStreaming(SegmentFileRepository repository, int pageIndex) {
+        byte[][] result = new byte[1][];
+        repository.fetchPage(pageIndex, (index, data) -> result[0] = Repository.readFully(data));
+        return result[0];
+    }
+}